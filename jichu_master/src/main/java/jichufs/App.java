@@ -41,12 +41,10 @@ public class App {
     * Create the SDFS temporary directory named "/tmp"
     */
     public static void createSDFSDir() throws IOException {
+        // Replicas left over from before a restart are kept, the Replicant reports them so the master can reuse them
         File dir = new File("tmp");
         if(!dir.exists()) {
             dir.mkdir();
-        } else {
-            FileUtils.deleteDirectory(dir);
-            dir.mkdir();
         }
     }
 
@@ -105,7 +103,7 @@ public class App {
             replicantThread.start();
         }
 
-        var message = "Please select an option from 1-10: \n" +
+        var message = "Please select an option from 1-12: \n" +
                 "1- List the membership list\n" +
                 "2 - List self's id\n" +
                 "3 - Join the group\n" +
@@ -116,7 +114,8 @@ public class App {
                 "8 - STORE (list files in SDFS)\n" +
                 "9 - LS (sdfsfilename)\n" +
                 "10 - get-versions (sdfsfilename, numVersions)\n" +
-                "11 - List current master's id";
+                "11 - List current master's id\n" +
+                "12 - Show GET latency metrics";
 
 
         int option;
@@ -205,6 +204,9 @@ public class App {
                     case 11:
                         System.out.println("Master is " + master.getId());
                         break;
+                    case 12:
+                        queryWorker.printReadMetrics();
+                        break;
                     default:
                         System.out.println("Invalid input");
                         break;
@@ -0,0 +1,79 @@
+package jichufs;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+* Per node bandwidth budgets on the data transfer port.
+* Foreground traffic (client GETs and PUTs) is never throttled. Background transfers (re-replication, and any
+* other maintenance copy) share one token bucket limited to backgroundBandwidth bytes per second while foreground
+* requests are being served. Once no foreground request has been served for foregroundIdle ms the background budget
+* is raised to backgroundIdleBandwidth (0 for unlimited), and it drops back as soon as foreground traffic returns.
+*/
+@Component
+public class BandwidthManager {
+
+	private static final long ADJUST_INTERVAL = 100; // ms
+
+	private final TokenBucket background;
+	private final long busyRate;
+	private final long idleRate;
+	private final long foregroundIdle;
+	private final AtomicInteger foregroundRequests;
+	private volatile long foregroundSeenAt;
+	private final ScheduledExecutorService adjuster;
+
+	public BandwidthManager(@Value("${backgroundBandwidth:20971520}") long busyRate,
+							@Value("${backgroundIdleBandwidth:0}") long idleRate,
+							@Value("${foregroundIdle:1000}") long foregroundIdle) {
+		this.busyRate = busyRate;
+		this.idleRate = idleRate;
+		this.foregroundIdle = foregroundIdle;
+		this.foregroundRequests = new AtomicInteger();
+		this.foregroundSeenAt = 0;
+		this.background = new TokenBucket(idleRate, 4L * FileTransfer.FRAME_SIZE);
+		this.adjuster = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable);
+			thread.setDaemon(true);
+			return thread;
+		});
+		adjuster.scheduleWithFixedDelay(this::adjust, ADJUST_INTERVAL, ADJUST_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	* Get the token bucket every background transfer sent from this node must go through
+	*/
+	public TokenBucket background() {
+		return background;
+	}
+
+	public void foregroundStarted() {
+		foregroundRequests.incrementAndGet();
+		foregroundSeenAt = System.currentTimeMillis();
+		// Throttle background traffic right away instead of on the next adjustment
+		if(background.getRate() != busyRate) {
+			background.setRate(busyRate);
+		}
+	}
+
+	public void foregroundFinished() {
+		foregroundSeenAt = System.currentTimeMillis();
+		foregroundRequests.decrementAndGet();
+	}
+
+	public boolean isForegroundIdle() {
+		return foregroundRequests.get() == 0 && System.currentTimeMillis() - foregroundSeenAt >= foregroundIdle;
+	}
+
+	private void adjust() {
+		long rate = isForegroundIdle() ? idleRate : busyRate;
+		if(background.getRate() != rate) {
+			background.setRate(rate);
+		}
+	}
+}
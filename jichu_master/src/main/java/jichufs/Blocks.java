@@ -0,0 +1,63 @@
+package jichufs;
+
+import java.util.List;
+
+/**
+* Naming and sizing of the fixed-size blocks sdfs files are split into.
+* Block 0 of a file is stored under the file's own name and block i > 0 under "<name>#<i>", so a file that fits in
+* one block is stored exactly as before. Every block is placed, stored and re-replicated as an sdfs file of its own.
+*/
+public class Blocks {
+
+	public static final char SEPARATOR = '#';
+
+	private Blocks() {}
+
+	/**
+	* Get the name block index of sdfsName is stored under
+	*/
+	public static String name(String sdfsName, int index) {
+		return index == 0 ? sdfsName : sdfsName + SEPARATOR + index;
+	}
+
+	/**
+	* Get the name of the file a block belongs to
+	*/
+	public static String parent(String blockName) {
+		int separator = blockName.lastIndexOf(SEPARATOR);
+		return separator < 0 ? blockName : blockName.substring(0, separator);
+	}
+
+	/**
+	* Get the index of a block within its file
+	*/
+	public static int index(String blockName) {
+		int separator = blockName.lastIndexOf(SEPARATOR);
+		return separator < 0 ? 0 : Integer.parseInt(blockName.substring(separator + 1));
+	}
+
+	/**
+	* Get the number of blocks a file of size bytes is split into. Every file has at least one block.
+	*/
+	public static int count(long size, long blockSize) {
+		return (int) Math.max(1, (size + blockSize - 1) / blockSize);
+	}
+
+	/**
+	* Every block of a file version is stored under the version number the Master gave the PUT, and a block only gets
+	* a new version from PUTs that were large enough to include it. Work out the latest version of a block.
+	*
+	* @param history: List<Integer> block count of every version of the file, oldest first
+	* @param numbers: List<Integer> version number of every version of the file, oldest first
+	* @param index: int index of the block
+	* @return the version number of the newest version of the file that has the block, or 0 if none has it
+	*/
+	public static int latest(List<Integer> history, List<Integer> numbers, int index) {
+		for(int i = Math.min(history.size(), numbers.size()) - 1; i >= 0; i--) {
+			if(history.get(i) > index) {
+				return numbers.get(i);
+			}
+		}
+		return 0;
+	}
+}
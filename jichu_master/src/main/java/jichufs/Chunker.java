@@ -0,0 +1,122 @@
+package jichufs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+* Content-defined chunking. Data is cut wherever a Gear rolling hash of the last bytes matches a mask, so an edit only
+* changes the chunks around it and the rest of the file still splits into the same chunks, which can then be stored and
+* sent once no matter how many versions or files contain them. Chunks are between a quarter and four times the average
+* size and are identified by their SHA-256. The Gear table is fixed so every node cuts the same data the same way.
+*/
+public class Chunker {
+
+	public static final int HASH_SIZE = 32;
+
+	private static final long[] GEAR = new long[256];
+
+	static {
+		Random random = new Random(0x6a09e667f3bcc908L);
+		for(int i = 0; i < GEAR.length; i++) {
+			GEAR[i] = random.nextLong();
+		}
+	}
+
+	private final int minSize;
+	private final int maxSize;
+	private final long mask;
+
+	/**
+	* A chunk of the data: where it is and its SHA-256
+	*/
+	public static class Chunk {
+		private final byte[] hash;
+		private final long offset;
+		private final int length;
+
+		Chunk(byte[] hash, long offset, int length) {
+			this.hash = hash;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		public byte[] getHash() {
+			return hash;
+		}
+
+		public long getOffset() {
+			return offset;
+		}
+
+		public int getLength() {
+			return length;
+		}
+	}
+
+	/**
+	* @param averageSize: int average chunk size, rounded down to a power of two
+	*/
+	public Chunker(int averageSize) {
+		int bits = 31 - Integer.numberOfLeadingZeros(Math.max(averageSize, 64));
+		this.minSize = (1 << bits) / 4;
+		this.maxSize = (1 << bits) * 4;
+		// Gear hash bits depend on more of the window the higher they are, so match on the top bits
+		this.mask = ((1L << bits) - 1) << (64 - bits);
+	}
+
+	/**
+	* Split length bytes of source starting at offset into chunks
+	*
+	* @return the chunks in order, their offsets being positions in source
+	*/
+	public List<Chunk> split(FileChannel source, long offset, long length) throws IOException {
+		List<Chunk> chunks = new ArrayList<Chunk>();
+		MessageDigest digest = sha256();
+		ByteBuffer buffer = ByteBuffer.allocate(FileTransfer.BUFFER_SIZE);
+		long position = offset;
+		long end = offset + length;
+		long start = offset;
+		long hash = 0;
+		while(position < end) {
+			buffer.clear();
+			buffer.limit((int) Math.min(buffer.capacity(), end - position));
+			int read = source.read(buffer, position);
+			if(read < 0) {
+				throw new IOException("Data ended " + (end - position) + " bytes early while chunking");
+			}
+			byte[] bytes = buffer.array();
+			int from = 0;
+			for(int i = 0; i < read; i++) {
+				hash = (hash << 1) + GEAR[bytes[i] & 0xff];
+				long size = position + i + 1 - start;
+				if((size >= minSize && (hash & mask) == 0) || size >= maxSize) {
+					digest.update(bytes, from, i + 1 - from);
+					chunks.add(new Chunk(digest.digest(), start, (int) size));
+					start = position + i + 1;
+					from = i + 1;
+					hash = 0;
+				}
+			}
+			digest.update(bytes, from, read - from);
+			position += read;
+		}
+		if(start < end) {
+			chunks.add(new Chunk(digest.digest(), start, (int) (end - start)));
+		}
+		return chunks;
+	}
+
+	public static MessageDigest sha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch(NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
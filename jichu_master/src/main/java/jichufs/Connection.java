@@ -0,0 +1,98 @@
+package jichufs;
+
+import lombok.Getter;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+* State for a single TCP connection on the data, master or election port: the socket, its channel (if any) and streams.
+* Handlers receive one of these per request instead of sharing socket fields, so connections can be served concurrently.
+* Connections are kept alive between requests and reused through the ConnectionPool.
+*/
+@Getter
+public class Connection implements Closeable {
+
+	private final Socket socket;
+	private final SocketChannel channel;
+	private final DataInputStream in;
+	private final DataOutputStream out;
+	private final String key; // ConnectionPool key this connection was opened under, null on the accepting side
+	private volatile long lastUsed;
+
+	public Connection(Socket socket) throws IOException {
+		this(socket, null);
+	}
+
+	public Connection(Socket socket, String key) throws IOException {
+		this.socket = socket;
+		this.channel = socket.getChannel();
+		this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		this.out = new DataOutputStream(socket.getOutputStream());
+		this.key = key;
+		this.lastUsed = System.currentTimeMillis();
+	}
+
+	/**
+	* Open a connection to address on port. Opened through a SocketChannel so file sends can use transferTo.
+	*
+	* @param address: InetAddress of the member to connect to
+	* @param port: int port to connect to
+	* @param key: String pool key the connection will be returned under
+	*/
+	public static Connection open(InetAddress address, int port, String key) throws IOException {
+		SocketChannel channel = SocketChannel.open(new InetSocketAddress(address, port));
+		channel.socket().setTcpNoDelay(true);
+		return new Connection(channel.socket(), key);
+	}
+
+	public void touch() {
+		lastUsed = System.currentTimeMillis();
+	}
+
+	public boolean isIdleFor(long millis) {
+		return System.currentTimeMillis() - lastUsed > millis;
+	}
+
+	public boolean isOpen() {
+		return !socket.isClosed();
+	}
+
+	/**
+	* Whether the other end closed the connection, or sent something no request asked for, while it sat idle.
+	* Checked without blocking before an idle connection is reused, as writing to it would only fail later.
+	*/
+	public boolean isStale() {
+		if(channel == null) {
+			return false;
+		}
+		try {
+			if(in.available() > 0) {
+				return true;
+			}
+			synchronized(channel.blockingLock()) {
+				channel.configureBlocking(false);
+				try {
+					return channel.read(ByteBuffer.allocate(1)) != 0;
+				} finally {
+					channel.configureBlocking(true);
+				}
+			}
+		} catch(IOException e) {
+			return true;
+		}
+	}
+
+	@Override
+	public void close() {
+		try {
+			socket.close();
+		} catch(IOException e) {
+			System.out.println("Failed closing connection..." + e);
+		}
+	}
+}
@@ -0,0 +1,163 @@
+package jichufs;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+* Long-lived TCP connections to other members, shared by the master, data, replication and election planes.
+* Idle connections are kept per member host and port and reused, and member addresses are resolved once.
+* A connection carries one request at a time; concurrency to a member comes from holding several of them.
+* Requests that expect a reply go through request, which retries once on a new connection if a reused one cannot be written to.
+* Requests are tagged with ids from nextRequestId so both ends can correlate them in the logs.
+*/
+@Component
+@Slf4j
+public class ConnectionPool {
+
+	@Value("${poolMaxIdle:4}")
+	private int maxIdle;
+	@Value("${poolIdleTimeout:30}")
+	private int idleTimeout; // seconds, kept below connectionIdleTimeout so the server never closes a connection we hand out
+
+	private final ConcurrentHashMap<String, InetAddress> addresses = new ConcurrentHashMap<String, InetAddress>();
+	private final ConcurrentHashMap<String, Deque<Connection>> idle = new ConcurrentHashMap<String, Deque<Connection>>();
+	private final AtomicLong nextRequestId = new AtomicLong();
+
+	private static String host(String id) {
+		return id.split(":")[0];
+	}
+
+	/**
+	* Get a connection to the member with the given id on port, reusing an idle one if there is one
+	*
+	* @param id: String member id of the form <ip>:<timestamp>
+	* @param port: int port to connect to
+	*/
+	public Connection acquire(String id, int port) throws IOException {
+		String key = host(id) + ":" + port;
+		Connection connection = pooled(key);
+		return connection != null ? connection : Connection.open(resolve(host(id)), port, key);
+	}
+
+	/**
+	* Send a request to the member with the given id on port.
+	* Idle connections the member closed are dropped before reuse. The request is only sent again on a new connection
+	* if writing it to a reused connection fails. Once it is written it may have been acted on, so any later failure
+	* is left to the caller, which knows whether the request is safe to repeat.
+	*
+	* @param request: byte[] request, written preceded by its length
+	* @return the Connection to read the reply from, which the caller releases or invalidates once done
+	*/
+	public Connection request(String id, int port, byte[] request) throws IOException {
+		String key = host(id) + ":" + port;
+		Connection connection = pooled(key);
+		if(connection != null) {
+			try {
+				send(connection, request);
+				return connection;
+			} catch(IOException e) {
+				log.debug("Kept-alive connection to " + key + " was closed, retrying on a new one..." + e);
+				connection.close();
+			}
+		}
+		connection = Connection.open(resolve(host(id)), port, key);
+		try {
+			send(connection, request);
+			return connection;
+		} catch(IOException e) {
+			connection.close();
+			throw e;
+		}
+	}
+
+	private static void send(Connection connection, byte[] request) throws IOException {
+		connection.getOut().writeInt(request.length);
+		connection.getOut().write(request);
+		connection.getOut().flush();
+	}
+
+	/**
+	* Take an idle connection under key that is still open at both ends and was used recently enough, or null if there is none
+	*/
+	private Connection pooled(String key) {
+		Deque<Connection> connections = idle.get(key);
+		if(connections == null) {
+			return null;
+		}
+		Connection connection;
+		while((connection = connections.pollFirst()) != null) {
+			if(connection.isOpen() && !connection.isIdleFor(idleTimeout * 1000L) && !connection.isStale()) {
+				return connection;
+			}
+			connection.close();
+		}
+		return null;
+	}
+
+	/**
+	* Return a connection whose last request completed cleanly so it can be reused
+	*/
+	public void release(Connection connection) {
+		if(connection == null) {
+			return;
+		}
+		if(!connection.isOpen() || connection.getKey() == null) {
+			connection.close();
+			return;
+		}
+		connection.touch();
+		Deque<Connection> connections = idle.computeIfAbsent(connection.getKey(), key -> new ConcurrentLinkedDeque<Connection>());
+		if(connections.size() < maxIdle) {
+			connections.offerFirst(connection);
+		} else {
+			connection.close();
+		}
+	}
+
+	/**
+	* Drop a connection that failed or was left mid-request
+	*/
+	public void invalidate(Connection connection) {
+		if(connection != null) {
+			connection.close();
+		}
+	}
+
+	/**
+	* Close every idle connection to a member, used once it has failed or left
+	*/
+	public void evict(String id) {
+		String prefix = host(id) + ":";
+		idle.forEach((key, connections) -> {
+			if(key.startsWith(prefix)) {
+				Connection connection;
+				while((connection = connections.pollFirst()) != null) {
+					connection.close();
+				}
+			}
+		});
+		addresses.remove(host(id));
+	}
+
+	public long nextRequestId() {
+		return nextRequestId.incrementAndGet();
+	}
+
+	private InetAddress resolve(String host) throws UnknownHostException {
+		InetAddress address = addresses.get(host);
+		if(address == null) {
+			address = InetAddress.getByName(host);
+			addresses.put(host, address);
+		}
+		return address;
+	}
+}
@@ -16,7 +16,10 @@ import java.io.ObjectOutputStream;
 import java.net.ServerSocket;
 import java.time.Instant;
 import java.util.stream.Collectors;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.nio.channels.ServerSocketChannel;
 import java.io.*;
 
 import java.util.*;
@@ -32,11 +35,12 @@ public class Election implements Runnable {
 
     // Use TCP for the election protocol
 	private final ServerSocket serverSocket;
-    private Socket socket;
-    private DataInputStream in;
-    private DataOutputStream out;
+    private final ExecutorService handler;
+    private final IdleSelector idleConnections;
 	@Autowired
     private MembershipList membershipList;
+    @Autowired
+    private ConnectionPool connectionPool;
     @Value("${electionPort}")
     private int port;
 
@@ -50,10 +54,15 @@ public class Election implements Runnable {
     private boolean hasSent = false;
     private AtomicBoolean electionRunning;
 
-    public Election(@Value("${electionPort}") int port) throws Exception {
+    public Election(@Value("${electionPort}") int port, @Value("${connectionIdleTimeout:60}") int idleTimeout) throws Exception {
 
             // Communications between Master and Replicas uses TCP. 
-            this.serverSocket = new ServerSocket(port);
+            // Messages are handled one at a time, neighbours keep their connection open between messages.
+            ServerSocketChannel channel = ServerSocketChannel.open();
+            channel.socket().bind(new InetSocketAddress(port));
+            this.serverSocket = channel.socket();
+            this.handler = Executors.newSingleThreadExecutor();
+            this.idleConnections = new IdleSelector(handler, this::serve, idleTimeout * 1000L);
             this.current = "";
             this.highestSeen = "";
             this.electionRunning = new AtomicBoolean(false);
@@ -67,15 +76,17 @@ public class Election implements Runnable {
             // Get the neighbor of the current node.
             Member neighbor = membershipList.getNextNEntries(1).get(0);
             
+            Connection connection = null;
             try {
-                socket = new Socket(InetAddress.getByName(neighbor.getId().split(":")[0]), port);
-                in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
-                out = new DataOutputStream(socket.getOutputStream());
-                out.writeInt(message.length);
-                out.write(message);
+                connection = connectionPool.acquire(neighbor.getId(), port);
+                connection.getOut().writeInt(message.length);
+                connection.getOut().write(message);
+                connection.getOut().flush();
+                connectionPool.release(connection);
                 sent = true;
             } catch (Exception e) {
                 System.out.println("Connction refused " + e);
+                connectionPool.invalidate(connection);
             }
         }
 
@@ -158,6 +169,29 @@ public class Election implements Runnable {
         }
     }
 
+    /*
+     * Read one election message off of connection and handle it, then wait
+     * for the next message on the same connection.
+     */
+    private void serve(Connection connection) {
+        ElectionMessage m;
+        try {
+            byte[] buffer = new byte[connection.getIn().readInt()];
+            connection.getIn().readFully(buffer);
+            m = ElectionMessage.parseFrom(buffer);
+        } catch (IOException e) {
+            connection.close();
+            return;
+        }
+        try {
+            electionRunning.set(true);
+            this.handle(m);
+        } catch (final Exception e) {
+            e.printStackTrace();
+        }
+        idleConnections.park(connection);
+    }
+
      /*
      * When the Election Thread is initialized, open a port and listen 
      * for new requests.
@@ -166,30 +200,21 @@ public class Election implements Runnable {
     @Override
     public void run() {
         log.debug("ElectionThread is listening for events.");
+        Thread idleThread = new Thread(idleConnections);
+        idleThread.setDaemon(true);
+        idleThread.start();
 
         while (true) {
-           
-            byte[] buffer;
-            int length;
             try {
-                socket = serverSocket.accept();
-                in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
-                out = new DataOutputStream(socket.getOutputStream());
-
-                //TODO: Indicate that we are in election mode.
-                length = in.readInt();
-                buffer = new byte[length];
-                in.readFully(buffer);
-                ElectionMessage m = ElectionMessage.parseFrom(buffer);
-                electionRunning.set(true);
-                shutdownConnection();
-                this.handle(m);
+                Connection connection = new Connection(serverSocket.accept());
+                handler.execute(() -> serve(connection));
             } catch (SocketException s) {
                 log.debug("Sucessfully exited the Election thread.");
+                handler.shutdown();
                 return;
             } catch (final Exception e) {
                 e.printStackTrace();
             }
         }
     }	
-}
\ No newline at end of file
+}
@@ -0,0 +1,119 @@
+package jichufs;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import lombok.Getter;
+import org.apache.commons.io.FileUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+* Client side cache used by the QueryWorker for GETs.
+* Holds copies of files read from replicas spilled to the "cache" directory, bounded by their total size and evicted
+* least recently used first. Replica locations are not cached: they carry the version the Master committed last, which
+* every GET is pinned to, so they are looked up again for every GET that is not served from a fresh cached copy.
+* A cached copy remembers the version the Master committed it as, so the next GET only has to ask the Master whether
+* it is still current. GETs hard-link the local file to the cached copy instead of writing it twice, so a copy whose
+* file was changed through the local file since is no longer used.
+*/
+@Component
+public class FileCache {
+
+	private static final String CACHE_DIR = "cache";
+
+	private final Cache<String, CachedFile> files;
+	private final AtomicLong nextFile;
+	private final long freshness;
+
+	@Getter
+	public static class CachedFile {
+		private final int version;
+		private final File file;
+		private final long length;
+		private final long lastModified;
+		private volatile long validatedAt;
+
+		public CachedFile(int version, File file) {
+			this.version = version;
+			this.file = file;
+			this.length = file.length();
+			this.lastModified = file.lastModified();
+			this.validatedAt = System.currentTimeMillis();
+		}
+
+		/**
+		* Whether the file still holds what was cached, and was not changed or deleted since
+		*/
+		public boolean isIntact() {
+			return file.length() == length && file.lastModified() == lastModified;
+		}
+
+		public void validated() {
+			validatedAt = System.currentTimeMillis();
+		}
+
+		public boolean isFresh(long freshnessMillis) {
+			return System.currentTimeMillis() - validatedAt <= freshnessMillis;
+		}
+	}
+
+	public FileCache(@Value("${cacheMaxBytes:268435456}") long maxBytes,
+					 @Value("${cacheFreshness:0}") int freshness) throws IOException {
+		// The index only lives in memory so anything left over from a previous run is unusable
+		File dir = new File(CACHE_DIR);
+		if(dir.exists()) {
+			FileUtils.deleteDirectory(dir);
+		}
+		dir.mkdir();
+		RemovalListener<String, CachedFile> deleteEvicted = removal -> FileUtils.deleteQuietly(removal.getValue().getFile());
+		// A single segment, as Guava splits the weight limit between segments and would evict large files right away
+		this.files = CacheBuilder.newBuilder()
+			.concurrencyLevel(1)
+			.maximumWeight(maxBytes)
+			.weigher((String name, CachedFile cached) -> (int) Math.min(Integer.MAX_VALUE, cached.getFile().length()))
+			.removalListener(deleteEvicted)
+			.build();
+		this.nextFile = new AtomicLong();
+		this.freshness = freshness * 1000L;
+	}
+
+	/**
+	* Get the cached copy of sdfsName, or null if there is none
+	*/
+	public CachedFile getFile(String sdfsName) {
+		return files.getIfPresent(sdfsName);
+	}
+
+	/**
+	* Whether cached can be used without asking the Master if it is still the latest version
+	*/
+	public boolean isFresh(CachedFile cached) {
+		return cached.isFresh(freshness);
+	}
+
+	/**
+	* Get a new file in the cache directory to download sdfsName into before it is added with putFile
+	*/
+	public File newFile(String sdfsName) {
+		return new File(CACHE_DIR, sdfsName.replace(File.separatorChar, '_') + "." + nextFile.incrementAndGet());
+	}
+
+	/**
+	* Cache file as version of sdfsName, replacing (and deleting) any older copy
+	*/
+	public void putFile(String sdfsName, int version, File file) {
+		files.put(sdfsName, new CachedFile(version, file));
+	}
+
+	/**
+	* Drop everything cached about sdfsName, used when this host changes or deletes it
+	*/
+	public void invalidate(String sdfsName) {
+		files.invalidate(sdfsName);
+	}
+}
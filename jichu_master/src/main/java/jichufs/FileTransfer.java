@@ -0,0 +1,493 @@
+package jichufs;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+* Chunked framing used on the data transfer port for moving file contents between nodes.
+* A transfer is the total length as a long followed by frames of at most FRAME_SIZE bytes,
+* each prefixed by its length as an int. Data is streamed through a fixed buffer, so memory use
+* per transfer is constant no matter how large the file is. When the connection has a SocketChannel,
+* file frames are sent with FileChannel.transferTo so the kernel copies them straight from the page cache.
+*/
+public class FileTransfer {
+
+	public static final int FRAME_SIZE = 1 << 20;
+	public static final int BUFFER_SIZE = 64 * 1024;
+
+	private FileTransfer() {}
+
+	/**
+	* Stream the contents of file over out
+	*
+	* @param file: File to be sent
+	* @param out: DataOutputStream of the connection to send the file over
+	* @return the number of bytes sent
+	*/
+	public static long sendFile(File file, DataOutputStream out) throws IOException {
+		try(InputStream source = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE)) {
+			return send(source, file.length(), out);
+		}
+	}
+
+	/**
+	* Stream the contents of file over a connection, using zero-copy transferTo when channel is available.
+	* The frame headers are written through out, which must be unbuffered or flushed before the payload.
+	*
+	* @param file: File to be sent
+	* @param out: DataOutputStream of the connection to send the file over
+	* @param channel: SocketChannel backing out, or null to fall back to a buffered copy
+	* @return the number of bytes sent
+	*/
+	public static long sendFile(File file, DataOutputStream out, SocketChannel channel) throws IOException {
+		return sendRange(file, 0, Long.MAX_VALUE, out, channel, null);
+	}
+
+	/**
+	* Same as sendFile, but wait on throttle before every frame, for background transfers that must not take up
+	* more than their share of the node's bandwidth
+	*
+	* @param throttle: TokenBucket limiting the transfer, or null for no limit
+	*/
+	public static long sendFile(File file, DataOutputStream out, SocketChannel channel, TokenBucket throttle) throws IOException {
+		return sendRange(file, 0, Long.MAX_VALUE, out, channel, throttle);
+	}
+
+	/**
+	* Stream up to length bytes of file starting at offset over a connection, as a transfer of its own.
+	* The range is clipped to the end of the file, so the transfer may be shorter than length.
+	*
+	* @param file: File to be sent
+	* @param offset: long position in file to start from
+	* @param length: long maximum number of bytes to send
+	* @param out: DataOutputStream of the connection to send the range over
+	* @param channel: SocketChannel backing out, or null to fall back to a buffered copy
+	* @return the number of bytes sent
+	*/
+	public static long sendRange(File file, long offset, long length, DataOutputStream out, SocketChannel channel) throws IOException {
+		return sendRange(file, offset, length, out, channel, null);
+	}
+
+	/**
+	* Same as sendRange, but wait on throttle before every frame
+	*
+	* @param throttle: TokenBucket limiting the transfer, or null for no limit
+	*/
+	public static long sendRange(File file, long offset, long length, DataOutputStream out, SocketChannel channel, TokenBucket throttle) throws IOException {
+		try(FileChannel source = new FileInputStream(file).getChannel()) {
+			return sendRange(source, offset, length, out, channel, throttle);
+		}
+	}
+
+	/**
+	* Same as sendRange on a file, but from a FileChannel that stays open and may be shared with other transfers.
+	* Only positioned reads are made, so the channel's own position is left untouched.
+	*
+	* @param source: FileChannel to read the range from
+	* @param throttle: TokenBucket limiting the transfer, or null for no limit
+	*/
+	public static long sendRange(FileChannel source, long offset, long length, DataOutputStream out, SocketChannel channel, TokenBucket throttle) throws IOException {
+		long start = Math.min(offset, source.size());
+		long count = Math.min(length, source.size() - start);
+		return sendRanges(new FileChannel[] {source}, new long[] {start}, new long[] {count}, out, channel, throttle);
+	}
+
+	/**
+	* Stream several ranges, possibly of different channels, over a connection as one transfer, e.g. the chunks a
+	* version is made of. Only positioned reads are made, so the channels' own positions are left untouched.
+	*
+	* @param sources: FileChannel[] to read each range from
+	* @param positions: long[] position in its channel of each range
+	* @param lengths: long[] length of each range
+	* @param throttle: TokenBucket limiting the transfer, or null for no limit
+	* @return the number of bytes sent
+	*/
+	public static long sendRanges(FileChannel[] sources, long[] positions, long[] lengths, DataOutputStream out, SocketChannel channel, TokenBucket throttle) throws IOException {
+		long count = 0;
+		for(long length : lengths) {
+			count += length;
+		}
+		if(channel == null || !channel.isBlocking()) {
+			List<InputStream> inputs = new ArrayList<InputStream>();
+			for(int i = 0; i < sources.length; i++) {
+				inputs.add(new PositionedInput(sources[i], positions[i], lengths[i]));
+			}
+			return send(new BufferedInputStream(new SequenceInputStream(Collections.enumeration(inputs)), BUFFER_SIZE), count, out, throttle);
+		}
+		out.writeLong(count);
+		int range = 0;
+		long done = 0; // bytes of the current range sent
+		long remaining = count;
+		while(remaining > 0) {
+			int frame = (int) Math.min(FRAME_SIZE, remaining);
+			if(throttle != null) {
+				throttle.acquire(frame);
+			}
+			out.writeInt(frame);
+			out.flush();
+			long left = frame;
+			while(left > 0) {
+				if(done == lengths[range]) {
+					range++;
+					done = 0;
+					continue;
+				}
+				long sent = sources[range].transferTo(positions[range] + done, Math.min(left, lengths[range] - done), channel);
+				if(sent <= 0 && positions[range] + done >= sources[range].size()) {
+					throw new EOFException("File was truncated during transfer");
+				}
+				done += sent;
+				left -= sent;
+			}
+			remaining -= frame;
+		}
+		out.flush();
+		return count;
+	}
+
+	/**
+	* Stream length bytes read from source over out as a sequence of frames
+	*/
+	public static long send(InputStream source, long length, DataOutputStream out) throws IOException {
+		return send(source, length, out, null);
+	}
+
+	private static long send(InputStream source, long length, DataOutputStream out, TokenBucket throttle) throws IOException {
+		byte[] buffer = new byte[BUFFER_SIZE];
+		out.writeLong(length);
+		long remaining = length;
+		while(remaining > 0) {
+			int frame = (int) Math.min(FRAME_SIZE, remaining);
+			if(throttle != null) {
+				throttle.acquire(frame);
+			}
+			out.writeInt(frame);
+			copy(source, out, frame, buffer);
+			remaining -= frame;
+		}
+		out.flush();
+		return length;
+	}
+
+	/**
+	* Receive a framed transfer from in and write it to file, replacing any previous contents
+	*
+	* @param in: DataInputStream of the connection the file is arriving on
+	* @param file: File the contents will be written to
+	* @return the number of bytes received
+	*/
+	public static long receiveFile(DataInputStream in, File file) throws IOException {
+		try(OutputStream sink = new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE)) {
+			return receive(in, sink);
+		}
+	}
+
+	/**
+	* Receive a framed transfer from in and write its contents to sink
+	*/
+	public static long receive(DataInputStream in, OutputStream sink) throws IOException {
+		byte[] buffer = new byte[BUFFER_SIZE];
+		long length = in.readLong();
+		if(length < 0) {
+			throw new IOException("Invalid transfer length " + length);
+		}
+		long remaining = length;
+		while(remaining > 0) {
+			int frame = in.readInt();
+			if(frame <= 0 || frame > FRAME_SIZE || frame > remaining) {
+				throw new IOException("Invalid frame length " + frame + " with " + remaining + " bytes remaining");
+			}
+			copy(in, sink, frame, buffer);
+			remaining -= frame;
+		}
+		return length;
+	}
+
+	/**
+	* Receive a framed transfer from in and write it into file starting at position, leaving the rest of the file alone.
+	* Used to reassemble a file from ranges fetched concurrently.
+	*
+	* @param in: DataInputStream of the connection the range is arriving on
+	* @param file: FileChannel of the file being reassembled
+	* @param position: long position in file the range starts at
+	* @return the number of bytes received
+	*/
+	public static long receiveRange(DataInputStream in, FileChannel file, long position) throws IOException {
+		return receiveRange(in, file, position, new AtomicLong());
+	}
+
+	/**
+	* Like receiveRange, but count every byte written into file in received as it arrives. If the connection drops
+	* part way, received tells how much of the range is in place so the rest can be fetched from position + received.
+	*/
+	public static long receiveRange(DataInputStream in, FileChannel file, long position, AtomicLong received) throws IOException {
+		byte[] buffer = new byte[BUFFER_SIZE];
+		ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+		long length = in.readLong();
+		if(length < 0) {
+			throw new IOException("Invalid transfer length " + length);
+		}
+		long remaining = length;
+		while(remaining > 0) {
+			int frame = in.readInt();
+			if(frame <= 0 || frame > FRAME_SIZE || frame > remaining) {
+				throw new IOException("Invalid frame length " + frame + " with " + remaining + " bytes remaining");
+			}
+			int count = frame;
+			while(count > 0) {
+				int read = in.read(buffer, 0, Math.min(buffer.length, count));
+				if(read < 0) {
+					throw new EOFException("Transfer ended with " + count + " bytes left in frame");
+				}
+				wrapped.clear().limit(read);
+				while(wrapped.hasRemaining()) {
+					position += file.write(wrapped, position);
+				}
+				received.addAndGet(read);
+				count -= read;
+			}
+			remaining -= frame;
+		}
+		return length;
+	}
+
+	/**
+	* Receive a framed transfer from in, writing it to file while relaying the same frames to the next replica in a pipeline.
+	* A failure on the relay does not interrupt the local write; relaying just stops for the rest of the transfer.
+	*
+	* @param in: DataInputStream of the connection the file is arriving on
+	* @param file: File the contents will be written to
+	* @param forward: DataOutputStream of the downstream replica, or null if this is the end of the pipeline
+	* @return true if every frame was also relayed to forward
+	*/
+	public static boolean relayFile(DataInputStream in, File file, DataOutputStream forward) throws IOException {
+		return relayFile(in, file, forward, null);
+	}
+
+	/**
+	* Same as relayFile, but wait on throttle before relaying every frame, for background transfers passing through
+	*
+	* @param throttle: TokenBucket limiting the relay, or null for no limit
+	*/
+	public static boolean relayFile(DataInputStream in, File file, DataOutputStream forward, TokenBucket throttle) throws IOException {
+		try(OutputStream sink = new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE)) {
+			return relay(in, sink, forward, throttle);
+		}
+	}
+
+	/**
+	* Like relayFile, but write the transfer into file starting at position, leaving the rest of the file alone.
+	* Used by multipart uploads, where every part of a block is written into the same staged file.
+	*
+	* @param in: DataInputStream of the connection the part is arriving on
+	* @param file: FileChannel of the staged file, left open
+	* @param position: long position in file the part starts at
+	* @param forward: DataOutputStream of the downstream replica, or null if this is the end of the pipeline
+	* @return true if every frame was also relayed to forward
+	*/
+	public static boolean relayRange(DataInputStream in, FileChannel file, long position, DataOutputStream forward) throws IOException {
+		file.position(position);
+		return relay(in, new BufferedOutputStream(Channels.newOutputStream(file), BUFFER_SIZE), forward, null);
+	}
+
+	/**
+	* Like relayFile, for a transfer made of parts sent back to back, relaying only some of them. Used by chunked PUTs,
+	* where each replica receives the chunks it or any replica after it is missing but passes on only the ones those asked for.
+	*
+	* @param in: DataInputStream of the connection the parts are arriving on
+	* @param file: File every part is written to
+	* @param forward: DataOutputStream of the downstream replica, or null if this is the end of the pipeline
+	* @param parts: long[] length of every part, in the order they arrive
+	* @param relayed: boolean[] whether each part is relayed to forward
+	* @param throttle: TokenBucket limiting the relay, or null for no limit
+	* @return true if every part meant for forward was relayed to it
+	*/
+	public static boolean relayParts(DataInputStream in, File file, DataOutputStream forward, long[] parts, boolean[] relayed,
+									 TokenBucket throttle) throws IOException {
+		long total = 0;
+		long kept = 0;
+		for(int i = 0; i < parts.length; i++) {
+			total += parts[i];
+			if(relayed[i]) {
+				kept += parts[i];
+			}
+		}
+		try(OutputStream sink = new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE)) {
+			Relay relay = new Relay(forward);
+			byte[] buffer = new byte[BUFFER_SIZE];
+			long length = in.readLong();
+			if(length != total) {
+				throw new IOException("Transfer length " + length + " does not match its parts, " + total + " bytes");
+			}
+			relay.writeLong(kept);
+			int part = 0;
+			long left = 0;
+			long remaining = length;
+			while(remaining > 0) {
+				int frame = in.readInt();
+				if(frame <= 0 || frame > FRAME_SIZE || frame > remaining) {
+					throw new IOException("Invalid frame length " + frame + " with " + remaining + " bytes remaining");
+				}
+				int count = frame;
+				while(count > 0) {
+					while(left == 0) {
+						left = parts[part++];
+					}
+					int read = in.read(buffer, 0, (int) Math.min(Math.min(buffer.length, count), left));
+					if(read < 0) {
+						throw new EOFException("Transfer ended with " + count + " bytes left in frame");
+					}
+					sink.write(buffer, 0, read);
+					// Reframed, since a frame coming in may hold the end of one part and the start of the next
+					if(relayed[part - 1]) {
+						if(throttle != null && relay.isHealthy()) {
+							throttle.acquire(read);
+						}
+						relay.writeInt(read);
+						relay.write(buffer, read);
+					}
+					count -= read;
+					left -= read;
+				}
+				remaining -= frame;
+			}
+			sink.flush();
+			relay.flush();
+			return forward != null && relay.isHealthy();
+		}
+	}
+
+	private static boolean relay(DataInputStream in, OutputStream sink, DataOutputStream forward, TokenBucket throttle) throws IOException {
+		Relay relay = new Relay(forward);
+		byte[] buffer = new byte[BUFFER_SIZE];
+		long length = in.readLong();
+		if(length < 0) {
+			throw new IOException("Invalid transfer length " + length);
+		}
+		relay.writeLong(length);
+		long remaining = length;
+		while(remaining > 0) {
+			int frame = in.readInt();
+			if(frame <= 0 || frame > FRAME_SIZE || frame > remaining) {
+				throw new IOException("Invalid frame length " + frame + " with " + remaining + " bytes remaining");
+			}
+			if(throttle != null && relay.isHealthy()) {
+				throttle.acquire(frame);
+			}
+			relay.writeInt(frame);
+			int count = frame;
+			while(count > 0) {
+				int read = in.read(buffer, 0, Math.min(buffer.length, count));
+				if(read < 0) {
+					throw new EOFException("Transfer ended with " + count + " bytes left in frame");
+				}
+				sink.write(buffer, 0, read);
+				relay.write(buffer, read);
+				count -= read;
+			}
+			remaining -= frame;
+		}
+		sink.flush();
+		relay.flush();
+		return forward != null && relay.isHealthy();
+	}
+
+	/**
+	* Downstream side of a pipeline. Swallows the first write failure and drops every write after it.
+	*/
+	private static class Relay {
+		private DataOutputStream out;
+
+		Relay(DataOutputStream out) {
+			this.out = out;
+		}
+
+		boolean isHealthy() {
+			return out != null;
+		}
+
+		void writeLong(long value) {
+			try {
+				if(out != null) out.writeLong(value);
+			} catch(IOException e) {
+				out = null;
+			}
+		}
+
+		void writeInt(int value) {
+			try {
+				if(out != null) out.writeInt(value);
+			} catch(IOException e) {
+				out = null;
+			}
+		}
+
+		void write(byte[] buffer, int count) {
+			try {
+				if(out != null) out.write(buffer, 0, count);
+			} catch(IOException e) {
+				out = null;
+			}
+		}
+
+		void flush() {
+			try {
+				if(out != null) out.flush();
+			} catch(IOException e) {
+				out = null;
+			}
+		}
+	}
+
+	/**
+	* Reads a range of a FileChannel from a position of its own, so several readers can share the channel
+	*/
+	private static class PositionedInput extends InputStream {
+		private final FileChannel source;
+		private long position;
+		private long remaining;
+
+		PositionedInput(FileChannel source, long position, long length) {
+			this.source = source;
+			this.position = position;
+			this.remaining = length;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] one = new byte[1];
+			return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int count) throws IOException {
+			if(remaining <= 0) {
+				return -1;
+			}
+			int read = source.read(ByteBuffer.wrap(buffer, offset, (int) Math.min(count, remaining)), position);
+			if(read > 0) {
+				position += read;
+				remaining -= read;
+			}
+			return read;
+		}
+	}
+
+	private static void copy(InputStream from, OutputStream to, int count, byte[] buffer) throws IOException {
+		while(count > 0) {
+			int read = from.read(buffer, 0, Math.min(buffer.length, count));
+			if(read < 0) {
+				throw new EOFException("Transfer ended with " + count + " bytes left in frame");
+			}
+			to.write(buffer, 0, read);
+			count -= read;
+		}
+	}
+}
@@ -0,0 +1,102 @@
+package jichufs;
+
+import lombok.Getter;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static jichufs.FSMessages.RequestMessage;
+
+/**
+* A GET sent to a single replica, run up to the point where the replica has answered with its ack (and version).
+* The QueryWorker can run two of these against different replicas to hedge a slow read, stream the file from
+* whichever answers first and cancel the other, which closes its connection.
+*/
+@Getter
+public class GetAttempt implements Callable<GetAttempt> {
+
+	private final ConnectionPool connectionPool;
+	private final LatencyTracker latencyTracker;
+	private final String replicaId;
+	private final int port;
+	private final RequestMessage request;
+	private final long startedAt;
+	private final AtomicBoolean finished;
+	private volatile Connection connection;
+	private volatile boolean cancelled;
+	private volatile boolean answered;
+	private int ack;
+	private int version;
+	private long fileSize; // size of the whole file, only sent back for ranged GETs
+	private long checksum; // CRC32 of the whole file, only sent back for ranged GETs
+
+	public GetAttempt(ConnectionPool connectionPool, LatencyTracker latencyTracker, String replicaId, int port, RequestMessage request) {
+		this.connectionPool = connectionPool;
+		this.latencyTracker = latencyTracker;
+		this.replicaId = replicaId;
+		this.port = port;
+		this.request = request;
+		this.startedAt = System.nanoTime();
+		this.finished = new AtomicBoolean();
+		latencyTracker.started(replicaId);
+	}
+
+	private double elapsedMillis() {
+		return (System.nanoTime() - startedAt) / 1e6;
+	}
+
+	@Override
+	public GetAttempt call() throws IOException {
+		try {
+			connection = connectionPool.acquire(replicaId, port);
+			if(cancelled) {
+				throw new IOException("GET to " + replicaId + " cancelled");
+			}
+			byte[] message = request.toBuilder().setRequestId(connectionPool.nextRequestId()).build().toByteArray();
+			connection.getOut().writeInt(message.length);
+			connection.getOut().write(message);
+
+			// Wait for an ACK: 1 followed by the version and the file, 0 if the replica does not have the version
+			DataInputStream in = connection.getIn();
+			ack = in.readInt();
+			if(ack == 1) {
+				version = in.readInt();
+				if(request.hasLength()) {
+					fileSize = in.readLong();
+					checksum = in.readLong();
+				}
+			}
+			answered = true;
+			latencyTracker.recordResponse(replicaId, elapsedMillis());
+			return this;
+		} catch(IOException e) {
+			connectionPool.invalidate(connection);
+			finish();
+			throw e;
+		}
+	}
+
+	/**
+	* Abandon the attempt, closing its connection so a read blocked on it fails right away
+	*/
+	public void cancel() {
+		cancelled = true;
+		if(!answered && !finished.get()) {
+			// Still a useful sample: the replica took at least this long
+			latencyTracker.record(replicaId, elapsedMillis());
+		}
+		connectionPool.invalidate(connection);
+		finish();
+	}
+
+	/**
+	* Mark the attempt as no longer in flight to the replica
+	*/
+	public void finish() {
+		if(finished.compareAndSet(false, true)) {
+			latencyTracker.finished(replicaId);
+		}
+	}
+}
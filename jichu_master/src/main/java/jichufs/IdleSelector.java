@@ -0,0 +1,112 @@
+package jichufs;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
+
+/**
+* Parks kept-alive connections on a Selector between requests so an idle connection does not hold a worker thread.
+* When a parked connection has a new request waiting it is switched back to blocking mode and handed to handler
+* on workers, or served on the selector thread if workers will not take it. Connections idle for longer than the
+* timeout are closed.
+*/
+@Slf4j
+public class IdleSelector implements Runnable {
+
+	private final Selector selector;
+	private final Queue<Connection> parking;
+	private final Executor workers;
+	private final Consumer<Connection> handler;
+	private final long idleTimeoutMillis;
+
+	public IdleSelector(Executor workers, Consumer<Connection> handler, long idleTimeoutMillis) throws IOException {
+		this.selector = Selector.open();
+		this.parking = new ConcurrentLinkedQueue<Connection>();
+		this.workers = workers;
+		this.handler = handler;
+		this.idleTimeoutMillis = idleTimeoutMillis;
+	}
+
+	/**
+	* Wait for the next request on connection without tying up the calling thread
+	*/
+	public void park(Connection connection) {
+		if(!connection.isOpen() || connection.getChannel() == null) {
+			connection.close();
+			return;
+		}
+		connection.touch();
+		parking.add(connection);
+		selector.wakeup();
+	}
+
+	@Override
+	public void run() {
+		while(selector.isOpen()) {
+			try {
+				selector.select(1000);
+
+				// Pull readable connections off of the selector
+				List<Connection> ready = new ArrayList<Connection>();
+				Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+				while(selected.hasNext()) {
+					SelectionKey key = selected.next();
+					selected.remove();
+					key.cancel();
+					ready.add((Connection) key.attachment());
+				}
+
+				// Close connections the client has abandoned
+				for(SelectionKey key : selector.keys()) {
+					Connection connection = (Connection) key.attachment();
+					if(key.isValid() && connection.isIdleFor(idleTimeoutMillis)) {
+						key.cancel();
+						connection.close();
+					}
+				}
+
+				// Deregister the cancelled keys so the channels can go back to blocking mode
+				selector.selectNow();
+				for(Connection connection : ready) {
+					try {
+						connection.getChannel().configureBlocking(true);
+					} catch(IOException e) {
+						log.debug("Dropping kept-alive connection..." + e);
+						connection.close();
+						continue;
+					}
+					try {
+						workers.execute(() -> handler.accept(connection));
+					} catch(RejectedExecutionException e) {
+						// The client already sent its request, so serve it here. The other parked connections wait
+						// until it is done, which holds back new requests while the workers are saturated.
+						log.debug("Workers rejected a request, serving it on the selector thread..." + e);
+						handler.accept(connection);
+					}
+				}
+
+				Connection connection;
+				while((connection = parking.poll()) != null) {
+					try {
+						connection.getChannel().configureBlocking(false);
+						connection.getChannel().register(selector, SelectionKey.OP_READ, connection);
+					} catch(IOException e) {
+						connection.close();
+					}
+				}
+			} catch(Exception e) {
+				System.out.println("Error in idle connection selector..." + e);
+			}
+		}
+	}
+}
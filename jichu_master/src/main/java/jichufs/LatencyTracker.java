@@ -0,0 +1,165 @@
+package jichufs;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tracks how responsive every member is so reads can go to the best replica instead of a random one.
+ * Round-trip times come from the SWIM PING/ACK traffic (PingWorker records the send, Server the ACK) and from
+ * the time replicas take to answer our data requests, smoothed with an EWMA. ACKs also carry the number of requests
+ * the member's Replicant is serving, and we count the requests we have in flight to it ourselves.
+ * Recent data request response times are also kept across all members, so the QueryWorker can tell when a read is
+ * running unusually slow and should be hedged.
+ */
+@Component
+public class LatencyTracker {
+
+    private static final int RESPONSE_WINDOW = 128;
+
+    private final double alpha;
+    private final ConcurrentHashMap<String, Long> pingsSent;
+    private final ConcurrentHashMap<String, Stats> stats;
+    private final double[] responseTimes; // ring buffer of the most recent data request response times, in ms
+    private int responseCount;
+
+    private static class Stats {
+        private volatile double rttMillis = -1;
+        private volatile int load;
+        private final AtomicInteger inFlight = new AtomicInteger();
+    }
+
+    public LatencyTracker(@Value("${rttAlpha:0.2}") double alpha) {
+        this.alpha = alpha;
+        this.pingsSent = new ConcurrentHashMap<>();
+        this.stats = new ConcurrentHashMap<>();
+        this.responseTimes = new double[RESPONSE_WINDOW];
+    }
+
+    private Stats statsFor(String id) {
+        return stats.computeIfAbsent(id, key -> new Stats());
+    }
+
+    /**
+     * Record that a PING was just sent to the member with the given id
+     */
+    public void pingSent(String id) {
+        pingsSent.put(id, System.nanoTime());
+    }
+
+    /**
+     * Record the ACK for our last PING to id, along with the load the member reported in it
+     */
+    public void ackReceived(String id, int load) {
+        Long sent = pingsSent.remove(id);
+        if (sent != null) {
+            record(id, (System.nanoTime() - sent) / 1e6);
+        }
+        statsFor(id).load = load;
+    }
+
+    /**
+     * Fold a round-trip time sample into the member's moving average
+     *
+     * @param id: String member id
+     * @param rttMillis: double round-trip time in milliseconds
+     */
+    public void record(String id, double rttMillis) {
+        Stats member = statsFor(id);
+        synchronized (member) {
+            member.rttMillis = member.rttMillis < 0 ? rttMillis : alpha * rttMillis + (1 - alpha) * member.rttMillis;
+        }
+    }
+
+    /**
+     * Record how long id took to answer a data request, both for its moving average and the response time percentiles
+     */
+    public void recordResponse(String id, double millis) {
+        record(id, millis);
+        synchronized (responseTimes) {
+            responseTimes[responseCount++ % RESPONSE_WINDOW] = millis;
+        }
+    }
+
+    /**
+     * Get the given percentile of recent data request response times across all members
+     *
+     * @param percentile: double between 0 and 100
+     * @param minSamples: int number of samples needed for the result to mean anything
+     * @return the response time in ms, or -1 if there are fewer than minSamples samples
+     */
+    public double percentile(double percentile, int minSamples) {
+        double[] samples;
+        synchronized (responseTimes) {
+            samples = Arrays.copyOf(responseTimes, Math.min(responseCount, RESPONSE_WINDOW));
+        }
+        if (samples.length == 0 || samples.length < minSamples) {
+            return -1;
+        }
+        Arrays.sort(samples);
+        int index = (int) Math.ceil(percentile / 100 * samples.length) - 1;
+        return samples[Math.max(0, Math.min(samples.length - 1, index))];
+    }
+
+    public void started(String id) {
+        statsFor(id).inFlight.incrementAndGet();
+    }
+
+    public void finished(String id) {
+        statsFor(id).inFlight.decrementAndGet();
+    }
+
+    public void remove(String id) {
+        pingsSent.remove(id);
+        stats.remove(id);
+    }
+
+    public double getRtt(String id) {
+        Stats member = stats.get(id);
+        return member == null ? -1 : member.rttMillis;
+    }
+
+    /**
+     * Expected cost of sending a request to id: its smoothed RTT scaled by how many requests it is already serving.
+     * Members we have no RTT for are given the average RTT of the candidates so they are neither avoided nor preferred.
+     */
+    private double score(String id, double defaultRtt) {
+        Stats member = stats.get(id);
+        if (member == null) {
+            return defaultRtt;
+        }
+        double rtt = member.rttMillis < 0 ? defaultRtt : member.rttMillis;
+        return rtt * (1 + member.load + member.inFlight.get());
+    }
+
+    /**
+     * Order replicas from best to worst to send a request to. Replicas that score the same are shuffled to spread load.
+     *
+     * @param replicas: List<String> of candidate member ids
+     * @return a new list of the same ids, best first
+     */
+    public List<String> rank(List<String> replicas) {
+        double total = 0;
+        int known = 0;
+        for (String id : replicas) {
+            double rtt = getRtt(id);
+            if (rtt >= 0) {
+                total += rtt;
+                known++;
+            }
+        }
+        final double defaultRtt = known == 0 ? 1 : total / known;
+
+        List<String> ranked = new ArrayList<>(replicas);
+        Collections.shuffle(ranked);
+        ranked.sort(Comparator.comparingDouble(id -> score(id, defaultRtt)));
+        return ranked;
+    }
+}
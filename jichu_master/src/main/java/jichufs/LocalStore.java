@@ -0,0 +1,1191 @@
+package jichufs;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+* Replicas stored on this node. Version v of an sdfs file is kept as "<dir>/<name>:<v>", and the latest version of every
+* file is recorded in an append-only MANIFEST so the index survives a restart without copying or even listing the data.
+* A new version is fsynced and moved into place before it is logged, so the manifest never points at missing data.
+* The CRC32 of every version is worked out as it is stored and logged with it, so reads never have to compute it.
+* Every record is checksummed, and a record torn by a crash is dropped when the manifest is replayed. Once the
+* manifest holds many more records than there are files it is compacted into a snapshot.
+*
+* Versions of at most smallFileSize bytes are not given a file of their own but appended to "<dir>/segment.<n>" files of
+* up to segmentSize bytes, and their segment, offset and length are kept in memory and in the manifest. Segments stay
+* open, so reading a small version takes a single positioned read with no open, close or directory lookup.
+*
+* Larger versions are split into content-defined chunks when chunking is on. Every distinct chunk is appended to a
+* segment once, under its SHA-256, and a version is only the list of its chunks, so versions and files sharing most of
+* their data share most of their storage.
+*
+* Deleting or pruning a version only drops it from the index and leaves its bytes in the segments as garbage, along with
+* chunks no version uses any more. collect() reclaims the segments that are mostly garbage by moving what is still used
+* out of them.
+*/
+public class LocalStore {
+
+	private static final String MANIFEST = "MANIFEST";
+	private static final String SEGMENT = "segment.";
+	private static final int COMPACT_SLACK = 1024;
+	private static final int MAX_RECORD = 1 << 24;
+	private static final int NAME_LOCKS = 64;
+
+	// Manifest record kinds
+	private static final byte FILE = 0; // name, version (0 if deleted), CRC32
+	private static final byte PACKED = 1; // name, version, segment, offset, length, CRC32
+	private static final byte CHUNKED = 2; // name, version, number of chunks, their hashes, CRC32
+	private static final byte CHUNK = 3; // hash, segment, offset, length
+	private static final byte PRUNED = 4; // name, oldest version kept
+
+	private final File dir;
+	private final long smallFileSize;
+	private final long segmentSize;
+	private final Chunker chunker;
+	private final ConcurrentHashMap<String, Integer> versions; // sdfs name -> latest version stored here
+	private final ConcurrentHashMap<String, Integer> floors; // sdfs name -> oldest version kept, if older ones were pruned
+	private final ConcurrentHashMap<String, Extent> packed; // "<name>:<version>" -> where the version is in the segments
+	private final ConcurrentHashMap<ByteBuffer, Extent> chunks; // SHA-256 of a chunk -> where it is in the segments
+	private final ConcurrentHashMap<Integer, FileChannel> segments;
+	private final ConcurrentHashMap<String, Long> checksums; // "<name>:<version>" -> CRC32 of its contents
+	private final ConcurrentHashMap<ByteBuffer, Integer> pinned; // SHA-256 of a chunk -> chunked PUTs under way counting on it
+	private final Object[] nameLocks; // striped by sdfs name, held while a version of the name is stored, pruned or deleted
+	// Held shared while a change is logged and applied to the index, and exclusively to snapshot or rewrite the index
+	private final ReentrantReadWriteLock state;
+	private final List<FileChannel> retired; // segments collected last time, closed on the next collection
+	private int segment; // segment new data is appended to
+	private DataOutputStream manifest;
+	private FileOutputStream manifestFile;
+	private int records;
+	private volatile boolean compactDue;
+
+	/**
+	* Where the bytes of a stored version are: a file of its own, a range of a segment, or a list of chunks
+	*/
+	public static class Extent {
+		private final int segment; // -1 for a file of its own
+		private final File file;
+		private final FileChannel channel;
+		private final long offset;
+		private final long length;
+		private final Extent[] chunks;
+		private final byte[][] hashes;
+
+		Extent(int segment, File file, FileChannel channel, long offset, long length) {
+			this.segment = segment;
+			this.file = file;
+			this.channel = channel;
+			this.offset = offset;
+			this.length = length;
+			this.chunks = null;
+			this.hashes = null;
+		}
+
+		Extent(Extent[] chunks, byte[][] hashes) {
+			long length = 0;
+			for(Extent chunk : chunks) {
+				length += chunk.getLength();
+			}
+			this.segment = -1;
+			this.file = null;
+			this.channel = null;
+			this.offset = 0;
+			this.length = length;
+			this.chunks = chunks;
+			this.hashes = hashes;
+		}
+
+		public boolean isPacked() {
+			return channel != null;
+		}
+
+		public boolean isChunked() {
+			return chunks != null;
+		}
+
+		public File getFile() {
+			return file;
+		}
+
+		public FileChannel getChannel() {
+			return channel;
+		}
+
+		public long getOffset() {
+			return offset;
+		}
+
+		public long getLength() {
+			return length;
+		}
+
+		/**
+		* Get the SHA-256 of each chunk of a chunked version, in order
+		*/
+		public byte[][] getHashes() {
+			return hashes;
+		}
+
+		/**
+		* Get the chunks of a chunked version, in order
+		*/
+		public Extent[] getChunks() {
+			return chunks;
+		}
+
+		/**
+		* Get the ranges of segments holding up to length bytes of a packed or chunked version starting at offset
+		*/
+		public List<Extent> slice(long offset, long length) {
+			List<Extent> pieces = new ArrayList<Extent>();
+			long start = Math.min(offset, this.length);
+			long end = start + Math.min(length, this.length - start);
+			if(!isChunked()) {
+				pieces.add(new Extent(segment, file, channel, this.offset + start, end - start));
+				return pieces;
+			}
+			long position = 0;
+			for(Extent chunk : chunks) {
+				long from = Math.max(start, position);
+				long to = Math.min(end, position + chunk.getLength());
+				if(from < to) {
+					pieces.add(new Extent(chunk.segment, chunk.file, chunk.channel, chunk.offset + from - position, to - from));
+				}
+				position += chunk.getLength();
+			}
+			return pieces;
+		}
+	}
+
+	public LocalStore(File dir) {
+		this(dir, 0, 0, 0);
+	}
+
+	/**
+	* @param dir: File directory to store versions in
+	* @param smallFileSize: long size up to which versions are packed into segments, 0 to give every version a file
+	* @param segmentSize: long size a segment is grown to before starting the next one
+	* @param chunkSize: int average size of the chunks larger versions are split into, 0 to give them a file of their own
+	*/
+	public LocalStore(File dir, long smallFileSize, long segmentSize, int chunkSize) {
+		this.dir = dir;
+		this.smallFileSize = smallFileSize;
+		this.segmentSize = segmentSize;
+		this.chunker = chunkSize > 0 ? new Chunker(chunkSize) : null;
+		this.versions = new ConcurrentHashMap<String, Integer>();
+		this.floors = new ConcurrentHashMap<String, Integer>();
+		this.packed = new ConcurrentHashMap<String, Extent>();
+		this.chunks = new ConcurrentHashMap<ByteBuffer, Extent>();
+		this.segments = new ConcurrentHashMap<Integer, FileChannel>();
+		this.checksums = new ConcurrentHashMap<String, Long>();
+		this.pinned = new ConcurrentHashMap<ByteBuffer, Integer>();
+		this.nameLocks = new Object[NAME_LOCKS];
+		for(int i = 0; i < NAME_LOCKS; i++) {
+			this.nameLocks[i] = new Object();
+		}
+		this.state = new ReentrantReadWriteLock();
+		this.retired = new ArrayList<FileChannel>();
+	}
+
+	/**
+	* Recover the index from the manifest, or from the files in dir if there is no manifest yet, and start logging.
+	* Partial files of transfers that were cut off are deleted.
+	*
+	* @return the number of files recovered
+	*/
+	public int open() throws IOException {
+		state.writeLock().lock();
+		try {
+			return recover();
+		} finally {
+			state.writeLock().unlock();
+		}
+	}
+
+	private int recover() throws IOException {
+		dir.mkdirs();
+		File[] files = dir.listFiles();
+		if(files != null) {
+			for(File file : files) {
+				String name = file.getName();
+				if(name.endsWith(".part") || name.endsWith(".upload")) {
+					FileUtils.deleteQuietly(file);
+				} else if(name.startsWith(SEGMENT)) {
+					try {
+						segment = Math.max(segment, Integer.parseInt(name.substring(SEGMENT.length())));
+					} catch(NumberFormatException e) {
+						// Not a segment
+					}
+				}
+			}
+		}
+		File log = new File(dir, MANIFEST);
+		if(log.exists()) {
+			replay(log);
+		} else {
+			scan(files);
+		}
+		for(Map.Entry<ByteBuffer, Extent> entry : chunks.entrySet()) {
+			if(!isIntact(entry.getValue())) {
+				chunks.remove(entry.getKey());
+			}
+		}
+		for(Map.Entry<String, Extent> entry : packed.entrySet()) {
+			if(!isIntact(entry.getValue())) {
+				packed.remove(entry.getKey());
+			}
+		}
+		for(Map.Entry<String, Integer> entry : versions.entrySet()) {
+			if(find(entry.getKey(), entry.getValue()) == null) {
+				System.out.println("Latest version of " + entry.getKey() + " is missing from " + dir + ", dropping it");
+				versions.remove(entry.getKey(), entry.getValue());
+			}
+		}
+		compact();
+		return versions.size();
+	}
+
+	/**
+	* Whether the segments still hold all of extent, and every chunk of it is still known
+	*/
+	private boolean isIntact(Extent extent) throws IOException {
+		if(!extent.isChunked()) {
+			return extent.getChannel().size() >= extent.getOffset() + extent.getLength();
+		}
+		for(int i = 0; i < extent.getChunks().length; i++) {
+			if(chunks.get(ByteBuffer.wrap(extent.getHashes()[i])) != extent.getChunks()[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	* Read the manifest, stopping at the first record that is torn or fails its checksum
+	*/
+	private void replay(File log) throws IOException {
+		long valid = 0;
+		try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(log)))) {
+			while(true) {
+				int length = in.readInt();
+				if(length <= 0 || length > MAX_RECORD) {
+					break;
+				}
+				byte[] payload = new byte[length];
+				in.readFully(payload);
+				if(in.readLong() != checksum(payload)) {
+					break;
+				}
+				DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+				byte kind = record.readByte();
+				if(kind == CHUNK) {
+					byte[] hash = readHash(record);
+					chunks.put(ByteBuffer.wrap(hash), extent(record.readInt(), record.readLong(), record.readLong()));
+				} else if(kind == PRUNED) {
+					String name = record.readUTF();
+					int oldest = record.readInt();
+					// Also deletes files left behind by a crash right after the record was logged
+					drop(name, floors.getOrDefault(name, 1), oldest);
+					floors.put(name, oldest);
+				} else {
+					String name = record.readUTF();
+					int version = record.readInt();
+					if(version == 0) {
+						forget(name, versions.remove(name));
+					} else {
+						versions.put(name, version);
+						if(kind == PACKED) {
+							packed.put(name + ":" + version, extent(record.readInt(), record.readLong(), record.readLong()));
+						} else if(kind == CHUNKED) {
+							Extent extent = resolve(readHashes(record));
+							if(extent != null) {
+								packed.put(name + ":" + version, extent);
+							}
+						}
+						// Records logged before checksums were kept end here
+						if(record.available() >= 8) {
+							checksums.put(name + ":" + version, record.readLong());
+						}
+					}
+				}
+				valid += 4 + length + 8;
+			}
+		} catch(EOFException e) {
+			// Torn last record
+		}
+		if(valid < log.length()) {
+			System.out.println("Dropping " + (log.length() - valid) + " bytes from the end of " + log);
+		}
+	}
+
+	/**
+	* Rebuild the index from the version files in dir, for data stored before there was a manifest
+	*/
+	private void scan(File[] files) {
+		if(files == null) {
+			return;
+		}
+		for(File file : files) {
+			String name = file.getName();
+			int separator = name.lastIndexOf(':');
+			if(separator < 0) {
+				continue;
+			}
+			try {
+				versions.merge(name.substring(0, separator), Integer.parseInt(name.substring(separator + 1)), Math::max);
+			} catch(NumberFormatException e) {
+				// Not a version of an sdfs file
+			}
+		}
+	}
+
+	/**
+	* Rewrite the manifest as a snapshot of the index and reopen it for appending.
+	* No change is half applied while the snapshot is taken, so every logged change is in it.
+	*/
+	private void compact() throws IOException {
+		state.writeLock().lock();
+		try {
+			synchronized(this) {
+				snapshot();
+			}
+		} finally {
+			state.writeLock().unlock();
+		}
+	}
+
+	private void snapshot() throws IOException {
+		if(manifest != null) {
+			manifest.close();
+		}
+		File snapshot = new File(dir, MANIFEST + ".tmp");
+		try(FileOutputStream out = new FileOutputStream(snapshot)) {
+			DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+			records = 0;
+			// Chunks before the versions made of them
+			for(Map.Entry<ByteBuffer, Extent> entry : chunks.entrySet()) {
+				writeRecord(data, chunkRecord(entry.getKey().array(), entry.getValue()));
+				records++;
+			}
+			for(Map.Entry<String, Integer> entry : versions.entrySet()) {
+				int oldest = floors.getOrDefault(entry.getKey(), 1);
+				if(oldest > 1) {
+					writeRecord(data, pruneRecord(entry.getKey(), oldest));
+					records++;
+				}
+				// Older versions first, the last record of a name sets its latest version
+				for(int version = oldest; version <= entry.getValue(); version++) {
+					String key = entry.getKey() + ":" + version;
+					Extent extent = packed.get(key);
+					Long checksum = checksums.get(key);
+					if(extent != null || checksum != null || version == entry.getValue()) {
+						writeRecord(data, versionRecord(entry.getKey(), version, extent, checksum));
+						records++;
+					}
+				}
+			}
+			data.flush();
+			out.getFD().sync();
+		}
+		Files.move(snapshot.toPath(), new File(dir, MANIFEST).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		syncDir();
+		manifestFile = new FileOutputStream(new File(dir, MANIFEST), true);
+		manifest = new DataOutputStream(new BufferedOutputStream(manifestFile));
+		compactDue = false;
+	}
+
+	/**
+	* Make the renames in dir durable, so a crash cannot bring back the old MANIFEST or lose a version moved into place
+	*/
+	private void syncDir() throws IOException {
+		try(FileChannel directory = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+			directory.force(true);
+		}
+	}
+
+	/**
+	* Durably append records to the manifest, with a single fsync.
+	* Once the manifest has grown too long it is compacted after the change being logged has been applied.
+	*/
+	private synchronized void log(List<byte[]> payloads) throws IOException {
+		if(manifest == null) {
+			throw new IOException("Store in " + dir + " is not open");
+		}
+		for(byte[] payload : payloads) {
+			writeRecord(manifest, payload);
+		}
+		manifest.flush();
+		manifestFile.getFD().sync();
+		records += payloads.size();
+		if(records > 2 * (versions.size() + packed.size() + chunks.size()) + COMPACT_SLACK) {
+			compactDue = true;
+		}
+	}
+
+	private interface Change<T> {
+		T apply() throws IOException;
+	}
+
+	/**
+	* Log and apply a change to the index without a snapshot being taken halfway through it
+	*/
+	private <T> T change(Change<T> change) throws IOException {
+		T result;
+		state.readLock().lock();
+		try {
+			result = change.apply();
+		} finally {
+			state.readLock().unlock();
+		}
+		if(compactDue) {
+			compact();
+		}
+		return result;
+	}
+
+	/**
+	* Durably record that the latest version of name is now version, 0 if it was deleted
+	*
+	* @param extent: Extent of version if it was packed into a segment or chunked, null otherwise
+	* @param checksum: Long CRC32 of the contents of version, null if deleted
+	*/
+	private void log(String name, int version, Extent extent, Long checksum) throws IOException {
+		log(Arrays.asList(versionRecord(name, version, extent, checksum)));
+	}
+
+	private static byte[] versionRecord(String name, int version, Extent extent, Long checksum) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream record = new DataOutputStream(bytes);
+		record.writeByte(extent == null ? FILE : extent.isChunked() ? CHUNKED : PACKED);
+		record.writeUTF(name);
+		record.writeInt(version);
+		if(extent != null && extent.isChunked()) {
+			record.writeInt(extent.getHashes().length);
+			for(byte[] hash : extent.getHashes()) {
+				record.write(hash);
+			}
+		} else if(extent != null) {
+			record.writeInt(extent.segment);
+			record.writeLong(extent.getOffset());
+			record.writeLong(extent.getLength());
+		}
+		if(checksum != null) {
+			record.writeLong(checksum);
+		}
+		return bytes.toByteArray();
+	}
+
+	private static byte[] pruneRecord(String name, int oldest) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream record = new DataOutputStream(bytes);
+		record.writeByte(PRUNED);
+		record.writeUTF(name);
+		record.writeInt(oldest);
+		return bytes.toByteArray();
+	}
+
+	private static byte[] chunkRecord(byte[] hash, Extent extent) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream record = new DataOutputStream(bytes);
+		record.writeByte(CHUNK);
+		record.write(hash);
+		record.writeInt(extent.segment);
+		record.writeLong(extent.getOffset());
+		record.writeLong(extent.getLength());
+		return bytes.toByteArray();
+	}
+
+	private static void writeRecord(DataOutputStream out, byte[] payload) throws IOException {
+		out.writeInt(payload.length);
+		out.write(payload);
+		out.writeLong(checksum(payload));
+	}
+
+	private static byte[] readHash(DataInputStream record) throws IOException {
+		byte[] hash = new byte[Chunker.HASH_SIZE];
+		record.readFully(hash);
+		return hash;
+	}
+
+	private static byte[][] readHashes(DataInputStream record) throws IOException {
+		byte[][] hashes = new byte[record.readInt()][];
+		for(int i = 0; i < hashes.length; i++) {
+			hashes[i] = readHash(record);
+		}
+		return hashes;
+	}
+
+	private static long checksum(byte[] payload) {
+		CRC32 crc = new CRC32();
+		crc.update(payload, 0, payload.length);
+		return crc.getValue();
+	}
+
+	private Extent extent(int id, long offset, long length) throws IOException {
+		return new Extent(id, segmentFile(id), segment(id), offset, length);
+	}
+
+	/**
+	* Look up the chunks of a version
+	*
+	* @return the chunked Extent, or null if a chunk is not stored here
+	*/
+	private Extent resolve(byte[][] hashes) {
+		Extent[] found = new Extent[hashes.length];
+		for(int i = 0; i < hashes.length; i++) {
+			found[i] = chunks.get(ByteBuffer.wrap(hashes[i]));
+			if(found[i] == null) {
+				return null;
+			}
+		}
+		return new Extent(found, hashes);
+	}
+
+	private File segmentFile(int id) {
+		return new File(dir, SEGMENT + id);
+	}
+
+	/**
+	* Get the open channel of segment id, opening it the first time it is used
+	*/
+	private FileChannel segment(int id) throws IOException {
+		FileChannel channel = segments.get(id);
+		if(channel != null) {
+			return channel;
+		}
+		synchronized(segments) {
+			channel = segments.get(id);
+			if(channel == null) {
+				channel = FileChannel.open(segmentFile(id).toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+				segments.put(id, channel);
+			}
+			return channel;
+		}
+	}
+
+	/**
+	* Append length bytes of from starting at position to the current segment, starting a new segment once it is full.
+	* The data is not forced to disk.
+	*/
+	private synchronized Extent append(FileChannel from, long position, long length) throws IOException {
+		FileChannel target = segment(segment);
+		if(target.size() > 0 && target.size() + length > segmentSize) {
+			segment++;
+			target = segment(segment);
+		}
+		long offset = target.size();
+		// transferTo writes at the channel's position, which is 0 for a segment reopened after a restart
+		target.position(offset);
+		long copied = 0;
+		while(copied < length) {
+			long count = from.transferTo(position + copied, length - copied, target);
+			if(count <= 0) {
+				throw new EOFException("Data was truncated while appending it to " + segmentFile(segment));
+			}
+			copied += count;
+		}
+		return new Extent(segment, segmentFile(segment), target, offset, length);
+	}
+
+	/**
+	* Durably store the chunks of from this node does not have yet
+	*
+	* @param found: List<Chunker.Chunk> of from, positions of the chunks being positions in from
+	*/
+	private void storeChunks(FileChannel from, List<Chunker.Chunk> found) throws IOException {
+		List<Chunker.Chunk> added = new ArrayList<Chunker.Chunk>();
+		List<Extent> extents = new ArrayList<Extent>();
+		Set<FileChannel> written = new HashSet<FileChannel>();
+		for(Chunker.Chunk chunk : found) {
+			if(!chunks.containsKey(ByteBuffer.wrap(chunk.getHash()))) {
+				Extent extent = append(from, chunk.getOffset(), chunk.getLength());
+				added.add(chunk);
+				extents.add(extent);
+				written.add(extent.getChannel());
+			}
+		}
+		if(added.isEmpty()) {
+			return;
+		}
+		for(FileChannel channel : written) {
+			channel.force(false);
+		}
+		List<byte[]> payloads = new ArrayList<byte[]>();
+		for(int i = 0; i < added.size(); i++) {
+			payloads.add(chunkRecord(added.get(i).getHash(), extents.get(i)));
+		}
+		log(payloads);
+		for(int i = 0; i < added.size(); i++) {
+			chunks.putIfAbsent(ByteBuffer.wrap(added.get(i).getHash()), extents.get(i));
+		}
+	}
+
+	/**
+	* Get the latest version of name stored here, or null if there is none
+	*/
+	public Integer latest(String name) {
+		return versions.get(name);
+	}
+
+	/**
+	* Get the oldest version of name stored here, or null if there is none
+	*/
+	public Integer oldest(String name) {
+		Integer latest = versions.get(name);
+		if(latest == null) {
+			return null;
+		}
+		int version = Math.min(floors.getOrDefault(name, 1), latest);
+		while(version < latest && find(name, version) == null) {
+			version++;
+		}
+		return version;
+	}
+
+	/**
+	* Get the file holding version of name, if it was not packed into a segment
+	*/
+	public File file(String name, int version) {
+		return new File(dir, name + ":" + Integer.toString(version));
+	}
+
+	/**
+	* Find where version of name is stored
+	*
+	* @return the Extent of the version, or null if it is not stored here
+	*/
+	public Extent find(String name, int version) {
+		Extent extent = packed.get(name + ":" + version);
+		if(extent != null) {
+			return extent;
+		}
+		File file = file(name, version);
+		return file.isFile() ? new Extent(-1, file, null, 0, file.length()) : null;
+	}
+
+	/**
+	* Get the CRC32 of the contents of version of name, so a reader putting a version together from several replicas can
+	* tell they all hold the same bytes under its number. Kept from when the version was stored, and only worked out
+	* here for versions stored before checksums were logged.
+	*
+	* @return the checksum, or null if the version is not stored here
+	*/
+	public Long checksum(String name, int version) throws IOException {
+		String key = name + ":" + version;
+		Long checksum = checksums.get(key);
+		if(checksum != null) {
+			return checksum;
+		}
+		Extent extent = find(name, version);
+		if(extent == null) {
+			return null;
+		}
+		checksum = crc(extent);
+		checksums.put(key, checksum);
+		return checksum;
+	}
+
+	/**
+	* Work out the CRC32 of the contents of extent
+	*/
+	private static long crc(Extent extent) throws IOException {
+		CRC32 crc = new CRC32();
+		ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+		if(!extent.isPacked() && !extent.isChunked()) {
+			try(FileChannel channel = FileChannel.open(extent.getFile().toPath(), StandardOpenOption.READ)) {
+				update(crc, buffer, channel, 0, extent.getLength());
+			}
+		} else {
+			for(Extent piece : extent.slice(0, extent.getLength())) {
+				update(crc, buffer, piece.getChannel(), piece.getOffset(), piece.getLength());
+			}
+		}
+		return crc.getValue();
+	}
+
+	private static void update(CRC32 crc, ByteBuffer buffer, FileChannel channel, long offset, long length) throws IOException {
+		long position = 0;
+		while(position < length) {
+			buffer.clear();
+			buffer.limit((int) Math.min(buffer.capacity(), length - position));
+			int read = channel.read(buffer, offset + position);
+			if(read < 0) {
+				throw new EOFException("Stored version is shorter than its index says");
+			}
+			crc.update(buffer.array(), 0, read);
+			position += read;
+		}
+	}
+
+	/**
+	* Keep the chunks with the SHA-256s in hashes from being collected until they are unpinned, so a chunked PUT that
+	* found them here and did not ask for them can still be made of them. Pin before checking which chunks are here.
+	*/
+	public void pin(byte[][] hashes) {
+		// Not while the collector decides what is still used
+		state.readLock().lock();
+		try {
+			for(byte[] hash : hashes) {
+				pinned.merge(ByteBuffer.wrap(hash), 1, Integer::sum);
+			}
+		} finally {
+			state.readLock().unlock();
+		}
+	}
+
+	/**
+	* Let the chunks pinned for a chunked PUT be collected again once no version is made of them
+	*/
+	public void unpin(byte[][] hashes) {
+		for(byte[] hash : hashes) {
+			pinned.computeIfPresent(ByteBuffer.wrap(hash), (key, count) -> count == 1 ? null : count - 1);
+		}
+	}
+
+	/**
+	* Whether the chunk with SHA-256 hash is stored here
+	*/
+	public boolean hasChunk(byte[] hash) {
+		return chunks.containsKey(ByteBuffer.wrap(hash));
+	}
+
+	/**
+	* Read a whole stored version into memory
+	*/
+	public byte[] read(Extent extent) throws IOException {
+		if(!extent.isPacked() && !extent.isChunked()) {
+			return FileUtils.readFileToByteArray(extent.getFile());
+		}
+		ByteBuffer buffer = ByteBuffer.allocate((int) extent.getLength());
+		for(Extent piece : extent.slice(0, extent.getLength())) {
+			int start = buffer.position();
+			buffer.limit(start + (int) piece.getLength());
+			while(buffer.hasRemaining()) {
+				if(piece.getChannel().read(buffer, piece.getOffset() + buffer.position() - start) < 0) {
+					throw new EOFException(piece.getFile() + " is shorter than its index says");
+				}
+			}
+		}
+		return buffer.array();
+	}
+
+	/**
+	* Copy a stored version into target, replacing it
+	*/
+	public void copy(Extent extent, File target) throws IOException {
+		if(!extent.isPacked() && !extent.isChunked()) {
+			Files.copy(extent.getFile().toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			return;
+		}
+		try(FileChannel to = FileChannel.open(target.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			for(Extent piece : extent.slice(0, extent.getLength())) {
+				long position = 0;
+				while(position < piece.getLength()) {
+					long copied = piece.getChannel().transferTo(piece.getOffset() + position, piece.getLength() - position, to);
+					if(copied <= 0) {
+						throw new EOFException(piece.getFile() + " is shorter than its index says");
+					}
+					position += copied;
+				}
+			}
+		}
+	}
+
+	/**
+	* Get the names of every file stored here
+	*/
+	public Set<String> names() {
+		return versions.keySet();
+	}
+
+	public int size() {
+		return versions.size();
+	}
+
+	/**
+	* Store source as the next version of name, atomically with respect to other versions of name.
+	* Small versions are packed into a segment and larger ones are chunked, then source is deleted.
+	* Otherwise source is moved into place.
+	*
+	* @return the new version number
+	*/
+	public int addVersion(String name, File source) throws IOException {
+		return addVersion(name, source, 0);
+	}
+
+	/**
+	* Store source as the given version of name, as copies of existing versions are. If that version or a newer one is
+	* already stored source is just deleted.
+	*
+	* @param version: int version number to store source as, 0 for the next one
+	* @return the version number source was stored as
+	*/
+	public int addVersion(String name, File source, int version) throws IOException {
+		return change(() -> store(name, source, version));
+	}
+
+	private int store(String name, File source, int version) throws IOException {
+		// Just received, so read back from the page cache
+		long checksum = crc(new Extent(-1, source, null, 0, source.length()));
+		if(smallFileSize > 0 && source.length() <= smallFileSize) {
+			return addVersion(name, () -> {
+				try(FileChannel from = FileChannel.open(source.toPath(), StandardOpenOption.READ)) {
+					Extent extent = append(from, 0, from.size());
+					extent.getChannel().force(false);
+					return extent;
+				}
+			}, source, version, checksum);
+		}
+		if(chunker != null) {
+			Extent chunked;
+			try(FileChannel from = FileChannel.open(source.toPath(), StandardOpenOption.READ)) {
+				List<Chunker.Chunk> found = chunker.split(from, 0, from.size());
+				storeChunks(from, found);
+				byte[][] hashes = new byte[found.size()][];
+				for(int i = 0; i < hashes.length; i++) {
+					hashes[i] = found.get(i).getHash();
+				}
+				chunked = resolve(hashes);
+			}
+			if(chunked == null) {
+				throw new IOException("Missing chunks of " + name);
+			}
+			return addVersion(name, () -> chunked, source, version, checksum);
+		}
+		try(RandomAccessFile data = new RandomAccessFile(source, "rw")) {
+			data.getFD().sync();
+		}
+		return addVersion(name, null, source, version, checksum);
+	}
+
+	/**
+	* Store the next version of name made of the chunks with the SHA-256s in hashes, in order.
+	* The chunks this node does not have yet are read from received, which holds the chunks at the indexes in included
+	* one after the other. Every chunk read from received is checked against its hash, then received is deleted.
+	*
+	* @param hashes: byte[][] SHA-256 of every chunk of the version
+	* @param sizes: List<Integer> length of every chunk of the version
+	* @param received: File holding the chunks at the indexes in included
+	* @param included: List<Integer> indexes of the chunks in received, in increasing order
+	* @return the new version number
+	*/
+	public int addChunked(String name, byte[][] hashes, List<Integer> sizes, File received, List<Integer> included) throws IOException {
+		return addChunked(name, hashes, sizes, received, included, 0);
+	}
+
+	/**
+	* Store version of name made of the chunks with the SHA-256s in hashes, as addChunked above does
+	*
+	* @param version: int version number to store it as, 0 for the next one
+	* @return the version number it was stored as
+	*/
+	public int addChunked(String name, byte[][] hashes, List<Integer> sizes, File received, List<Integer> included, int version) throws IOException {
+		return change(() -> storeChunked(name, hashes, sizes, received, included, version));
+	}
+
+	private int storeChunked(String name, byte[][] hashes, List<Integer> sizes, File received, List<Integer> included, int version) throws IOException {
+		try(FileChannel from = FileChannel.open(received.toPath(), StandardOpenOption.READ)) {
+			List<Chunker.Chunk> found = new ArrayList<Chunker.Chunk>();
+			ByteBuffer buffer = ByteBuffer.allocate(FileTransfer.BUFFER_SIZE);
+			long position = 0;
+			for(int index : included) {
+				int length = sizes.get(index);
+				MessageDigest digest = Chunker.sha256();
+				for(long done = 0; done < length; ) {
+					buffer.clear();
+					buffer.limit((int) Math.min(buffer.capacity(), length - done));
+					int read = from.read(buffer, position + done);
+					if(read < 0) {
+						throw new EOFException("Chunk " + index + " of " + name + " was cut off");
+					}
+					digest.update(buffer.array(), 0, read);
+					done += read;
+				}
+				if(!Arrays.equals(digest.digest(), hashes[index])) {
+					throw new IOException("Chunk " + index + " of " + name + " does not match its hash");
+				}
+				found.add(new Chunker.Chunk(hashes[index], position, length));
+				position += length;
+			}
+			storeChunks(from, found);
+		}
+		Extent chunked = resolve(hashes);
+		if(chunked == null) {
+			throw new IOException("Missing chunks of " + name);
+		}
+		// Only some of the chunks were received, the others are read back from the segments
+		return addVersion(name, () -> chunked, received, version, crc(chunked));
+	}
+
+	private interface Placement {
+		Extent place() throws IOException;
+	}
+
+	/**
+	* Assign the version of name, store it and log it
+	*
+	* @param placement: Placement putting the version in the segments, or null to move source into place
+	* @param requested: int version number asked for, 0 for the next one
+	* @param checksum: long CRC32 of the contents of the version
+	*/
+	private int addVersion(String name, Placement placement, File source, int requested, long checksum) throws IOException {
+		synchronized(lockFor(name)) {
+			Integer current = versions.get(name);
+			int version = requested > 0 ? requested : current == null ? 1 : current + 1;
+			if(current != null && version <= current) {
+				// Already stored, by a copy racing with the write it copies
+				FileUtils.deleteQuietly(source);
+				return version;
+			}
+			if(placement != null) {
+				Extent extent = placement.place();
+				log(name, version, extent, checksum);
+				packed.put(name + ":" + version, extent);
+				FileUtils.deleteQuietly(source);
+			} else {
+				Files.move(source.toPath(), file(name, version).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				syncDir();
+				log(name, version, null, checksum);
+			}
+			checksums.put(name + ":" + version, checksum);
+			versions.put(name, version);
+			return version;
+		}
+	}
+
+	/**
+	* Get the lock serializing changes to the versions of name
+	*/
+	private Object lockFor(String name) {
+		return nameLocks[(name.hashCode() & Integer.MAX_VALUE) % NAME_LOCKS];
+	}
+
+	/**
+	* Delete every version of name. Packed versions and chunks are left in their segments as garbage.
+	*
+	* @return the number of versions deleted, or null if name was not stored here
+	*/
+	public Integer delete(String name) throws IOException {
+		return change(() -> {
+			synchronized(lockFor(name)) {
+				Integer numVersions = versions.remove(name);
+				if(numVersions == null) {
+					return null;
+				}
+				log(name, 0, null, null);
+				forget(name, numVersions);
+				return numVersions;
+			}
+		});
+	}
+
+	/**
+	* Drop the versions of name older than oldest. The latest version is always kept.
+	*
+	* @param oldest: int oldest version to keep
+	* @return the number of versions dropped, or null if name is not stored here
+	*/
+	public Integer prune(String name, int oldest) throws IOException {
+		return change(() -> {
+			synchronized(lockFor(name)) {
+				Integer latest = versions.get(name);
+				if(latest == null) {
+					return null;
+				}
+				int from = floors.getOrDefault(name, 1);
+				int floor = Math.min(oldest, latest);
+				if(floor <= from) {
+					return 0;
+				}
+				log(Arrays.asList(pruneRecord(name, floor)));
+				floors.put(name, floor);
+				drop(name, from, floor);
+				return floor - from;
+			}
+		});
+	}
+
+	/**
+	* Drop the versions 1 to numVersions of name from the index and delete the ones with files of their own
+	*/
+	private void forget(String name, Integer numVersions) {
+		if(numVersions == null) {
+			return;
+		}
+		floors.remove(name);
+		drop(name, 1, numVersions + 1);
+	}
+
+	/**
+	* Drop the versions from to until, exclusive, of name from the index and delete the ones with files of their own
+	*/
+	private void drop(String name, int from, int until) {
+		for(int version = from; version < until; version++) {
+			checksums.remove(name + ":" + version);
+			if(packed.remove(name + ":" + version) == null) {
+				FileUtils.deleteQuietly(file(name, version));
+			}
+		}
+	}
+
+	/**
+	* Reclaim the segments more than garbage of which is no longer used: deleted and pruned packed versions, and chunks
+	* no version is made of any more. What is still used is copied to the current segment without holding up writes,
+	* then the index is switched over to the copies and snapshotted, and the segments are deleted. Their channels are
+	* only closed by the next collection, so reads that already found their data there can finish.
+	*
+	* @param garbage: double fraction of a segment that must be garbage for it to be reclaimed
+	* @return the number of bytes reclaimed
+	*/
+	public long collect(double garbage) throws IOException {
+		synchronized(retired) {
+			for(FileChannel channel : retired) {
+				try {
+					channel.close();
+				} catch(IOException e) {
+					// Already deleted
+				}
+			}
+			retired.clear();
+
+			int current;
+			synchronized(this) {
+				current = segment;
+			}
+			Set<ByteBuffer> used = usedChunks();
+			Map<Integer, Long> live = new HashMap<Integer, Long>();
+			for(Extent extent : packed.values()) {
+				if(!extent.isChunked()) {
+					live.merge(extent.segment, extent.getLength(), Long::sum);
+				}
+			}
+			for(Map.Entry<ByteBuffer, Extent> entry : chunks.entrySet()) {
+				if(used.contains(entry.getKey())) {
+					live.merge(entry.getValue().segment, entry.getValue().getLength(), Long::sum);
+				}
+			}
+			Set<Integer> victims = new HashSet<Integer>();
+			long size = 0;
+			for(Map.Entry<Integer, FileChannel> entry : segments.entrySet()) {
+				long length = entry.getValue().size();
+				if(entry.getKey() != current && length > 0 && live.getOrDefault(entry.getKey(), 0L) < length * (1 - garbage)) {
+					victims.add(entry.getKey());
+					size += length;
+				}
+			}
+			if(victims.isEmpty()) {
+				return 0;
+			}
+
+			// Copy what is still used while writes go on
+			Map<Extent, Extent> moved = new IdentityHashMap<Extent, Extent>();
+			for(Extent extent : packed.values()) {
+				if(!extent.isChunked() && victims.contains(extent.segment)) {
+					moved.put(extent, move(extent));
+				}
+			}
+			for(Map.Entry<ByteBuffer, Extent> entry : chunks.entrySet()) {
+				if(used.contains(entry.getKey()) && victims.contains(entry.getValue().segment)) {
+					moved.put(entry.getValue(), move(entry.getValue()));
+				}
+			}
+			Set<FileChannel> written = new HashSet<FileChannel>();
+			for(Extent copy : moved.values()) {
+				written.add(copy.getChannel());
+			}
+			for(FileChannel channel : written) {
+				channel.force(false);
+			}
+
+			long copied = 0;
+			state.writeLock().lock();
+			try {
+				// Nothing is being changed now, catch up with what changed while copying
+				used = usedChunks();
+				for(Map.Entry<ByteBuffer, Extent> entry : chunks.entrySet()) {
+					if(victims.contains(entry.getValue().segment)) {
+						if(used.contains(entry.getKey())) {
+							Extent copy = relocate(moved, entry.getValue());
+							chunks.put(entry.getKey(), copy);
+							copied += copy.getLength();
+						} else {
+							chunks.remove(entry.getKey());
+						}
+					}
+				}
+				for(Map.Entry<String, Extent> entry : packed.entrySet()) {
+					Extent extent = entry.getValue();
+					if(extent.isChunked()) {
+						for(Extent chunk : extent.getChunks()) {
+							if(victims.contains(chunk.segment)) {
+								packed.put(entry.getKey(), resolve(extent.getHashes()));
+								break;
+							}
+						}
+					} else if(victims.contains(extent.segment)) {
+						Extent copy = relocate(moved, extent);
+						packed.put(entry.getKey(), copy);
+						copied += copy.getLength();
+					}
+				}
+				compact();
+				for(int id : victims) {
+					retired.add(segments.remove(id));
+					FileUtils.deleteQuietly(segmentFile(id));
+				}
+			} finally {
+				state.writeLock().unlock();
+			}
+			return size - copied;
+		}
+	}
+
+	/**
+	* Get the SHA-256 of every chunk some stored version is made of, or a chunked PUT under way counts on
+	*/
+	private Set<ByteBuffer> usedChunks() {
+		Set<ByteBuffer> used = new HashSet<ByteBuffer>(pinned.keySet());
+		for(Extent extent : packed.values()) {
+			if(extent.isChunked()) {
+				for(byte[] hash : extent.getHashes()) {
+					used.add(ByteBuffer.wrap(hash));
+				}
+			}
+		}
+		return used;
+	}
+
+	private Extent move(Extent extent) throws IOException {
+		return append(extent.getChannel(), extent.getOffset(), extent.getLength());
+	}
+
+	/**
+	* Get the copy of extent made by the collector, copying it now if it was only used once copying was done
+	*/
+	private Extent relocate(Map<Extent, Extent> moved, Extent extent) throws IOException {
+		Extent copy = moved.get(extent);
+		if(copy == null) {
+			copy = move(extent);
+			copy.getChannel().force(false);
+		}
+		return copy;
+	}
+}
@@ -11,12 +11,17 @@ import org.springframework.stereotype.Component;
 
 import java.io.ObjectOutputStream;
 import java.net.ServerSocket;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.stream.Collectors;
 import java.io.*;
 
 import java.util.*;
 import java.net.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.nio.channels.ServerSocketChannel;
 import jichufs.FSMessages.*;
 
 @Component
@@ -32,27 +37,115 @@ public class Master implements Runnable {
 	private final ServerSocket masterSocket;
 	@Autowired
     private MembershipList membershipList;
+    @Autowired
+    private ConnectionPool connectionPool;
     @Value("${masterPort}")
     private int port;
     @Value("${dataTransferPort}")
     private int dataPort;
+    @Value("${pendingOpTimeout:600}")
+    private int pendingOpTimeout;
+    @Value("${blockSize:67108864}")
+    private long blockSize;
 
     private String hostId;
-    private Socket connectionSocket;
-    private InputStream inFromClient;
-    private OutputStream outToClient;
+    private final ExecutorService workers;
+    private final ScheduledExecutorService reaper;
+    private final ExecutorService replicaRequests; // requests to Replicants the Master waits on, off the threads serving queries
+    private final IdleSelector idleConnections;
+    private final ReplicationScheduler replicationScheduler;
+    @Value("${replicationPerNode:2}")
+    private int replicationPerNode;
+    private final Map<String, Integer> copiesPerNode = new HashMap<String, Integer>(); // re-replications each node takes part in right now
 
 
     // Keep a doubly-linked list, sdfsfile -> memberlist
-    // and member -> sdfsFiles     
-    private Map<String, MembershipList> fileToNodesMap = new HashMap<String, MembershipList>();
-    private Map<Member, List<String>> nodeToFilesMap = new HashMap<Member, List<String>>();
+    // and member id -> sdfsFiles. Files are split into blocks (see Blocks) and both maps are kept per block.
+    private Map<String, MembershipList> fileToNodesMap = new ConcurrentHashMap<String, MembershipList>();
+    private Map<String, Set<String>> nodeToFilesMap = new ConcurrentHashMap<String, Set<String>>();
+    // sdfsfile -> names of its blocks in fileToNodesMap, in block order, so they are found without scanning every block
+    private Map<String, Set<String>> fileToBlockNamesMap = new ConcurrentHashMap<String, Set<String>>();
+
+    // sdfsfile -> block count of every committed version, oldest first
+    private Map<String, List<Integer>> fileToBlocksMap = new ConcurrentHashMap<String, List<Integer>>();
+    // sdfsfile -> version number of every committed version, oldest first, recorded just before its block count.
+    // The Master numbers the PUTs of a file and every block of a PUT is stored under its number, so all replicas agree
+    // on it and one holding the latest number is current. sdfsfile -> highest number handed out, kept across deletes.
+    private Map<String, List<Integer>> fileToVersionsMap = new ConcurrentHashMap<String, List<Integer>>();
+    private final Map<String, Integer> assignedVersions = new ConcurrentHashMap<String, Integer>();
+    // sdfsfile -> commit time of every version committed since this node became Master, oldest first
+    private Map<String, List<Long>> fileToCommitTimesMap = new ConcurrentHashMap<String, List<Long>>();
+
+    // Versions older than what the retention policy keeps are dropped from the replicas every retentionInterval
+    // seconds (see Retention). sdfsfile -> oldest version handed out, and oldest version every replica was told to keep.
+    @Value("${retainVersions:0}")
+    private int retainVersions;
+    @Value("${retainSeconds:0}")
+    private long retainSeconds;
+    @Value("${retentionInterval:60}")
+    private int retentionInterval;
+    private Retention retention;
+    private final AtomicBoolean retaining = new AtomicBoolean(); // a retention pass is running
+    private Map<String, Integer> oldestVersions = new ConcurrentHashMap<String, Integer>();
+    private Map<String, Integer> prunedVersions = new ConcurrentHashMap<String, Integer>();
+
+    // Members that failed less than replicationGrace seconds ago, by id. Their replicas stay in the tables above
+    // but are not handed out, and are only re-replicated once the grace period is over without the member rejoining.
+    @Value("${replicationGrace:30}")
+    private int replicationGrace;
+    private final Map<String, Suspect> suspects = new ConcurrentHashMap<String, Suspect>();
+
+    private static class Suspect {
+        private final Member member;
+        private final Set<String> missed = ConcurrentHashMap.newKeySet(); // files written or deleted while it was away
+        private ScheduledFuture<?> expiry;
+
+        Suspect(Member member) {
+            this.member = member;
+        }
+    }
+
+    // Replicas a committed PUT was acked without, by block. They are not listed for the block until they report they
+    // stored the version, and the block is re-replicated if they have not within quorumTimeout seconds.
+    @Value("${writeQuorum:0}")
+    private int writeQuorum;
+    @Value("${quorumTimeout:60}")
+    private int quorumTimeout;
+    private final Map<String, Lagging> lagging = new ConcurrentHashMap<String, Lagging>();
 
-    public Master(@Value("${masterPort}") int port) throws Exception {
+    private static class Lagging {
+        private final long opId;
+        private final Map<String, Member> members = new ConcurrentHashMap<String, Member>();
+
+        Lagging(long opId) {
+            this.opId = opId;
+        }
+    }
+
+    // PUTs and DELETEs that have been handed replicas but not yet committed, by operation id.
+    private Map<Long, PendingOperation> pendingOps = new ConcurrentHashMap<Long, PendingOperation>();
+    private final AtomicLong nextOpId = new AtomicLong();
+
+    public Master(@Value("${masterPort}") int port, @Value("${masterThreads:16}") int threads,
+                  @Value("${connectionIdleTimeout:60}") int idleTimeout,
+                  @Value("${replicationThreads:16}") int replicationThreads,
+                  @Value("${replicationRetryDelay:1}") int replicationRetryDelay) throws Exception {
 
         // Communications between Master and Replicas uses TCP. 
-        this.masterSocket = new ServerSocket(port);
+        // Opened through a channel so kept-alive connections can wait on a selector between queries.
+        ServerSocketChannel masterChannel = ServerSocketChannel.open();
+        masterChannel.socket().bind(new InetSocketAddress(port), 128);
+        this.masterSocket = masterChannel.socket();
         this.hostId = "";
+        this.workers = Executors.newFixedThreadPool(threads);
+        this.reaper = Executors.newSingleThreadScheduledExecutor();
+        this.replicaRequests = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable);
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.idleConnections = new IdleSelector(workers, this::serve, idleTimeout * 1000L);
+        this.replicationScheduler = new ReplicationScheduler(replicationThreads, this::replicate, replicationRetryDelay * 1000L);
 
         log.debug("Creating Master on port: " + Integer.toString(port));
 
@@ -68,135 +161,459 @@ public class Master implements Runnable {
         }
     }
 
-    private QueryMessage getQueryMessage() {
+    private QueryMessage getQueryMessage(InputStream inFromClient) {
         try {
             DataInputStream in = new DataInputStream(inFromClient);
             int length = in.readInt();
             byte[] response = new byte[length];
             in.readFully(response);
             return QueryMessage.parseFrom(response);
+        } catch(EOFException e) {
+            // Client closed a kept-alive connection.
         } catch(Exception e) {
             System.out.println("Failed reading query response from Node..." + e);
         }
         return null;
     }
 
+    /*
+     * Handle a failed node. It is first only suspected: its replicas are no longer handed out, but nothing is copied
+     * for replicationGrace seconds in case it was just a pause or a quick restart and it comes back (see memberJoined).
+     */
     public void rectifyNodeFailure(Member node) {
+        if (replicationGrace <= 0) {
+            removeNode(node, Collections.<String>emptySet());
+            return;
+        }
+        synchronized (suspects) {
+            if (suspects.containsKey(node.getId())) {
+                return;
+            }
+            Suspect suspect = new Suspect(node);
+            suspects.put(node.getId(), suspect);
+            suspect.expiry = reaper.schedule(() -> expireSuspect(node.getId()), replicationGrace, TimeUnit.SECONDS);
+        }
+        log.debug("Suspecting " + node.getId() + ", re-replicating its files in " + replicationGrace + "s unless it rejoins.");
+    }
+
+    private void expireSuspect(String id) {
+        Suspect suspect;
+        synchronized (suspects) {
+            suspect = suspects.remove(id);
+        }
+        if (suspect != null) {
+            removeNode(suspect.member, Collections.<String>emptySet());
+        }
+    }
+
+    /*
+     * Forget a failed node and queue every file it held for re-replication, using the node -> files index.
+     * Only updates metadata, the copying happens in the background, so failure detection is not held up by it.
+     *
+     * keep: files the node still holds, which it stays listed as a replica of
+     */
+    private void removeNode(Member node, Set<String> keep) {
+        Set<String> files = nodeToFilesMap.get(node.getId());
+        if (files == null) {
+            return;
+        }
+        if (keep.isEmpty()) {
+            nodeToFilesMap.remove(node.getId());
+        }
 
         // Remove node from meta-data tables.
-        for (Map.Entry<String, MembershipList> entry : fileToNodesMap.entrySet()) {
-            entry.getValue().getMembersMap().remove(node.getId());
+        for (String file : new ArrayList<String>(files)) {
+            if (keep.contains(file)) {
+                continue;
+            }
+            files.remove(file);
+            MembershipList members = fileToNodesMap.get(file);
+            if (members != null) {
+                members.getMembersMap().remove(node.getId());
+                scheduleReplication(file, members);
+            }
         }
+        log.debug("Lost " + node.getId() + ", " + replicationScheduler.pending() + " files waiting to be re-replicated.");
+    }
 
-        nodeToFilesMap.remove(node);
+    /*
+     * A member joined. If it is a suspected member back from the same host, e.g. after a restart, reconcile what it
+     * still has on disk instead of copying it all again: replicas of files that did not change while it was away are
+     * kept, the rest are deleted from it and re-replicated. Runs in the background so gossip is not held up, and off
+     * the reaper as it waits on the member, so expiring suspects and pending operations is not held up either.
+     */
+    public void memberJoined(Member member) {
+        replicaRequests.execute(() -> reconcile(member));
+    }
 
-        // Re-replicate the file out.
-        reReplicateFiles();
+    private void reconcile(Member member) {
+        String host = member.getId().split(":")[0];
+        Suspect suspect = suspects.values().stream()
+                .filter(candidate -> candidate.member.getId().split(":")[0].equals(host))
+                .findFirst().orElse(null);
+
+        // Ask while it is still suspected, so files written in the meantime are still marked as missed
+        RequestMessage.Builder request = RequestMessage.newBuilder().setType(RequestMessage.ReqType.INFO).setSdfsName("");
+        byte[] response = sendIndividualMessage(member.getId(), request, true);
+        if (suspect != null) {
+            synchronized (suspects) {
+                if (!suspects.remove(suspect.member.getId(), suspect)) {
+                    suspect = null;
+                } else {
+                    suspect.expiry.cancel(false);
+                }
+            }
+        }
+        if (response == null) {
+            if (suspect != null) {
+                removeNode(suspect.member, Collections.<String>emptySet());
+            }
+            return;
+        }
+
+        // Without a suspect this is a new node, or one that was away too long and whose files were copied elsewhere
+        Set<String> held = new HashSet<String>();
+        if (suspect != null) {
+            held.addAll(nodeToFilesMap.getOrDefault(suspect.member.getId(), Collections.<String>emptySet()));
+            held.addAll(suspect.missed);
+        }
+        Set<String> kept = new HashSet<String>();
+        Set<String> repaired = new HashSet<String>();
+        for (Map.Entry<String, Integer> file : parseInfo(response).entrySet()) {
+            int committed = latestBlockVersion(file.getKey());
+            if (held.contains(file.getKey()) && file.getValue() == committed) {
+                kept.add(file.getKey());
+            } else if (held.contains(file.getKey()) && file.getValue() < committed
+                    && repair(member, file.getKey(), file.getValue(), committed)) {
+                // Written while it was away, only the versions it missed were sent
+                kept.add(file.getKey());
+                repaired.add(file.getKey());
+            } else if (!isBeingWritten(file.getKey(), member)) {
+                sendForAck(member, RequestMessage.newBuilder().setType(RequestMessage.ReqType.DELETE).setSdfsName(file.getKey()));
+            }
+        }
+        if (suspect == null) {
+            return;
+        }
+        boolean sameId = suspect.member.getId().equals(member.getId());
+        removeNode(suspect.member, sameId ? kept : Collections.<String>emptySet());
+        // Missed files were no longer listed for it, list them again now they are current
+        updateMetaData(member, (sameId ? repaired : kept).toArray(new String[0]));
+        log.debug(member.getId() + " rejoined as " + suspect.member.getId() + " and kept " + kept.size() + " of " + held.size() + " files.");
     }
 
+    /*
+     * Have a current replica of block send member the versions after latest, the last one member holds, so a replica
+     * that missed some PUTs catches up without being sent the whole block again.
+     * A copy of the file from before it was last deleted is not repaired, its versions are not versions of the file.
+     * Returns true if member now holds committed, and no later version of the block was committed in the meantime.
+     */
+    private boolean repair(Member member, String block, int latest, int committed) {
+        MembershipList members = fileToNodesMap.get(block);
+        List<Integer> numbers = fileToVersionsMap.get(Blocks.parent(block));
+        if (members == null || numbers == null || numbers.isEmpty() || latest < numbers.get(0)) {
+            return false;
+        }
+        RequestMessage.Builder request = RequestMessage.newBuilder().setType(RequestMessage.ReqType.REPLICATE)
+                .setSdfsName(block).addSendTo(member.getId()).setVersion(latest + 1);
+        for (Member source : liveReplicas(members)) {
+            if (!source.getId().equals(member.getId()) && sendForAck(source, request)) {
+                return latestBlockVersion(block) == committed;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * Whether member is listed for file, or file is on its way to member in a PUT or re-replication.
+     */
+    private boolean isBeingWritten(String file, Member member) {
+        if (nodeToFilesMap.getOrDefault(member.getId(), Collections.<String>emptySet()).contains(file)
+                || replicationScheduler.isRunning(file)) {
+            return true;
+        }
+        return pendingOps.values().stream()
+                .anyMatch(op -> ids(op.getBlocks().getOrDefault(file, Collections.<Member>emptyList())).contains(member.getId()));
+    }
+
+    /*
+     * file was just written or deleted, so the copies suspected members hold are out of date. Stop listing them.
+     */
+    private void markMissed(String file) {
+        for (Suspect suspect : suspects.values()) {
+            Set<String> nodeFiles = nodeToFilesMap.get(suspect.member.getId());
+            if (nodeFiles != null && nodeFiles.remove(file)) {
+                suspect.missed.add(file);
+                MembershipList members = fileToNodesMap.get(file);
+                if (members != null) {
+                    members.getMembersMap().remove(suspect.member.getId());
+                }
+            }
+        }
+    }
+
+    private boolean isSuspect(String id) {
+        return suspects.containsKey(id);
+    }
+
+    /*
+     * Replicas of file that are not suspected to have failed.
+     */
+    private List<Member> liveReplicas(MembershipList members) {
+        return members.getAllEntries().stream().filter(m -> !isSuspect(m.getId())).collect(Collectors.toList());
+    }
+
+    /*
+     * Queue every file that has fewer than 4 replicas for re-replication.
+     */
     private void reReplicateFiles() {
         for (Map.Entry<String, MembershipList> entry : fileToNodesMap.entrySet()) {
+            scheduleReplication(entry.getKey(), entry.getValue());
+        }
+    }
 
-            Map<String, Member> membersMap = entry.getValue().getMembersMap();
-            // Need to make sure that we don't include the Introducer Node in this process.
-            if (membersMap.size() < 4 && membershipList.getMembersMap().size() >= 4) {
-
-                int numberOfNewNodes = 4 - membersMap.size();
-                List<Member> members = membershipList.getAllEntries();
-                Collections.shuffle(members);
+    private void scheduleReplication(String file, MembershipList members) {
+        int replicas = members.getMembersMap().size();
+        if (replicas == 0) {
+            log.debug("No surviving replicas of " + file + " to re-replicate from.");
+        } else if (replicas < 4) {
+            replicationScheduler.schedule(file, replicas);
+        }
+    }
 
-                List<Member> replicas = new ArrayList<Member>();
+    /*
+     * Bring file back up to 4 replicas by having one of its surviving replicas copy it down a pipeline to new ones.
+     * Runs on the ReplicationScheduler, so the replicas are looked up again as they may have changed while it was queued.
+     * The source is the surviving replica taking part in the fewest copies, and the targets the healthy nodes taking part
+     * in the fewest copies and holding the fewest files, so recovery is spread over the whole cluster.
+     * No node takes part in more than replicationPerNode copies at once: returns false if the copy has to wait for one.
+     * Throws if every surviving replica failed to copy the file, so the ReplicationScheduler tries it again later.
+     */
+    private boolean replicate(String file) {
+        MembershipList current = fileToNodesMap.get(file);
+        if (current == null) {
+            return true;
+        }
+        Map<String, Member> membersMap = current.getMembersMap();
+        if (membersMap.isEmpty()) {
+            log.debug("No surviving replicas of " + file + " to re-replicate from.");
+            return true;
+        }
+        // Replicas still catching up on a quorum write count, they are not given the file again
+        Lagging late = lagging.get(file);
+        Set<String> catchingUp = late == null ? Collections.<String>emptySet() : late.members.keySet();
+        // Need to make sure that we don't include the Introducer Node in this process.
+        if (membersMap.size() + catchingUp.size() >= 4 || membershipList.getMembersMap().size() < 4) {
+            return true;
+        }
 
-                int curIdx = 0;
-                while (numberOfNewNodes > 0) {
-                    if (!membersMap.containsKey(members.get(curIdx).getId())) {
-                        replicas.add(members.get(curIdx));
-                        numberOfNewNodes--;
-                    }
-                    curIdx++;
-                }
+        List<Member> sources;
+        List<Member> replicas;
+        synchronized (copiesPerNode) {
+            sources = leastBusy(liveReplicas(current), membersMap.size());
+            List<Member> others = membershipList.getAllEntries().stream()
+                    .filter(m -> !membersMap.containsKey(m.getId()) && !catchingUp.contains(m.getId()))
+                    .collect(Collectors.toList());
+            replicas = leastBusy(others, 4 - membersMap.size() - catchingUp.size());
+            if (sources.isEmpty() || replicas.isEmpty()) {
+                return false;
+            }
+            addCopies(sources.get(0), 1);
+            for (Member m : replicas) {
+                addCopies(m, 1);
+            }
+        }
 
-                List<String> result = new ArrayList<String>();
-                for (Member m : replicas) {
-                    result.add(m.toString());
+        RequestMessage.Builder request = RequestMessage.newBuilder().setType(RequestMessage.ReqType.REPLICATE)
+                                       .setSdfsName(file).addAllSendTo(ids(replicas));
+        Member source = sources.get(0);
+        try {
+            boolean replicated = sendForAck(source, request);
+            // Fall back to the other survivors, whether or not they are busy, so a bad source does not stall the file
+            for (int i = 1; !replicated && i < sources.size(); i++) {
+                log.debug("Re-replicating " + file + " from " + source.getId() + " failed.");
+                synchronized (copiesPerNode) {
+                    addCopies(source, -1);
+                    source = sources.get(i);
+                    addCopies(source, 1);
                 }
-                
-                // Have the last replica in the list be responsible for re-replicating.
-                Member[] candidates = membersMap.values().toArray(new Member[membersMap.size()]);
-                Member temp = candidates[(new Random()).nextInt(candidates.length)];
-                String ip = temp.getId().split(":")[0];
-                
-                byte[] request = RequestMessage.newBuilder().setType(RequestMessage.ReqType.REPLICATE)
-                                               .setSdfsName(entry.getKey()).addAllSendTo(result).build().toByteArray();
-                
-                byte[] response = sendIndividualMessage(ip, request, false);
-                
+                replicated = sendForAck(source, request);
+            }
+            if (!replicated) {
+                throw new IllegalStateException("Re-replicating " + file + " failed on every surviving replica");
+            }
+            for (Member m : replicas) {
+                updateMetaData(m, new String[]{file});
+            }
+            return true;
+        } finally {
+            synchronized (copiesPerNode) {
+                addCopies(source, -1);
                 for (Member m : replicas) {
-                    updateMetaData(m, new String[]{entry.getKey()});
+                    addCopies(m, -1);
                 }
-
             }
         }
+    }
 
+    /*
+     * Pick up to count of candidates that are under the per node copy limit, fewest copies in flight first,
+     * then fewest files held. Ties are broken at random. Call with copiesPerNode held.
+     */
+    private List<Member> leastBusy(List<Member> candidates, int count) {
+        Collections.shuffle(candidates);
+        return candidates.stream()
+                .filter(m -> copiesPerNode.getOrDefault(m.getId(), 0) < replicationPerNode)
+                .sorted(Comparator.comparingInt((Member m) -> copiesPerNode.getOrDefault(m.getId(), 0))
+                        .thenComparingInt(m -> nodeToFilesMap.getOrDefault(m.getId(), Collections.<String>emptySet()).size()))
+                .limit(count)
+                .collect(Collectors.toList());
     }
 
-    private void shutConnection(Socket s, InputStream is, OutputStream os) {
-        try {
-            s.close();
-            is.close();
-            os.close();
-        } catch(Exception e) {
-            System.out.println("Failed shutting down connection in query..." + e);
-        }
+    private void addCopies(Member member, int delta) {
+        copiesPerNode.merge(member.getId(), delta, (a, b) -> a + b == 0 ? null : a + b);
     }
 
     private void updateMetaData(Member m, String[] files) {
-        if (!nodeToFilesMap.containsKey(m)) {
-            nodeToFilesMap.put(m, new ArrayList<String>());
-        }
+        Set<String> nodeFiles = nodeToFilesMap.computeIfAbsent(m.getId(), id -> ConcurrentHashMap.newKeySet());
 
         for (String file : files) {
-            if (!fileToNodesMap.containsKey(file)) {
-                fileToNodesMap.put(file, new MembershipList());
+            fileToNodesMap.computeIfAbsent(file, f -> new MembershipList()).getMembersMap().putIfAbsent(m.getId(), m);
+            fileToBlockNamesMap.computeIfAbsent(Blocks.parent(file), f -> new ConcurrentSkipListSet<String>(Comparator.comparingInt(Blocks::index)))
+                               .add(file);
+            nodeFiles.add(file);
+        }
+ 
+    }
+
+    private void removeMetaData(String sdfsfile) {
+        for (String block : blocksOf(sdfsfile)) {
+            MembershipList members = fileToNodesMap.remove(block);
+            if (members == null) {
+                continue;
             }
+            for (String id : members.getMembersMap().keySet()) {
+                Set<String> nodeFiles = nodeToFilesMap.get(id);
+                if (nodeFiles != null) {
+                    nodeFiles.remove(block);
+                }
+            }
+        }
+        fileToBlockNamesMap.remove(sdfsfile);
+        fileToBlocksMap.remove(sdfsfile);
+        fileToVersionsMap.remove(sdfsfile);
+        fileToCommitTimesMap.remove(sdfsfile);
+        oldestVersions.remove(sdfsfile);
+        prunedVersions.remove(sdfsfile);
+    }
+
+    /*
+     * Names of every block of sdfsfile we have replicas for, in block order.
+     */
+    private List<String> blocksOf(String sdfsfile) {
+        return new ArrayList<String>(fileToBlockNamesMap.getOrDefault(sdfsfile, Collections.<String>emptySet()));
+    }
+
+    /*
+     * Block count of the latest version of sdfsfile. Falls back to the blocks we know of when
+     * the history was lost, e.g. after this node took over as Master.
+     */
+    private int latestBlockCount(String sdfsfile) {
+        List<Integer> history = fileToBlocksMap.get(sdfsfile);
+        if (history != null && !history.isEmpty()) {
+            return history.get(history.size() - 1);
+        }
+        List<String> blocks = blocksOf(sdfsfile);
+        return blocks.isEmpty() ? 0 : Blocks.index(blocks.get(blocks.size() - 1)) + 1;
+    }
+
+    /*
+     * Version number of the latest committed version of sdfsfile, 0 if none is known.
+     */
+    private int latestVersion(String sdfsfile) {
+        List<Integer> numbers = fileToVersionsMap.get(sdfsfile);
+        return numbers == null || numbers.isEmpty() ? 0 : numbers.get(numbers.size() - 1);
+    }
+
+    /*
+     * Version numbers of the versions in history, a copy of the block counts of sdfsfile. Numbers are recorded
+     * before block counts, so every count copied has its number. Trimming the history replaces both lists, so
+     * both are copied holding the lock trimHistory takes.
+     */
+    private List<Integer> versionNumbers(String sdfsfile, List<Integer> history) {
+        List<Integer> numbers = new ArrayList<Integer>(fileToVersionsMap.getOrDefault(sdfsfile, Collections.<Integer>emptyList()));
+        return numbers.subList(0, Math.min(history.size(), numbers.size()));
+    }
+
+    /*
+     * Version number of the latest committed version of a block, which its current replicas hold as their latest.
+     */
+    private int latestBlockVersion(String block) {
+        String sdfsfile = Blocks.parent(block);
+        List<Integer> history;
+        List<Integer> numbers;
+        synchronized (this) {
+            history = new ArrayList<Integer>(fileToBlocksMap.getOrDefault(sdfsfile, Collections.<Integer>emptyList()));
+            numbers = versionNumbers(sdfsfile, history);
+        }
+        return Blocks.latest(history, numbers, Blocks.index(block));
+    }
 
-            fileToNodesMap.get(file).getMembersMap().putIfAbsent(m.getId(), m);
-            if (!nodeToFilesMap.get(m).contains(file)) {
-                nodeToFilesMap.get(m).add(file);
+    /*
+     * Record that version of sdfsfile was committed with blockCount blocks. Versions are only ever added in order:
+     * returns false if a later version was committed first, as the replicas keep that one as the latest.
+     */
+    private synchronized boolean addVersion(String sdfsfile, int version, int blockCount) {
+        if (version <= latestVersion(sdfsfile)) {
+            return false;
+        }
+        fileToVersionsMap.computeIfAbsent(sdfsfile, f -> new CopyOnWriteArrayList<Integer>()).add(version);
+        fileToBlocksMap.computeIfAbsent(sdfsfile, f -> new CopyOnWriteArrayList<Integer>()).add(blockCount);
+        fileToCommitTimesMap.computeIfAbsent(sdfsfile, f -> new CopyOnWriteArrayList<Long>()).add(System.currentTimeMillis());
+        return true;
+    }
+
+    /*
+     * Parse the INFO response of a Replicant, "<block>:<latest version>" for every block it stores.
+     */
+    private static Map<String, Integer> parseInfo(byte[] response) {
+        Map<String, Integer> blocks = new HashMap<String, Integer>();
+        for (String entry : new String(response).split(",")) {
+            int separator = entry.lastIndexOf(':');
+            if (separator > 0) {
+                blocks.put(entry.substring(0, separator), Integer.parseInt(entry.substring(separator + 1)));
             }
         }
- 
+        return blocks;
     }
 
-    private byte[] sendIndividualMessage(String ip, byte[] request, boolean isAck) {
-        try {
+    private static List<String> ids(List<Member> members) {
+        return members.stream().map(Member::getId).collect(Collectors.toList());
+    }
 
-            Socket s = new Socket(ip, dataPort);
-            DataOutputStream out = new DataOutputStream(s.getOutputStream());
-            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+    private byte[] sendIndividualMessage(String id, RequestMessage.Builder requestBuilder, boolean isAck) {
+        Connection connection = null;
+        try {
+            byte[] request = requestBuilder.setRequestId(connectionPool.nextRequestId()).build().toByteArray();
+            connection = connectionPool.request(id, dataPort, request);
+            DataInputStream in = connection.getIn();
 
-            out.writeInt(request.length);
-            out.write(request);
-        
             int length = in.readInt();
 
             if (!isAck) {
-                s.close();
-                out.close();
-                in.close();
+                connectionPool.release(connection);
                 return null;
             }
 
             byte[] response = new byte[length];
             in.readFully(response);
 
-            s.close();
-            out.close();
-            in.close();
+            connectionPool.release(connection);
 
             return response;
         } catch (Exception e) {
             log.debug("There was an error in trying to sendIndividualMessage.");
+            connectionPool.invalidate(connection);
         }
 
         return null;
@@ -210,32 +627,65 @@ public class Master implements Runnable {
 
         // Get all of the Members including ourselves.
         var curMembers = membershipList.getAllEntries();
+        Map<Member, Map<String, Integer>> held = new HashMap<Member, Map<String, Integer>>();
+        Map<String, Integer> blockVersions = new HashMap<String, Integer>();
 
         // Loop through each member and ask for all of the data.
         for (Member member : curMembers) {
             // Construct the message.
 
             // Establish TCP connection with node and update the membership list.
-            String ip = member.getId().split(":")[0];
-            byte[] request = RequestMessage.newBuilder().setType(RequestMessage.ReqType.INFO)
-                                           .setSdfsName("").build().toByteArray();
+            RequestMessage.Builder request = RequestMessage.newBuilder().setType(RequestMessage.ReqType.INFO)
+                                           .setSdfsName("");
 
-            byte[] response = sendIndividualMessage(ip, request, true);
+            byte[] response = sendIndividualMessage(member.getId(), request, true);
+            if (response == null) {
+                continue;
+            }
 
-            // Update the membership list from the response.
-            String[] members = new String(response).split(",");
-            if(!members[0].equals("")) {
-                updateMetaData(member, members);
+            held.put(member, parseInfo(response));
+            for (Map.Entry<String, Integer> block : held.get(member).entrySet()) {
+                blockVersions.merge(block.getKey(), block.getValue(), Math::max);
             }
         }
 
+        // Only the latest version of a file can be recovered from the Replicants: the highest version number any of
+        // its blocks holds, made up of the blocks holding that number
+        Map<String, Integer> fileVersions = new HashMap<String, Integer>();
+        for (Map.Entry<String, Integer> block : blockVersions.entrySet()) {
+            fileVersions.merge(Blocks.parent(block.getKey()), block.getValue(), Math::max);
+        }
+        for (Map.Entry<String, Integer> file : fileVersions.entrySet()) {
+            if (fileToBlocksMap.containsKey(file.getKey())) {
+                continue;
+            }
+            int blockCount = 1;
+            while (file.getValue().equals(blockVersions.get(Blocks.name(file.getKey(), blockCount)))) {
+                blockCount++;
+            }
+            fileToVersionsMap.put(file.getKey(), new CopyOnWriteArrayList<Integer>(Collections.singletonList(file.getValue())));
+            fileToBlocksMap.put(file.getKey(), new CopyOnWriteArrayList<Integer>(Collections.singletonList(blockCount)));
+        }
+
+        // Update the membership list from the responses. Replicas behind on a block are not listed for it, so they
+        // are not read from and the block is re-replicated to them, which only sends the versions they lack.
+        for (Map.Entry<Member, Map<String, Integer>> member : held.entrySet()) {
+            String[] current = member.getValue().entrySet().stream()
+                    .filter(block -> block.getValue() == latestBlockVersion(block.getKey()))
+                    .map(Map.Entry::getKey)
+                    .toArray(String[]::new);
+            updateMetaData(member.getKey(), current);
+        }
+
     }
 
     /*
      * This function is responsible for simply listing out the data that is
-     * available for use.
+     * available for use: the replicas of every block of the latest version of sdfsfile,
+     * along with the version history needed to read older versions block by block.
+     * With allBlocks every block the file has ever had is listed, including ones the latest version does not have.
      */
-    private boolean checkMembershipList(String sdfsfile, OutputStream out)  {
+    private boolean checkMembershipList(String sdfsfile, OutputStream out, boolean allBlocks)  {
         MembershipList members = fileToNodesMap.get(sdfsfile);
         
         if (members == null) {
@@ -243,110 +693,608 @@ public class Master implements Runnable {
             return false;
         }
         
-        List<String> sdfsNodes = new ArrayList<String>();
-        members.getMembersMap().keySet().stream().forEach(key -> sdfsNodes.add(key));
+        List<String> sdfsNodes = ids(liveReplicas(members));
+
+        QueryResponseMessage.Builder response = QueryResponseMessage.newBuilder().setStatus(OK).addAllReplicas(sdfsNodes)
+                                                                    .setBlockSize(blockSize);
+        int blockCount = latestBlockCount(sdfsfile);
+        if (allBlocks) {
+            // Empty if a DELETE removed the file since it was looked up
+            List<String> blocks = blocksOf(sdfsfile);
+            blockCount = blocks.isEmpty() ? blockCount : Math.max(blockCount, Blocks.index(blocks.get(blocks.size() - 1)) + 1);
+        }
+        for (int i = 0; i < blockCount; i++) {
+            String block = Blocks.name(sdfsfile, i);
+            MembershipList blockMembers = fileToNodesMap.get(block);
+            response.addBlocks(BlockPlacement.newBuilder().setName(block)
+                    .addAllReplicas(blockMembers == null ? Collections.<String>emptyList() : ids(liveReplicas(blockMembers))));
+        }
+        List<Integer> history = null;
+        List<Integer> numbers = null;
+        synchronized (this) {
+            if (fileToBlocksMap.containsKey(sdfsfile)) {
+                history = new ArrayList<Integer>(fileToBlocksMap.get(sdfsfile));
+                numbers = versionNumbers(sdfsfile, history);
+            }
+        }
+        if (history != null) {
+            response.setVersion(numbers.isEmpty() ? 0 : numbers.get(numbers.size() - 1))
+                    .addAllVersionBlocks(history).addAllVersionNumbers(numbers);
+            if (oldestVersions.containsKey(sdfsfile)) {
+                response.setOldestVersion(oldestVersions.get(sdfsfile));
+            }
+        }
 
         // Write the ArrayList out over the network.
-        sendMessage(QueryResponseMessage.newBuilder().setStatus(OK).addAllReplicas(sdfsNodes).build().toByteArray(), out);
+        sendMessage(response.build().toByteArray(), out);
 
         return true;
 
     }
 
-    private void handleDelete(String sdfsfile, OutputStream out, InputStream input) {
-        if (checkMembershipList(sdfsfile, out)) {
-            try {
-                DataInputStream in = new DataInputStream(input);
-                
-                if (in.readInt() == 1) {
-                    for (Member m : fileToNodesMap.get(sdfsfile).getAllEntries()) {
-                        nodeToFilesMap.get(m).remove(sdfsfile);
-                    }
+    private PendingOperation addPendingOperation(QueryMessage.OpType type, String sdfsfile, Map<String, List<Member>> blocks,
+                                                 long size, boolean multipart, int version) {
+        Instant deadline = Instant.now().plus(Duration.ofSeconds(pendingOpTimeout));
+        PendingOperation op = new PendingOperation(nextOpId.incrementAndGet(), type, sdfsfile, blocks, size, multipart,
+                                                   version, deadline);
+        pendingOps.put(op.getId(), op);
+        return op;
+    }
+
+    /*
+     * Drop operations whose client never committed them, so a crashed client cannot leave state behind.
+     */
+    private void expirePendingOperations() {
+        Instant now = Instant.now();
+        for (PendingOperation op : pendingOps.values()) {
+            if (op.hasExpired(now) && pendingOps.remove(op.getId(), op)) {
+                log.debug("Pending " + op.getType() + " " + op.getId() + " on " + op.getSdfsName() + " timed out.");
+            }
+        }
+    }
+
+    /*
+     * Drop the versions the retention policy no longer keeps from the replicas of every block. VERSION stops listing
+     * them first, then every live replica is told the version number of the oldest version kept. Every block of a
+     * version is stored under its number, so no block needs anything older, and a block none of the versions kept has
+     * is cut down to its latest version. Replicas that could not be reached are asked again on the next pass.
+     */
+    private void enforceRetention() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, List<Integer>> entry : fileToBlocksMap.entrySet()) {
+            String sdfsfile = entry.getKey();
+            List<Integer> numbers;
+            synchronized (this) {
+                numbers = versionNumbers(sdfsfile, new ArrayList<Integer>(fileToBlocksMap.getOrDefault(sdfsfile, Collections.<Integer>emptyList())));
+            }
+            if (numbers.isEmpty()) {
+                continue;
+            }
+            int oldest = numbers.get(retention.oldest(numbers.size(),
+                    fileToCommitTimesMap.getOrDefault(sdfsfile, Collections.<Long>emptyList()), now) - 1);
+            if (oldest <= prunedVersions.getOrDefault(sdfsfile, numbers.get(0))) {
+                continue;
+            }
+            oldestVersions.merge(sdfsfile, oldest, Math::max);
 
-                    fileToNodesMap.remove(sdfsfile);
+            boolean pruned = true;
+            for (String block : blocksOf(sdfsfile)) {
+                MembershipList members = fileToNodesMap.get(block);
+                if (members == null) {
+                    continue;
+                }
+                for (Member member : liveReplicas(members)) {
+                    pruned &= sendForAck(member, RequestMessage.newBuilder().setType(RequestMessage.ReqType.PRUNE)
+                            .setSdfsName(block).setVersion(oldest));
                 }
-            } catch (IOException i) {
-                // Do NOT remove the file from the query in this case.
-                log.debug("Unexpected close on the Node processing the query.");
+            }
+            if (pruned) {
+                prunedVersions.put(sdfsfile, oldest);
+                trimHistory(sdfsfile, oldest);
+                log.debug("Dropped the versions of " + sdfsfile + " before version " + oldest);
             }
         }
+    }
 
+    /*
+     * Forget the committed versions of sdfsfile older than oldest once every replica dropped them, so its history
+     * stops growing with every PUT. A version that is still the latest one of some block is kept, as the version
+     * the current replicas of that block hold is worked out from it.
+     */
+    private synchronized void trimHistory(String sdfsfile, int oldest) {
+        List<Integer> history = fileToBlocksMap.get(sdfsfile);
+        List<Integer> numbers = fileToVersionsMap.get(sdfsfile);
+        if (history == null || numbers == null) {
+            return;
+        }
+        List<Long> times = fileToCommitTimesMap.getOrDefault(sdfsfile, Collections.<Long>emptyList());
+        int count = Math.min(history.size(), numbers.size());
+        int unknown = count - times.size(); // versions committed before this node became Master have no time
+        LinkedList<Integer> keptHistory = new LinkedList<Integer>();
+        LinkedList<Integer> keptNumbers = new LinkedList<Integer>();
+        LinkedList<Long> keptTimes = new LinkedList<Long>();
+        int covered = 0; // blocks a later version has
+        for (int i = count - 1; i >= 0; i--) {
+            if (numbers.get(i) >= oldest || history.get(i) > covered) {
+                keptHistory.addFirst(history.get(i));
+                keptNumbers.addFirst(numbers.get(i));
+                if (i >= unknown) {
+                    keptTimes.addFirst(times.get(i - unknown));
+                }
+            }
+            covered = Math.max(covered, history.get(i));
+        }
+        if (keptHistory.size() == count) {
+            return;
+        }
+        // Only replaced if still there, so a file deleted in the meantime does not get its history back
+        fileToVersionsMap.replace(sdfsfile, numbers, new CopyOnWriteArrayList<Integer>(keptNumbers));
+        fileToBlocksMap.replace(sdfsfile, history, new CopyOnWriteArrayList<Integer>(keptHistory));
+        fileToCommitTimesMap.replace(sdfsfile, times, new CopyOnWriteArrayList<Long>(keptTimes));
     }
 
-    
-    private void handlePut(String sdfsfile, OutputStream out, InputStream input) {
-        List<Member> members;
+    /*
+     * Write a response listing the replicas of every block of op.
+     */
+    private void sendPlacement(PendingOperation op, OutputStream out) {
+        QueryResponseMessage.Builder response = QueryResponseMessage.newBuilder().setStatus(OK)
+                                                                    .setOpId(op.getId()).setBlockSize(blockSize);
+        for (Map.Entry<String, List<Member>> block : op.getBlocks().entrySet()) {
+            response.addBlocks(BlockPlacement.newBuilder().setName(block.getKey()).addAllReplicas(ids(block.getValue())));
+        }
+        List<Member> first = op.getBlocks().get(op.getSdfsName());
+        if (first != null) {
+            response.addAllReplicas(ids(first));
+        }
+        if (op.getVersion() > 0) {
+            response.setVersion(op.getVersion());
+        }
+        sendMessage(response.build().toByteArray(), out);
+    }
 
-        if (!fileToNodesMap.containsKey(sdfsfile)) {
+    private void handleDelete(String sdfsfile, OutputStream out) {
+        MembershipList members = fileToNodesMap.get(sdfsfile);
 
-            members = membershipList.getAllEntries();
-            Collections.shuffle(members);
+        if (members == null) {
+            sendMessage(QueryResponseMessage.newBuilder().setStatus(NOT_FOUND).build().toByteArray(), out);
+            return;
+        }
 
-            int end_idx = Math.min(4, members.size());
-            members = members.subList(0,end_idx);
+        // Do NOT remove the file until the client commits the delete.
+        Map<String, List<Member>> blocks = new LinkedHashMap<String, List<Member>>();
+        for (String block : blocksOf(sdfsfile)) {
+            MembershipList blockMembers = fileToNodesMap.get(block);
+            if (blockMembers != null) {
+                blocks.put(block, liveReplicas(blockMembers));
+            }
+        }
+        PendingOperation op = addPendingOperation(QueryMessage.OpType.DELETE, sdfsfile, blocks, 0, false, 0);
+
+        sendPlacement(op, out);
+    }
 
+    /*
+     * Choose the replicas for every block of a PUT of size bytes and record it as pending, under the next version
+     * number of sdfsfile. Numbers are handed out in order, so concurrent PUTs of a file never share one.
+     */
+    private synchronized PendingOperation placePut(String sdfsfile, long size, boolean multipart) {
+        Map<String, List<Member>> blocks = new LinkedHashMap<String, List<Member>>();
+        int blockCount = Blocks.count(size, blockSize);
+        for (int i = 0; i < blockCount; i++) {
+            String block = Blocks.name(sdfsfile, i);
+            blocks.put(block, placeBlock(block));
         }
-        else {
-            members = fileToNodesMap.get(sdfsfile).getAllEntries();
+
+        int version = Math.max(latestVersion(sdfsfile), assignedVersions.getOrDefault(sdfsfile, 0)) + 1;
+        assignedVersions.put(sdfsfile, version);
+        return addPendingOperation(QueryMessage.OpType.PUT, sdfsfile, blocks, size, multipart, version);
+    }
+
+    /*
+     * Every version of a block has to go to the same replicas, so reuse the replicas the block already has,
+     * or is being written to by another PUT. Synchronized through placePut so concurrent first PUTs of
+     * the same file agree on a single replica set. New blocks are placed independently of each other
+     * so a large file is spread over the whole cluster.
+     */
+    private List<Member> placeBlock(String block) {
+        MembershipList current = fileToNodesMap.get(block);
+        if (current != null && !liveReplicas(current).isEmpty()) {
+            return liveReplicas(current);
         }
 
-        List<String> list_ids = new ArrayList<String>();
+        Optional<PendingOperation> inFlight = pendingOps.values().stream()
+                .filter(op -> op.getType() == QueryMessage.OpType.PUT && op.getBlocks().containsKey(block))
+                .findFirst();
+        if (inFlight.isPresent()) {
+            return inFlight.get().getBlocks().get(block);
+        }
+
+        List<Member> members = membershipList.getAllEntries();
+        Collections.shuffle(members);
 
-        for (Member m : members) {
-            list_ids.add(m.toString());
+        int end_idx = Math.min(4, members.size());
+        return new ArrayList<Member>(members.subList(0,end_idx));
+    }
+
+    private void handlePut(QueryMessage message, OutputStream out) {
+        // The separator would make the file look like a block of another one
+        if (message.getSdfsName().indexOf(Blocks.SEPARATOR) >= 0) {
+            log.debug("Refusing PUT of " + message.getSdfsName() + ", names may not contain " + Blocks.SEPARATOR);
+            sendMessage(QueryResponseMessage.newBuilder().setStatus(ERROR).build().toByteArray(), out);
+            return;
         }
+        PendingOperation op = placePut(message.getSdfsName(), message.getSize(), message.getMultipart());
 
-        sendMessage(QueryResponseMessage.newBuilder().setStatus(OK).addAllReplicas(list_ids).build().toByteArray(), out);
+        sendPlacement(op, out);
+    }
 
-        try {
-            DataInputStream in = new DataInputStream(input);
-            int val = in.readInt();
+    /*
+     * Apply the metadata change for a pending PUT or DELETE once the client has finished with the replicas.
+     * The operation stays pending until the replicas still catching up on a PUT are being waited on, and replicas
+     * reporting they stored it are handled under the same lock, so no report is lost in between.
+     */
+    private void handleCommit(QueryMessage message, OutputStream out) {
+        PendingOperation op = pendingOps.get(message.getOpId());
+
+        if (op == null || !op.getSdfsName().equals(message.getSdfsName())) {
+            log.debug("Commit for unknown or expired operation " + message.getOpId());
+            sendMessage(QueryResponseMessage.newBuilder().setStatus(NOT_FOUND).build().toByteArray(), out);
+            return;
+        }
+        synchronized (op) {
+            if (pendingOps.get(message.getOpId()) != op) {
+                log.debug("Operation " + message.getOpId() + " was committed or expired in the meantime");
+                sendMessage(QueryResponseMessage.newBuilder().setStatus(NOT_FOUND).build().toByteArray(), out);
+                return;
+            }
+            try {
+                commit(op, message, out);
+            } finally {
+                pendingOps.remove(message.getOpId());
+            }
+        }
+    }
+
+    /*
+     * Drop a pending operation its client gave up on. The parts of a multipart PUT staged on the replicas are thrown
+     * away right away instead of being left until the operation times out and the replicas sweep them.
+     */
+    private void handleAbort(QueryMessage message, OutputStream out) {
+        PendingOperation op = pendingOps.get(message.getOpId());
+
+        if (op == null || !op.getSdfsName().equals(message.getSdfsName())) {
+            log.debug("Abort for unknown or expired operation " + message.getOpId());
+            sendMessage(QueryResponseMessage.newBuilder().setStatus(NOT_FOUND).build().toByteArray(), out);
+            return;
+        }
+        synchronized (op) {
+            if (!pendingOps.remove(message.getOpId(), op)) {
+                log.debug("Operation " + message.getOpId() + " was committed or expired in the meantime");
+                sendMessage(QueryResponseMessage.newBuilder().setStatus(NOT_FOUND).build().toByteArray(), out);
+                return;
+            }
+        }
+        log.debug("Pending " + op.getType() + " " + op.getId() + " on " + op.getSdfsName() + " was aborted.");
+        if (op.getType() == QueryMessage.OpType.PUT && op.isMultipart()) {
+            publishStep(op, op.getBlocks(), RequestMessage.PublishStep.ABORT);
+        }
+        sendMessage(QueryResponseMessage.newBuilder().setStatus(OK).build().toByteArray(), out);
+    }
 
-            if (val == 1) {
-                for (Member m : members) {
-                    updateMetaData(m, new String[]{sdfsfile});
+    private void commit(PendingOperation op, QueryMessage message, OutputStream out) {
+        switch (op.getType()) {
+            case PUT:
+                Map<String, List<Member>> stored = op.isMultipart() ? publish(op) : acked(op, message);
+                if (stored == null) {
+                    sendMessage(QueryResponseMessage.newBuilder().setStatus(ERROR).build().toByteArray(), out);
+                    return;
+                }
+                if (!addVersion(op.getSdfsName(), op.getVersion(), op.getBlocks().size())) {
+                    log.debug("PUT " + op.getId() + " of " + op.getSdfsName() + " was overtaken by a later version.");
+                    break;
+                }
+                for (Map.Entry<String, List<Member>> block : stored.entrySet()) {
+                    markMissed(block.getKey());
+                    List<Member> placed = op.getBlocks().get(block.getKey());
+                    if (op.isMultipart() || block.getValue().size() < placed.size()) {
+                        dropStaleReplicas(block.getKey(), block.getValue());
+                    }
+                    for (Member m : block.getValue()) {
+                        updateMetaData(m, new String[]{block.getKey()});
+                    }
+                    awaitLagging(op, block.getKey(), placed, block.getValue());
+                }
+                for (String block : stored.keySet()) {
+                    if (!lagging.containsKey(block)) {
+                        scheduleReplication(block, fileToNodesMap.get(block));
+                    }
+                }
+                break;
+            case DELETE:
+                for (String block : blocksOf(op.getSdfsName())) {
+                    markMissed(block);
                 }
+                removeMetaData(op.getSdfsName());
+                break;
+            default:
+                sendMessage(QueryResponseMessage.newBuilder().setStatus(ERROR).build().toByteArray(), out);
+                return;
+        }
+
+        sendMessage(QueryResponseMessage.newBuilder().setStatus(OK).build().toByteArray(), out);
+    }
+
+
+    /*
+     * Number of the placed replicas of a block that must store a PUT of it for the PUT to be committed.
+     */
+    private int quorum(int placed) {
+        return writeQuorum <= 0 ? placed : Math.min(writeQuorum, placed);
+    }
+
+    /*
+     * The replicas that acked every block of a PUT, from the commit, along with the ones that already reported they
+     * caught up. Returns null if some block is short of its write quorum. Without acks in the commit every replica
+     * the PUT was handed is taken to have stored it.
+     */
+    private Map<String, List<Member>> acked(PendingOperation op, QueryMessage message) {
+        if (message.getStoredCount() == 0) {
+            return op.getBlocks();
+        }
+        Map<String, Set<String>> ackedIds = new HashMap<String, Set<String>>();
+        for (BlockPlacement block : message.getStoredList()) {
+            ackedIds.put(block.getName(), new HashSet<String>(block.getReplicasList()));
+        }
+        Map<String, List<Member>> stored = new LinkedHashMap<String, List<Member>>();
+        for (Map.Entry<String, List<Member>> block : op.getBlocks().entrySet()) {
+            // Only the replicas the block was placed on count towards its quorum
+            Set<String> ids = new HashSet<String>(ackedIds.getOrDefault(block.getKey(), Collections.<String>emptySet()));
+            ids.retainAll(ids(block.getValue()));
+            if (ids.size() < quorum(block.getValue().size())) {
+                log.debug("Only " + ids + " acked " + block.getKey() + " for PUT " + op.getId() + ", short of its quorum");
+                return null;
             }
-        
-        } catch (IOException e) {
-            log.debug("Unexpected close on handling PUT.");
+            ids.addAll(op.getLateReplicas().getOrDefault(block.getKey(), Collections.<String>emptySet()));
+            stored.put(block.getKey(), block.getValue().stream()
+                    .filter(m -> ids.contains(m.getId()))
+                    .collect(Collectors.toList()));
         }
-        
+        return stored;
+    }
+
+    /*
+     * Wait for the replicas of block a PUT was committed without to report they stored it, and re-replicate the
+     * block if they do not in time. Replicas still catching up on an older version of the block are given up on.
+     */
+    private void awaitLagging(PendingOperation op, String block, List<Member> placed, List<Member> stored) {
+        lagging.remove(block);
+        Lagging late = new Lagging(op.getId());
+        Set<String> storedIds = new HashSet<String>(ids(stored));
+        for (Member m : placed) {
+            if (!storedIds.contains(m.getId())) {
+                late.members.put(m.getId(), m);
+            }
+        }
+        if (late.members.isEmpty() || op.isMultipart()) {
+            return;
+        }
+        lagging.put(block, late);
+        reaper.schedule(() -> expireLagging(block, late), quorumTimeout, TimeUnit.SECONDS);
+    }
+
+    private void expireLagging(String block, Lagging late) {
+        if (!lagging.remove(block, late)) {
+            return;
+        }
+        log.debug(late.members.keySet() + " did not catch up on " + block + " in time.");
+        MembershipList members = fileToNodesMap.get(block);
+        if (members != null) {
+            scheduleReplication(block, members);
+        }
+    }
+
+    /*
+     * A replica that acked a PUT once its write quorum was reached reports which replicas after it stored the block.
+     * They are listed again, unless the block was written again or given up on in the meantime.
+     */
+    private void handleStored(QueryMessage message, OutputStream out) {
+        PendingOperation op = pendingOps.get(message.getOpId());
+        for (BlockPlacement block : message.getStoredList()) {
+            if (op != null) {
+                // Waits for a commit under way, which either still takes the replicas into account or is now waiting on them
+                synchronized (op) {
+                    if (pendingOps.get(message.getOpId()) == op) {
+                        op.getLateReplicas().computeIfAbsent(block.getName(), b -> ConcurrentHashMap.newKeySet())
+                                            .addAll(block.getReplicasList());
+                        continue;
+                    }
+                }
+            }
+            Lagging late = lagging.get(block.getName());
+            if (late == null || late.opId != message.getOpId()) {
+                continue;
+            }
+            for (String id : block.getReplicasList()) {
+                Member m = late.members.remove(id);
+                if (m != null && !isSuspect(id)) {
+                    updateMetaData(m, new String[]{block.getName()});
+                }
+            }
+            MembershipList members = fileToNodesMap.get(block.getName());
+            if (late.members.isEmpty() && lagging.remove(block.getName(), late) && members != null) {
+                scheduleReplication(block.getName(), members);
+            }
+        }
+        sendMessage(QueryResponseMessage.newBuilder().setStatus(OK).build().toByteArray(), out);
+    }
+
+    /*
+     * Have the replicas of every block of a multipart PUT turn the parts staged for it into the block's next version.
+     * First every replica checks its staged parts are complete. Only if each block has its write quorum of them is the
+     * upload committed on those replicas, otherwise it is aborted on all of them, so no block is published on its own.
+     * Every step runs on all replicas of all blocks at once, so this takes about as long as publishing one block.
+     * Returns the replicas that published each block, or null if the PUT was not published.
+     */
+    private Map<String, List<Member>> publish(PendingOperation op) {
+        Map<String, List<Member>> prepared = publishStep(op, op.getBlocks(), RequestMessage.PublishStep.PREPARE);
+        for (String block : op.getBlocks().keySet()) {
+            if (prepared == null || prepared.get(block).size() < quorum(op.getBlocks().get(block).size())) {
+                log.debug("Too few replicas could publish " + block + " for upload " + op.getId() + ", aborting it");
+                publishStep(op, op.getBlocks(), RequestMessage.PublishStep.ABORT);
+                return null;
+            }
+        }
+
+        Map<String, List<Member>> published = publishStep(op, prepared, RequestMessage.PublishStep.COMMIT);
+        if (published == null) {
+            return null;
+        }
+        for (String block : op.getBlocks().keySet()) {
+            // Every replica prepared but none committed, e.g. all went down in between. The other blocks hold the
+            // version but it is never committed, so no GET is pinned to it and the next PUT replaces it.
+            if (published.get(block).isEmpty()) {
+                log.debug("No replica committed " + block + " for upload " + op.getId());
+                return null;
+            }
+        }
+        return published;
     }
 
+    /*
+     * Send one step of publishing a multipart PUT to the given replicas of every block in parallel.
+     * Returns the replicas that acked it for each block, or null if interrupted.
+     */
+    private Map<String, List<Member>> publishStep(PendingOperation op, Map<String, List<Member>> blocks, RequestMessage.PublishStep step) {
+        Map<String, List<Future<Boolean>>> acks = new LinkedHashMap<String, List<Future<Boolean>>>();
+        for (Map.Entry<String, List<Member>> block : blocks.entrySet()) {
+            long length = Math.max(0, Math.min(blockSize, op.getSize() - Blocks.index(block.getKey()) * blockSize));
+            List<Future<Boolean>> sent = new ArrayList<Future<Boolean>>();
+            for (Member m : block.getValue()) {
+                sent.add(replicaRequests.submit(() -> sendForAck(m, RequestMessage.newBuilder().setType(RequestMessage.ReqType.PUBLISH)
+                        .setSdfsName(block.getKey()).setUploadId(op.getId()).setVersion(op.getVersion()).setLength(length).setStep(step))));
+            }
+            acks.put(block.getKey(), sent);
+        }
+
+        Map<String, List<Member>> acked = new LinkedHashMap<String, List<Member>>();
+        try {
+            for (Map.Entry<String, List<Future<Boolean>>> block : acks.entrySet()) {
+                List<Member> members = new ArrayList<Member>();
+                for (int i = 0; i < block.getValue().size(); i++) {
+                    if (block.getValue().get(i).get()) {
+                        members.add(blocks.get(block.getKey()).get(i));
+                    }
+                }
+                acked.put(block.getKey(), members);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            log.debug("Failed to " + step + " upload " + op.getId() + "..." + e);
+            return null;
+        }
+        return acked;
+    }
+
+    /*
+     * Send a request to the Replicant of member and wait for its ack, true if it acked with 1.
+     */
+    private boolean sendForAck(Member member, RequestMessage.Builder requestBuilder) {
+        Connection connection = null;
+        try {
+            byte[] request = requestBuilder.setRequestId(connectionPool.nextRequestId()).build().toByteArray();
+            connection = connectionPool.request(member.getId(), dataPort, request);
+            boolean acked = connection.getIn().readInt() == 1;
+            connectionPool.release(connection);
+            return acked;
+        } catch (Exception e) {
+            log.debug("No ack from " + member.getId() + " for " + requestBuilder.getType() + " of " + requestBuilder.getSdfsName());
+            connectionPool.invalidate(connection);
+            return false;
+        }
+    }
+
+    /*
+     * Replicas of block that missed the latest version no longer hold it, forget them so the block is re-replicated.
+     */
+    private void dropStaleReplicas(String block, List<Member> current) {
+        MembershipList members = fileToNodesMap.get(block);
+        if (members == null) {
+            return;
+        }
+        Set<String> keep = new HashSet<String>(ids(current));
+        for (String id : new ArrayList<String>(members.getMembersMap().keySet())) {
+            if (!keep.contains(id)) {
+                members.getMembersMap().remove(id);
+                Set<String> nodeFiles = nodeToFilesMap.get(id);
+                if (nodeFiles != null) {
+                    nodeFiles.remove(block);
+                }
+            }
+        }
+    }
 
     /* Handle the input message that is received through the 
      * port and act accordingly.
      */
-    public void handle(InputStream inStream, OutputStream outStream) throws IOException {
-        QueryMessage message = getQueryMessage();
+    public void handle(QueryMessage message, OutputStream outStream) throws IOException {
         String sdfsfile = message.getSdfsName();
-        // TODO: Handle query message accordingly.
+        log.debug("Handling query " + message.getRequestId() + " from " + message.getId() + ": " + message.getType());
         switch (message.getType()) {
             case PUT:
-                handlePut(sdfsfile, outStream, inStream);
+                handlePut(message, outStream);
                 break;
             case GET:
                 // As far as role of master, exact same logic.
-                checkMembershipList(sdfsfile, outStream);
+                checkMembershipList(sdfsfile, outStream, false);
                 break;
             case DELETE:
-                handleDelete(sdfsfile, outStream, inStream);
+                handleDelete(sdfsfile, outStream);
                 break;
             case LS:
-                checkMembershipList(sdfsfile, outStream);
+                checkMembershipList(sdfsfile, outStream, false);
                 break;
             case VERSION:
-                checkMembershipList(sdfsfile, outStream);
+                checkMembershipList(sdfsfile, outStream, true);
+                break;
+            case COMMIT:
+                handleCommit(message, outStream);
+                break;
+            case STORED:
+                handleStored(message, outStream);
+                break;
+            case ABORT:
+                handleAbort(message, outStream);
                 break;
             default: throw new RuntimeException("Invalid Packet Type given to Master!");
         }
             
     }
 
+    /*
+     * Answer one query on connection, then keep the connection
+     * open for the client's next query.
+     */
+    private void serve(Connection connection) {
+        QueryMessage message = getQueryMessage(connection.getIn());
+        if (message == null) {
+            // The client is done with the connection.
+            connection.close();
+            return;
+        }
+        try {
+            this.handle(message, connection.getOut());
+            idleConnections.park(connection);
+        } catch (final Exception e) {
+            e.printStackTrace();
+            connection.close();
+        }
+    }
+
     /*
      * When the Master is initialized, open a port and listen 
-     * for new requests.
+     * for new requests. Each query is handled on a worker thread.
      */
 
     @Override
@@ -355,22 +1303,33 @@ public class Master implements Runnable {
 
         // Populate the Datastructures that it needs.
         populateFileMap();
+        replicationScheduler.start();
         reReplicateFiles();
+        reaper.scheduleWithFixedDelay(this::expirePendingOperations, 10, 10, TimeUnit.SECONDS);
+        retention = new Retention(retainVersions, retainSeconds * 1000L);
+        if (retention.isEnabled()) {
+            // The pass waits on PRUNEs to every replica, so it runs off the reaper, one at a time
+            reaper.scheduleWithFixedDelay(() -> {
+                if (retaining.compareAndSet(false, true)) {
+                    replicaRequests.execute(() -> {
+                        try {
+                            enforceRetention();
+                        } finally {
+                            retaining.set(false);
+                        }
+                    });
+                }
+            }, retentionInterval, retentionInterval, TimeUnit.SECONDS);
+        }
+        Thread idleThread = new Thread(idleConnections);
+        idleThread.setDaemon(true);
+        idleThread.start();
 
+        System.out.println("Waiting for calls on port: " + port);
         while (true) {
             try {
-                System.out.println("Waiting for call on port: " + port);
-                
-                // Declare buffers for reading in the data.
-                connectionSocket = masterSocket.accept();
-                inFromClient = connectionSocket.getInputStream();
-                outToClient = connectionSocket.getOutputStream();
-
-                // Handle the message.
-                this.handle(inFromClient, outToClient);
-
-                // When done, close the socket.
-                shutConnection(connectionSocket, inFromClient, outToClient);
+                Connection connection = new Connection(masterSocket.accept());
+                workers.execute(() -> serve(connection));
             } catch (final Exception e) {
                 e.printStackTrace();
             }
@@ -47,8 +47,13 @@ public class MembershipList {
                         if (membersMap.containsKey(event.getId())) {
                             break;
                         }
-                        membersMap.put(event.getId() + "", new Member(event.getId() + "", Instant.now()));
+                        Member joined = new Member(event.getId() + "", Instant.now());
+                        membersMap.put(event.getId() + "", joined);
                         recentUpdatesCache.put(event.getId(), event);
+                        // Let the master reconcile the replicas a rejoining node kept
+                        if(isMaster()) {
+                            curMaster.memberJoined(joined);
+                        }
                         break;
                     case LEAVE:
                         log.debug("UPDATE Node with id " + event.getId() + " has left the node");
@@ -59,7 +64,7 @@ public class MembershipList {
                         membersMap.remove(event.getId() + "");
                         recentUpdatesCache.put(event.getId(), event);
                         // Handle rereplication if we are the master
-                        if(master.getId().equals(this.hostId)) {
+                        if(isMaster()) {
                             curMaster.rectifyNodeFailure(left);
                         }
                         break;
@@ -72,7 +77,7 @@ public class MembershipList {
                         membersMap.remove(event.getId() + "");
                         recentUpdatesCache.put(event.getId(), event);
                         // Handle rereplication if we are the master
-                        if(master.getId().equals(this.hostId)) {
+                        if(isMaster()) {
                             curMaster.rectifyNodeFailure(failed);
                         }
                         break;
@@ -83,6 +88,14 @@ public class MembershipList {
         }
     }
 
+    /*
+     * Whether this node is the Master and has started it. Events arrive while a node is still joining, before the
+     * master is known, so both may still be unset.
+     */
+    private boolean isMaster() {
+        return master != null && curMaster != null && hostId.equals(master.getId());
+    }
+
     public synchronized void incrementLastAlive(String id) {
         Member member = membersMap.get(id);
         member.setLastAlive(Instant.now());
@@ -0,0 +1,37 @@
+package jichufs;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A PUT or DELETE the Master has handed out replicas for but which the client has not yet committed.
+ * The metadata change is only applied on COMMIT, and the operation is dropped once its deadline passes.
+ * blocks maps the name of every block of the file involved to its replicas, in block order.
+ * A multipart PUT leaves its blocks staged on the replicas, and the Master publishes them when committing it.
+ * version is the number the Master gave a PUT, which every block of it is stored under on the replicas.
+ * lateReplicas holds the replicas after the write quorum that reported storing a block before the PUT was committed.
+ */
+@Getter
+@AllArgsConstructor
+public class PendingOperation {
+
+    private final long id;
+    private final FSMessages.QueryMessage.OpType type;
+    private final String sdfsName;
+    private final Map<String, List<Member>> blocks;
+    private final long size;
+    private final boolean multipart;
+    private final int version;
+    private final Instant deadline;
+    private final Map<String, Set<String>> lateReplicas = new ConcurrentHashMap<String, Set<String>>();
+
+    public boolean hasExpired(Instant now) {
+        return now.isAfter(deadline);
+    }
+}
@@ -35,6 +35,10 @@ public class PingWorker implements Runnable {
     private Master curMaster;
     @Autowired
     private Helper helper;
+    @Autowired
+    private ConnectionPool connectionPool;
+    @Autowired
+    private LatencyTracker latencyTracker;
     private DatagramSocket socket;
     private boolean leave;
     @Value("${serverPort}")
@@ -52,6 +56,8 @@ public class PingWorker implements Runnable {
             for (Member member : neighbors) {
                 if (hasFailed(member)) {
                     membershipList.remove(member.getId());
+                    connectionPool.evict(member.getId());
+                    latencyTracker.remove(member.getId());
                     // Check if failed member is the master. If it is then we need to start the election protocol
                     if(master.getId() == null || master.getId().equals(member.getId())) {
                         log.debug("Detected master failure. Starting election...");
@@ -80,6 +86,7 @@ public class PingWorker implements Runnable {
                         .setData(false)
                         .setType(FSMessages.Message.PacketType.PING);
                 messageBuilder = helper.addEventUpdates(messageBuilder);
+                latencyTracker.pingSent(neighbor.getId());
                 this.sendUDPMessage(messageBuilder, neighbor);
             }
 
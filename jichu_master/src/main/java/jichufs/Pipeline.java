@@ -0,0 +1,158 @@
+package jichufs;
+
+import com.google.protobuf.ByteString;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import static jichufs.FSMessages.RequestMessage;
+
+/**
+* Write pipeline used by PUT and REPLICATE. The sender streams a file to the first replica only,
+* which relays each frame to the next replica while writing it locally (client -> r1 -> r2 -> r3).
+* Once a replica has stored its copy and heard back from the rest of the chain, it acks upstream with
+* the ids of every replica from itself down that stored the file.
+*
+* A chunked PUT lists the SHA-256 and size of every chunk of the file instead. Before any data is sent each replica
+* answers with the indexes of the chunks it or a replica after it is missing, and only those chunks are sent.
+*/
+public class Pipeline {
+
+	private Pipeline() {}
+
+	/**
+	* Connect to the first reachable replica in replicas and ask it to relay the PUT to the replicas after it.
+	* Unreachable or refusing replicas are skipped. The caller releases the connection back to pool once it has read
+	* the final ack, or invalidates it if the transfer failed.
+	*
+	* @param pool: ConnectionPool to take the connection from
+	* @param sdfsName: String denoting the name the file is stored under
+	* @param replicas: List<String> of replica ids making up the pipeline, in order
+	* @param port: int data transfer port of the replicas
+	* @return a Connection ready for FileTransfer.sendFile, or null if no replica accepted the PUT
+	*/
+	public static Connection open(ConnectionPool pool, String sdfsName, List<String> replicas, int port) {
+		return open(pool, RequestMessage.newBuilder()
+			.setType(RequestMessage.ReqType.PUT)
+			.setSdfsName(sdfsName)
+			.build(), replicas, port);
+	}
+
+	/**
+	* Same as open, but send put to every replica, e.g. to upload one part of a multipart PUT.
+	*
+	* @param put: RequestMessage of the PUT without its sendTo list, which is filled in for every replica
+	*/
+	public static Connection open(ConnectionPool pool, RequestMessage put, List<String> replicas, int port) {
+		for(int i = 0; i < replicas.size(); i++) {
+			Connection next = null;
+			try {
+				byte[] request = put.toBuilder()
+					.setRequestId(pool.nextRequestId())
+					.addAllSendTo(replicas.subList(i + 1, replicas.size()))
+					.build().toByteArray();
+				next = pool.request(replicas.get(i), port, request);
+				// Wait for an ACK (1) before the data can be sent
+				if(next.getIn().readInt() == 1) {
+					return next;
+				}
+				System.out.println("Replica " + replicas.get(i) + " refused the file...");
+			} catch(IOException e) {
+				System.out.println("Failed to reach replica " + replicas.get(i) + "..." + e);
+			}
+			pool.invalidate(next);
+		}
+		return null;
+	}
+
+	/**
+	* Send the final ack of a PUT upstream: the ids of the replicas that stored the file
+	*/
+	public static void writeStored(DataOutputStream out, List<String> stored) throws IOException {
+		out.writeInt(stored.size());
+		for(String id : stored) {
+			out.writeUTF(id);
+		}
+		out.flush();
+	}
+
+	/**
+	* Read the final ack of a PUT from the next replica in the pipeline
+	*/
+	public static List<String> readStored(DataInputStream in) throws IOException {
+		int count = in.readInt();
+		List<String> stored = new ArrayList<String>(count);
+		for(int i = 0; i < count; i++) {
+			stored.add(in.readUTF());
+		}
+		return stored;
+	}
+
+	/**
+	* PUT a file made of chunks down a pipeline, sending only the chunks some replica in it does not have yet
+	*
+	* @param put: RequestMessage.Builder of the PUT, which the hash and size of every chunk are added to
+	* @param hashes: byte[][] SHA-256 of every chunk, in order
+	* @param sources: FileChannel[] to read every chunk from
+	* @param positions: long[] position of every chunk in its channel
+	* @param lengths: long[] length of every chunk
+	* @param throttle: TokenBucket limiting the transfer, or null for no limit
+	* @return the replicas that stored the file, or null if no replica accepted the PUT
+	*/
+	public static List<String> putChunks(ConnectionPool pool, RequestMessage.Builder put, List<String> replicas, int port, byte[][] hashes,
+										 FileChannel[] sources, long[] positions, long[] lengths, TokenBucket throttle) throws IOException {
+		for(int i = 0; i < hashes.length; i++) {
+			put.addChunks(ByteString.copyFrom(hashes[i]));
+			put.addChunkSizes((int) lengths[i]);
+		}
+		Connection pipeline = open(pool, put.build(), replicas, port);
+		if(pipeline == null) {
+			return null;
+		}
+		try {
+			List<Integer> missing = readMissing(pipeline.getIn());
+			FileChannel[] sendSources = new FileChannel[missing.size()];
+			long[] sendPositions = new long[missing.size()];
+			long[] sendLengths = new long[missing.size()];
+			for(int i = 0; i < missing.size(); i++) {
+				int chunk = missing.get(i);
+				sendSources[i] = sources[chunk];
+				sendPositions[i] = positions[chunk];
+				sendLengths[i] = lengths[chunk];
+			}
+			FileTransfer.sendRanges(sendSources, sendPositions, sendLengths, pipeline.getOut(), pipeline.getChannel(), throttle);
+			List<String> stored = readStored(pipeline.getIn());
+			pool.release(pipeline);
+			return stored;
+		} catch(IOException e) {
+			pool.invalidate(pipeline);
+			throw e;
+		}
+	}
+
+	/**
+	* Answer a chunked PUT with the indexes of the chunks to send, in increasing order
+	*/
+	public static void writeMissing(DataOutputStream out, Collection<Integer> missing) throws IOException {
+		out.writeInt(missing.size());
+		for(int chunk : missing) {
+			out.writeInt(chunk);
+		}
+		out.flush();
+	}
+
+	/**
+	* Read the indexes of the chunks the next replica in the pipeline asks for
+	*/
+	public static List<Integer> readMissing(DataInputStream in) throws IOException {
+		int count = in.readInt();
+		List<Integer> missing = new ArrayList<Integer>(count);
+		for(int i = 0; i < count; i++) {
+			missing.add(in.readInt());
+		}
+		return missing;
+	}
+}
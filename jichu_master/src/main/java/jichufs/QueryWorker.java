@@ -1,5 +1,6 @@
 package jichufs;
 
+import com.google.common.io.ByteStreams;
 import lombok.Builder;
 import lombok.Getter;
 import lombok.Setter;
@@ -14,16 +15,37 @@ import org.springframework.context.annotation.Scope;
 import org.springframework.beans.factory.config.ConfigurableBeanFactory;
 
 import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
-import java.util.Random;
-import java.net.Socket;
-import java.net.InetAddress;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+import static jichufs.FSMessages.BlockPlacement;
 import static jichufs.FSMessages.QueryMessage;
 import static jichufs.FSMessages.QueryResponseMessage;
+import static jichufs.FSMessages.RequestMessage;
 /**
 * Thread delegated by the main control flow to act as intermediate for user requests.
 * Responsible for communicating between the master and using info to fulfill requests at Replicants.
+* Every call takes its own connections from the ConnectionPool, so no socket state is shared between calls.
 */
 @Component()
 @Getter
@@ -40,184 +62,902 @@ public class QueryWorker{
 	private Member master;
 
 	// Networking Overhead
-	private Socket socket;
-	private DataInputStream in;
-	private DataOutputStream out;
+	@Autowired
+	private ConnectionPool connectionPool;
+	@Autowired
+	private FileCache fileCache;
+	@Autowired
+	private Replicant replicant;
+	@Autowired
+	private LatencyTracker latencyTracker;
 	@Value("${dataTransferPort}")
 	int dataTransferPort;
 	@Value("${masterPort}")
 	int masterPort;
 
-	public QueryWorker() {} // Put in to satisfy bean dependency
+	// GET hedging and striping
+	private static final int HEDGE_MIN_SAMPLES = 20;
+	@Value("${hedgeGets:true}")
+	private boolean hedgeGets;
+	@Value("${hedgePercentile:95}")
+	private int hedgePercentile;
+	@Value("${hedgeDelay:50}")
+	private long hedgeDelay; // ms, used until there are enough response times to take the percentile of
+	@Value("${stripeGets:true}")
+	private boolean stripeGets;
+	@Value("${stripeSize:8388608}")
+	private long stripeSize; // bytes per range when a GET is striped across replicas
+
+	// Multipart PUTs
+	@Value("${multipartSize:8388608}")
+	private long multipartSize; // bytes per part, files larger than this are uploaded in parts
+	@Value("${multipartRetries:3}")
+	private int multipartRetries;
+	@Value("${retryBackoff:200}")
+	private long retryBackoff; // ms before the first retry of a part, doubled on every retry after it
+
+	// Deduplicated PUTs
+	@Value("${chunkSize:1048576}")
+	private int chunkSize; // average chunk size, blocks larger than smallFileSize only send the chunks the replicas lack
+	@Value("${smallFileSize:262144}")
+	private long smallFileSize;
+
+	// Quorum writes
+	@Value("${writeQuorum:0}")
+	private int writeQuorum; // replicas of a block that must store it before the PUT is acked, 0 for all of them
+	private final ExecutorService readExecutor;
+	private final ExecutorService blockExecutor; // bounds how many blocks or parts of one file are transferred at once
+	private final AtomicLong readCount;
+	private final AtomicLong hedgeCount;
+	private final AtomicLong hedgeWins;
+
+	public QueryWorker(@Value("${blockParallelism:4}") int blockParallelism) {
+		ThreadFactory daemons = runnable -> {
+			Thread thread = new Thread(runnable);
+			thread.setDaemon(true);
+			return thread;
+		};
+		this.readExecutor = Executors.newCachedThreadPool(daemons);
+		this.blockExecutor = Executors.newFixedThreadPool(blockParallelism, daemons);
+		this.readCount = new AtomicLong();
+		this.hedgeCount = new AtomicLong();
+		this.hedgeWins = new AtomicLong();
+	}
+
+	/**
+	* Send a query for sdfsName to the Master over a pooled connection and return its response
+	*
+	* @param type: OpType of the query
+	* @param sdfsName: String denoting the sdfs file the query is about
+	* @param opId: long id of the pending operation for COMMIT queries, 0 otherwise
+	* @return the Master's response, or null if the Master could not be reached
+	*/
+	private QueryResponseMessage queryMaster(QueryMessage.OpType type, String sdfsName, long opId) {
+		return queryMaster(QueryMessage.newBuilder()
+			.setType(type)
+			.setSdfsName(sdfsName)
+			.setOpId(opId));
+	}
+
+	/**
+	* Send query to the Master over a pooled connection, filling in our id and a request id, and return its response
+	*/
+	private QueryResponseMessage queryMaster(QueryMessage.Builder queryBuilder) {
+		Connection connection = null;
+		try {
+			byte[] query = queryBuilder
+				.setId(membershipList.getHostId())
+				.setRequestId(connectionPool.nextRequestId())
+				.build().toByteArray();
+			connection = connectionPool.request(master.getId(), masterPort, query);
+
+			byte[] response = new byte[connection.getIn().readInt()];
+			connection.getIn().readFully(response);
+			connectionPool.release(connection);
+			return QueryResponseMessage.parseFrom(response);
+		} catch(Exception e) {
+			System.out.println("Failed reading query response from Master...");
+			e.printStackTrace();
+			connectionPool.invalidate(connection);
+		}
+		return null;
+	}
+
+	/**
+	* Send a request to a Replicant over connection, tagging it with a request id
+	*/
+	private void sendRequest(Connection connection, RequestMessage.Builder requestBuilder) throws IOException {
+		byte[] request = requestBuilder.setRequestId(connectionPool.nextRequestId()).build().toByteArray();
+		connection.getOut().writeInt(request.length);
+		connection.getOut().write(request);
+	}
 
 	/**
-	* Write the contents of byte[] data into the local file "file"
+	* Send a request to the Replicant replicaId over a pooled connection, tagging it with a request id
+	*
+	* @return the Connection to read the reply from
 	*/
-	private void writeBytesToFile(byte[] data, String file) throws IOException {
-		FileUtils.writeByteArrayToFile(new File(file), data);
+	private Connection request(String replicaId, RequestMessage.Builder requestBuilder) throws IOException {
+		byte[] request = requestBuilder.setRequestId(connectionPool.nextRequestId()).build().toByteArray();
+		return connectionPool.request(replicaId, dataTransferPort, request);
 	}
 
 	/**
-	* Read the contents of a file into a byte array and return it
+	* Tell the Master that the replicas for pending operation opId have been updated so it can apply the metadata change
+	*
+	* @param sdfsName: String denoting the sdfs file the operation was on
+	* @param opId: long id the Master gave the operation when it handed out replicas
+	* @return true if the Master applied the change
 	*/
-	private byte[] getBytesFromFile(String file) throws IOException {
-		return FileUtils.readFileToByteArray(new File(file));
+	private boolean commitOperation(String sdfsName, long opId) {
+		QueryResponseMessage commitResponse = queryMaster(QueryMessage.OpType.COMMIT, sdfsName, opId);
+		return commitResponse != null && commitResponse.getStatus() == 200;
 	}
 
-	private void shutConnection(Socket s, DataInputStream is, DataOutputStream os) {
+	/**
+	* Tell the Master to drop pending operation opId, which this host gave up on
+	*
+	* @return true if the Master dropped it
+	*/
+	private boolean abortOperation(String sdfsName, long opId) {
+		QueryResponseMessage abortResponse = queryMaster(QueryMessage.OpType.ABORT, sdfsName, opId);
+		return abortResponse != null && abortResponse.getStatus() == 200;
+	}
+
+	/**
+	* Commit a PUT, telling the Master which replicas acked every block. The Master only applies it if every block
+	* reached its write quorum, and waits for the other replicas to catch up before listing them.
+	*
+	* @param stored: Map<String, List<String>> replicas that acked each block
+	*/
+	private boolean commitPut(String sdfsName, long opId, Map<String, List<String>> stored) {
+		QueryMessage.Builder commit = QueryMessage.newBuilder()
+			.setType(QueryMessage.OpType.COMMIT)
+			.setSdfsName(sdfsName)
+			.setOpId(opId);
+		for(Map.Entry<String, List<String>> block : stored.entrySet()) {
+			commit.addStored(BlockPlacement.newBuilder().setName(block.getKey()).addAllReplicas(block.getValue()));
+		}
+		QueryResponseMessage commitResponse = queryMaster(commit);
+		return commitResponse != null && commitResponse.getStatus() == 200;
+	}
+
+	/**
+	* Get how many of replicas must store a block before the PUT is acked
+	*/
+	private int quorum(List<String> replicas) {
+		return writeQuorum <= 0 ? replicas.size() : Math.min(writeQuorum, replicas.size());
+	}
+
+	/**
+	* Get the PUT of a block down its pipeline, which is acked once the write quorum stored it.
+	* Every replica stores the block under the version number the Master gave the PUT.
+	*/
+	private RequestMessage.Builder putRequest(BlockPlacement block, long opId, int version) {
+		return RequestMessage.newBuilder()
+			.setType(RequestMessage.ReqType.PUT)
+			.setSdfsName(block.getName())
+			.setVersion(version)
+			.setQuorum(quorum(block.getReplicasList()))
+			.setOpId(opId);
+	}
+
+	/**
+	* Make localName a hard link to file, so a GET does not write the file a second time. Falls back to a copy where
+	* the two cannot be linked, e.g. when they are on different file systems.
+	*/
+	private static void link(File file, String localName) throws IOException {
+		Path target = new File(localName).toPath();
+		Files.deleteIfExists(target);
 		try {
-			s.close();
-			is.close();
-			os.close();
-		} catch(Exception e) {
-			System.out.println("Failed shutting down connection in query..." + e);
+			Files.createLink(target, file.toPath());
+		} catch(IOException | UnsupportedOperationException e) {
+			Files.copy(file.toPath(), target, StandardCopyOption.REPLACE_EXISTING);
 		}
 	}
 
-	private void sendQuery(byte[] query) {
+	/**
+	* Get a cached file out to localName, unless it was changed since it was cached
+	*
+	* @return true if localName now holds the cached file
+	*/
+	private boolean useCached(FileCache.CachedFile cached, String sdfsName, String localName) {
+		if(!cached.isIntact()) {
+			fileCache.invalidate(sdfsName);
+			return false;
+		}
 		try {
-			out.writeInt(query.length);
-			out.write(query);
-		} catch(Exception e) {
-			System.out.println("Failed to send query...");
-			e.printStackTrace();
+			link(cached.getFile(), localName);
+			return true;
+		} catch(IOException e) {
+			System.out.println("Failed copying cached file..." + e);
+			return false;
+		}
+	}
+
+	/**
+	* Ask the Master where the blocks of sdfsName are stored and which version it committed last
+	*
+	* @return the Master's response, or null if sdfsName is not in the sdfs
+	*/
+	private QueryResponseMessage lookupLocations(String sdfsName) {
+		System.out.println("Contacting Master for <GET " + sdfsName + ">");
+		QueryResponseMessage queryResponse = queryMaster(QueryMessage.OpType.GET, sdfsName, 0);
+		if(queryResponse == null || queryResponse.getStatus() != 200) {
+			fileCache.invalidate(sdfsName);
+			return null;
+		}
+		return queryResponse;
+	}
+
+	/**
+	* Send a GET for sdfsName to the best replica in ranked and wait for a replica to answer with its ack.
+	* If hedging is on and the replica has not answered within the hedgePercentile of recent response times, the same
+	* GET is sent to the next best replica too. The first to answer wins and the other attempt is cancelled.
+	* A replica that fails outright before the hedge is sent is replaced by the next best replica straight away.
+	*
+	* @param ranked: List<String> of replicas storing sdfsName, best first
+	* @param request: RequestMessage holding the GET
+	* @return the attempt that answered first, or null if no replica answered
+	*/
+	private GetAttempt awaitFirstAnswer(List<String> ranked, RequestMessage request) throws InterruptedException {
+		ExecutorCompletionService<GetAttempt> answers = new ExecutorCompletionService<GetAttempt>(readExecutor);
+		List<GetAttempt> attempts = new ArrayList<GetAttempt>();
+		attempts.add(new GetAttempt(connectionPool, latencyTracker, ranked.get(0), dataTransferPort, request));
+		answers.submit(attempts.get(0));
+		readCount.incrementAndGet();
+
+		long hedgeAfter = -1;
+		if(hedgeGets && ranked.size() > 1) {
+			double percentile = latencyTracker.percentile(hedgePercentile, HEDGE_MIN_SAMPLES);
+			hedgeAfter = percentile < 0 ? hedgeDelay : (long) Math.ceil(percentile);
+		}
+		GetAttempt winner = null;
+		boolean hedged = false;
+		int pending = 1;
+		while(winner == null && pending > 0) {
+			boolean canHedge = attempts.size() == 1 && ranked.size() > 1;
+			Future<GetAttempt> answer = canHedge && hedgeAfter >= 0 ? answers.poll(hedgeAfter, TimeUnit.MILLISECONDS) : answers.take();
+			if(answer == null) {
+				// The first replica is slower than usual, ask the next best one as well
+				log.debug("Hedging GET to " + ranked.get(1) + " after " + hedgeAfter + "ms");
+				hedgeCount.incrementAndGet();
+				hedged = true;
+			} else {
+				pending--;
+				try {
+					winner = answer.get();
+					continue;
+				} catch(ExecutionException e) {
+					System.out.println("Failed getting file from replica..." + e.getCause());
+					if(!canHedge) {
+						continue;
+					}
+				}
+			}
+			attempts.add(new GetAttempt(connectionPool, latencyTracker, ranked.get(1), dataTransferPort, request));
+			answers.submit(attempts.get(1));
+			pending++;
+		}
+
+		for(GetAttempt attempt : attempts) {
+			if(attempt != winner) {
+				attempt.cancel();
+			}
+		}
+		if(hedged && winner == attempts.get(1)) {
+			hedgeWins.incrementAndGet();
 		}
+		return winner;
 	}
 
-	private QueryResponseMessage getQueryResponse() {
+	/**
+	* Download sdfsName from one of replicaList into localName, hedging the request if the first replica is slow.
+	* With more than one replica only the first stripeSize bytes are read this way and the rest of a larger file is
+	* striped across all of the replicas.
+	* If the replica drops part way through, what arrived is kept and the rest of the same version is read from the other replicas.
+	* The file is always read as a range, so the replica sends the size and checksum of its version along with it and
+	* every other replica a part of it comes from must agree on both.
+	* Pinned to the version the Master committed last, a replica that does not hold it refuses and the next one is asked.
+	*
+	* @param sdfsName: String denoting the name the file exists under in the sdfs
+	* @param localName: String denoting the name the file will exist under on our current host
+	* @param replicaList: List<String> of replicas storing sdfsName
+	* @param version: int version to read, 0 for whatever the replica has as its latest
+	* @return true if localName now holds the latest version of sdfsName
+	*/
+	private boolean getFromReplica(String sdfsName, String localName, List<String> replicaList, int version) {
+		RequestMessage.Builder request = RequestMessage.newBuilder()
+			.setType(RequestMessage.ReqType.GET)
+			.setSdfsName(sdfsName)
+			.setVersion(version);
+		// Ask for the first stripe only, the rest are fetched from every replica once we know how large the file is
+		boolean striped = stripeGets && replicaList.size() > 1;
+		request.setOffset(0).setLength(striped ? stripeSize : Long.MAX_VALUE);
+		GetAttempt attempt;
 		try {
-			int length = in.readInt();
-			byte[] response = new byte[length];
-			in.readFully(response);
-			return QueryResponseMessage.parseFrom(response);
+			attempt = awaitFirstAnswer(latencyTracker.rank(replicaList), request.build());
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		if(attempt == null) {
+			return false;
+		}
+
+		Connection connection = attempt.getConnection();
+		File download = null;
+		try {
+			if(attempt.getAck() != 1 && version > 0 && replicaList.size() > 1) {
+				// Not current, so ask the others
+				System.out.println("Replica " + attempt.getReplicaId() + " does not have version " + version + " of " + sdfsName + "...");
+				connectionPool.release(connection);
+				List<String> others = new ArrayList<String>(replicaList);
+				others.remove(attempt.getReplicaId());
+				return getFromReplica(sdfsName, localName, others, version);
+			}
+			if(attempt.getAck() != 1) { System.out.println("Replica refused file..."); connectionPool.release(connection); return false;}
+			download = fileCache.newFile(sdfsName);
+			try(FileChannel file = FileChannel.open(download.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+				Queue<long[]> stripes = new ConcurrentLinkedQueue<long[]>();
+				AtomicLong received = new AtomicLong();
+				try {
+					FileTransfer.receiveRange(connection.getIn(), file, 0, received);
+					connectionPool.release(connection);
+					connection = null;
+				} catch(IOException e) {
+					// Keep what arrived and continue from there, from any replica holding the same version
+					System.out.println("Lost " + attempt.getReplicaId() + " after " + received.get() + " bytes of " + sdfsName + ", resuming..." + e);
+					connectionPool.invalidate(connection);
+					connection = null;
+					if(!striped) {
+						// Not from the replica that just dropped, however well it ranks
+						List<String> others = new ArrayList<String>(replicaList);
+						others.remove(attempt.getReplicaId());
+						if(readRange(sdfsName, attempt.getVersion(), attempt.getFileSize(), attempt.getChecksum(), others, file, 0, received.get()) < 0) {
+							throw new IOException("No replica left to resume " + sdfsName + " from");
+						}
+					} else if(received.get() < Math.min(stripeSize, attempt.getFileSize())) {
+						stripes.add(new long[]{received.get(), Math.min(stripeSize, attempt.getFileSize()) - received.get()});
+					}
+				}
+				if(striped) {
+					for(long offset = stripeSize; offset < attempt.getFileSize(); offset += stripeSize) {
+						stripes.add(new long[]{offset, Math.min(stripeSize, attempt.getFileSize() - offset)});
+					}
+					getStripes(sdfsName, attempt.getVersion(), attempt.getFileSize(), attempt.getChecksum(), replicaList, stripes, file);
+				}
+			}
+			link(download, localName);
+			fileCache.putFile(sdfsName, attempt.getVersion(), download);
+			System.out.println("GOT " + sdfsName + " from " + attempt.getReplicaId() + ": Written to " + localName);
+			return true;
 		} catch(Exception e) {
-			System.out.println("Failed reading query response from Master...");
-			e.printStackTrace();
+			System.out.println("Failed getting file from replica..." + e);
+			connectionPool.invalidate(connection);
+			FileUtils.deleteQuietly(download);
+		} finally {
+			attempt.finish();
+		}
+		return false;
+	}
+
+	/**
+	* Fetch the stripes of version of sdfsName still missing from file, spread over all of replicaList at once.
+	* Each replica pulls the next stripe off a shared queue as soon as it is done with its last, so faster replicas
+	* serve more of the file, and writes it into file at its position. When a replica fails part way through a stripe,
+	* the part of it that did not arrive is put back for the others to pick up. A replica whose copy of the version
+	* differs in size or checksum from the one the first stripe came from is not read from at all.
+	*
+	* @param sdfsName: String denoting the name the file exists under in the sdfs
+	* @param version: int denoting the version being read, so every replica sends the same contents
+	* @param size: long size of the version, which every replica must report
+	* @param checksum: long CRC32 of the version, which every replica must report
+	* @param replicaList: List<String> of replicas storing sdfsName
+	* @param stripes: Queue<long[]> of the offset and length of every stripe to fetch
+	* @param file: FileChannel of the file being reassembled
+	*/
+	private void getStripes(String sdfsName, int version, long size, long checksum, List<String> replicaList, Queue<long[]> stripes, FileChannel file) throws IOException, InterruptedException {
+		Set<String> failed = ConcurrentHashMap.newKeySet();
+		while(!stripes.isEmpty()) {
+			List<Future<?>> readers = new ArrayList<Future<?>>();
+			for(String replicaId : replicaList) {
+				if(!failed.contains(replicaId)) {
+					readers.add(readExecutor.submit(() -> {
+						if(!readStripes(sdfsName, version, size, checksum, replicaId, stripes, file)) {
+							failed.add(replicaId);
+						}
+					}));
+				}
+			}
+			if(readers.isEmpty()) {
+				throw new IOException("No replica left to read " + sdfsName + " from");
+			}
+			for(Future<?> reader : readers) {
+				try {
+					reader.get();
+				} catch(ExecutionException e) {
+					throw new IOException(e.getCause());
+				}
+			}
 		}
-		return null;
 	}
 
 	/**
-	* Helper function to set up Master Socket for TCP communication
+	* Fetch stripes of sdfsName from replicaId over one connection until there are none left
+	*
+	* @return false if the replica failed, with what is left of the stripe it was on put back into stripes
 	*/
-	private void setUpSocket(String id, int port) {
+	private boolean readStripes(String sdfsName, int version, long size, long checksum, String replicaId, Queue<long[]> stripes, FileChannel file) {
+		Connection connection = null;
+		long[] stripe = null;
+		AtomicLong received = new AtomicLong();
+		latencyTracker.started(replicaId);
 		try {
-			this.socket = new Socket(InetAddress.getByName(id.split(":")[0]), port);
-			this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
-			this.out = new DataOutputStream(socket.getOutputStream());
-		} catch(Exception e) {
-			System.out.println("Failed setting up Master Socket for query..." + e);
+			while((stripe = stripes.poll()) != null) {
+				received.set(0);
+				RequestMessage.Builder get = RequestMessage.newBuilder()
+					.setType(RequestMessage.ReqType.GET)
+					.setSdfsName(sdfsName)
+					.setVersion(version)
+					.setOffset(stripe[0])
+					.setLength(stripe[1]);
+				if(connection == null) {
+					connection = request(replicaId, get);
+				} else {
+					sendRequest(connection, get);
+				}
+				DataInputStream in = connection.getIn();
+				if(in.readInt() != 1) {
+					System.out.println("Replica " + replicaId + " does not have version " + version + " of " + sdfsName);
+					stripes.add(stripe);
+					connectionPool.release(connection);
+					return false;
+				}
+				in.readInt();
+				if(in.readLong() != size || in.readLong() != checksum) {
+					// Same number, different contents: the range that follows is no use, and neither is the connection
+					System.out.println("Replica " + replicaId + " holds a different version " + version + " of " + sdfsName + "...");
+					stripes.add(stripe);
+					connectionPool.invalidate(connection);
+					return false;
+				}
+				FileTransfer.receiveRange(in, file, stripe[0], received);
+			}
+			connectionPool.release(connection);
+			return true;
+		} catch(IOException e) {
+			System.out.println("Failed getting stripe from " + replicaId + "..." + e);
+			if(stripe != null && received.get() < stripe[1]) {
+				stripes.add(new long[]{stripe[0] + received.get(), stripe[1] - received.get()});
+			}
+			connectionPool.invalidate(connection);
+			return false;
+		} finally {
+			latencyTracker.finished(replicaId);
 		}
 	}
 
-	/** TODO: ADD CACHING CHECK
-	* Contact Master to let it know we want to get a sdfs file sdfsName
-	* Receive a list of replicas to get file from from Master.
-	* Download the file from one of the replicas (random/heuristically) and store as localName
+	/**
+	* Download a file split into several blocks. The blocks are read in parallel, each from the best of its own replicas,
+	* and written into place in the download.
 	*
 	* @param sdfsName: String denoting the name the file exists under in the sdfs
 	* @param localName: String denoting the name the file will exist under on our current host
+	* @param locations: QueryResponseMessage from the Master holding the replicas of every block
+	* @return true if localName now holds the latest version of sdfsName
 	*/
-	private void handleGet(String sdfsName, String localName) {
-		log.debug("Sending GET for " + sdfsName);
-		System.out.println("Contacting Master for <GET " + sdfsName + ">");
-		setUpSocket(master.getId(), masterPort);
-		var messageBuilder = FSMessages.QueryMessage.newBuilder()
-			.setId(membershipList.getHostId())
-			.setType(FSMessages.QueryMessage.OpType.GET)
-			.setSdfsName(sdfsName);
-		sendQuery(messageBuilder.build().toByteArray());
+	private boolean getBlocks(String sdfsName, String localName, QueryResponseMessage locations) {
+		int version = locations.getVersion();
 
-		// Handle the response
-		QueryResponseMessage queryResponse = getQueryResponse();
-		if(queryResponse.getStatus() == 200) {
-			shutConnection(socket, in, out);
-			// Choose a replica and contact it to retrieve a file
-			ArrayList<String> replicaList = new ArrayList<String>(queryResponse.getReplicasList());
-			String replicaId = replicaList.get(new Random().nextInt(replicaList.size()));
-			setUpSocket(replicaId, dataTransferPort);
+		File download = fileCache.newFile(sdfsName);
+		try(FileChannel file = FileChannel.open(download.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			List<Callable<Long>> reads = new ArrayList<Callable<Long>>();
+			for(int i = 0; i < locations.getBlocksCount(); i++) {
+				BlockPlacement block = locations.getBlocks(i);
+				// Every block of the latest version is stored under its number, so pin them all to it
+				long offset = i * locations.getBlockSize();
+				reads.add(() -> readBlock(block, version, file, offset));
+			}
+			for(Future<Long> read : blockExecutor.invokeAll(reads)) {
+				if(read.get() < 0) {
+					FileUtils.deleteQuietly(download);
+					return false;
+				}
+			}
+		} catch(Exception e) {
+			System.out.println("Failed getting blocks of " + sdfsName + "..." + e);
+			FileUtils.deleteQuietly(download);
+			return false;
+		}
+		try {
+			link(download, localName);
+		} catch(IOException e) {
+			System.out.println("Failed writing " + localName + "..." + e);
+			FileUtils.deleteQuietly(download);
+			return false;
+		}
+		if(version > 0) {
+			fileCache.putFile(sdfsName, version, download);
+		} else {
+			FileUtils.deleteQuietly(download);
+		}
+		System.out.println("GOT " + sdfsName + " (" + locations.getBlocksCount() + " blocks): Written to " + localName);
+		return true;
+	}
+
+	/**
+	* Read one block into file at position, trying its replicas from best to worst
+	*
+	* @param block: BlockPlacement naming the block and its replicas
+	* @param version: int version of the block to read, 0 for the latest
+	* @param file: FileChannel the block is written into
+	* @param position: long position in file to write the block at
+	* @return the size of the block, or -1 if no replica could send it
+	*/
+	private long readBlock(BlockPlacement block, int version, FileChannel file, long position) {
+		return readRange(block.getName(), version, -1, 0, block.getReplicasList(), file, position, 0);
+	}
+
+	/**
+	* Read sdfsName from done bytes in to its end into file at position + done, trying replicas from best to worst.
+	* When a replica drops part way, the next one carries on from where it stopped, pinned to the same version and
+	* only if it reports the same size and checksum for it.
+	*
+	* @param sdfsName: String denoting the name the file exists under in the sdfs
+	* @param version: int version to read, 0 for the latest
+	* @param size: long size of the version the bytes in place came from, -1 to take the first replica's
+	* @param checksum: long CRC32 of the version the bytes in place came from
+	* @param replicas: List<String> of replicas storing sdfsName
+	* @param file: FileChannel the file is written into
+	* @param position: long position in file the start of sdfsName goes at
+	* @param done: long number of bytes already in place
+	* @return the size of the file, or -1 if no replica could send the rest of it
+	*/
+	private long readRange(String sdfsName, int version, long size, long checksum, List<String> replicas, FileChannel file, long position, long done) {
+		for(String replicaId : latencyTracker.rank(replicas)) {
+			Connection connection = null;
+			AtomicLong received = new AtomicLong();
+			latencyTracker.started(replicaId);
 			try {
-				var requestBuilder = FSMessages.RequestMessage.newBuilder()
-					.setType(FSMessages.RequestMessage.ReqType.GET)
-					.setSdfsName(sdfsName);
-				sendQuery(requestBuilder.build().toByteArray());
+				long sent = System.nanoTime();
+				connection = request(replicaId, RequestMessage.newBuilder()
+					.setType(RequestMessage.ReqType.GET)
+					.setSdfsName(sdfsName)
+					.setVersion(version)
+					.setOffset(done)
+					.setLength(Long.MAX_VALUE));
+				DataInputStream in = connection.getIn();
+				if(in.readInt() != 1) {
+					System.out.println("Replica " + replicaId + " does not have " + sdfsName + "...");
+					connectionPool.release(connection);
+					continue;
+				}
+				latencyTracker.recordResponse(replicaId, (System.nanoTime() - sent) / 1e6);
+				int sentVersion = in.readInt();
+				long sentSize = in.readLong();
+				long sentChecksum = in.readLong();
+				if(size < 0) {
+					version = sentVersion;
+					size = sentSize;
+					checksum = sentChecksum;
+				} else if(sentSize != size || sentChecksum != checksum) {
+					System.out.println("Replica " + replicaId + " holds a different version " + sentVersion + " of " + sdfsName + "...");
+					connectionPool.invalidate(connection);
+					continue;
+				}
+				long length = FileTransfer.receiveRange(in, file, position + done, received);
+				connectionPool.release(connection);
+				return done + length;
+			} catch(IOException e) {
+				System.out.println("Failed getting " + sdfsName + " from " + replicaId + " after " + (done + received.get()) + " bytes..." + e);
+				connectionPool.invalidate(connection);
+				done += received.get();
+			} finally {
+				latencyTracker.finished(replicaId);
+			}
+		}
+		return -1;
+	}
 
-				// Wait for an ACK (1) and then begin file download
-				int ack = in.readInt();
-				if(ack != 1) { System.out.println("Replica refused file..."); return;}
-				int length = in.readInt();
-				byte[] data = new byte[length];
-				in.readFully(data);
-				writeBytesToFile(data, localName);
-				System.out.println("GOT " + sdfsName + ": Written to " + localName);
-			} catch(Exception e) {
-				System.out.println("Failed getting file from replica..." + e);
+	/**
+	* Stream the range of file making up one block down a pipeline through the block's replicas
+	*
+	* @param file: File being uploaded
+	* @param block: BlockPlacement naming the block and its replicas
+	* @param offset: long position of the block in file
+	* @param blockSize: long size of a full block
+	* @param opId: long id of the PUT, which the replicas after the write quorum report to the Master under
+	* @param version: int version number the Master gave the PUT
+	* @param storedOn: Map<String, List<String>> the replicas that acked the block are added to
+	* @return true if the write quorum of replicas stored the block
+	*/
+	private boolean putBlock(File file, BlockPlacement block, long offset, long blockSize, long opId, int version, Map<String, List<String>> storedOn) {
+		List<String> replicaList = block.getReplicasList();
+		long length = Math.max(0, Math.min(blockSize, file.length() - offset));
+		if(chunkSize > 0 && length > smallFileSize) {
+			return putChunks(file, block, offset, length, opId, version, storedOn);
+		}
+		Connection pipeline = Pipeline.open(connectionPool, putRequest(block, opId, version).build(), replicaList, dataTransferPort);
+		if(pipeline == null) { System.out.println("Replica refused " + block.getName() + "..."); return false; }
+		try {
+			FileTransfer.sendRange(file, offset, blockSize, pipeline.getOut(), pipeline.getChannel());
+			// Wait for the ack from the head of the pipeline listing every replica that stored the block
+			List<String> stored = Pipeline.readStored(pipeline.getIn());
+			connectionPool.release(pipeline);
+			storedOn.put(block.getName(), stored);
+			if(stored.size() < quorum(replicaList)) {
+				System.out.println("Only stored " + block.getName() + " on " + stored + " of " + replicaList + "...");
+				return false;
 			}
-		} else {
-			System.out.println("File not available.");
+			return true;
+		} catch(IOException e) {
+			System.out.println("Failed to send " + block.getName() + " to replicas.." + e);
+			connectionPool.invalidate(pipeline);
+			return false;
+		}
+	}
+
+	/**
+	* Split the block into content-defined chunks and send down the pipeline only the chunks some replica lacks, so a new
+	* version that mostly matches the last one costs little more than its changes
+	*
+	* @return true if the write quorum of replicas stored the block
+	*/
+	private boolean putChunks(File file, BlockPlacement block, long offset, long length, long opId, int version, Map<String, List<String>> storedOn) {
+		List<String> replicaList = block.getReplicasList();
+		try(FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			List<Chunker.Chunk> chunks = new Chunker(chunkSize).split(source, offset, length);
+			byte[][] hashes = new byte[chunks.size()][];
+			FileChannel[] sources = new FileChannel[chunks.size()];
+			long[] positions = new long[chunks.size()];
+			long[] lengths = new long[chunks.size()];
+			for(int i = 0; i < chunks.size(); i++) {
+				hashes[i] = chunks.get(i).getHash();
+				sources[i] = source;
+				positions[i] = chunks.get(i).getOffset();
+				lengths[i] = chunks.get(i).getLength();
+			}
+			List<String> stored = Pipeline.putChunks(connectionPool, putRequest(block, opId, version), replicaList, dataTransferPort,
+					hashes, sources, positions, lengths, null);
+			if(stored == null) { System.out.println("Replica refused " + block.getName() + "..."); return false; }
+			storedOn.put(block.getName(), stored);
+			if(stored.size() < quorum(replicaList)) {
+				System.out.println("Only stored " + block.getName() + " on " + stored + " of " + replicaList + "...");
+				return false;
+			}
+			return true;
+		} catch(IOException e) {
+			System.out.println("Failed to send " + block.getName() + " to replicas.." + e);
+			return false;
+		}
+	}
+
+	/**
+	* Upload one part of a multipart PUT down a pipeline through the replicas of its block.
+	* The replicas stage the part under uploadId until the Master publishes the upload. A part that fails, or does not
+	* reach every replica, is sent again on its own after a backoff, up to multipartRetries times. The replicas keep what
+	* they received of a failed part, so a retry only sends the bytes the pipeline does not hold yet.
+	*
+	* @param file: File being uploaded
+	* @param block: BlockPlacement naming the block the part belongs to and its replicas
+	* @param uploadId: long id of the upload, the operation id of the PUT
+	* @param blockOffset: long position of the block in file
+	* @param partOffset: long position of the part within the block
+	* @param length: long size of the part
+	* @return true if at least one replica stored the part
+	*/
+	private boolean putPart(File file, BlockPlacement block, long uploadId, long blockOffset, long partOffset, long length) {
+		List<String> replicaList = block.getReplicasList();
+		RequestMessage put = RequestMessage.newBuilder()
+			.setType(RequestMessage.ReqType.PUT)
+			.setSdfsName(block.getName())
+			.setUploadId(uploadId)
+			.setOffset(partOffset)
+			.build();
+		boolean stored = false;
+		for(int attempt = 0; attempt <= multipartRetries; attempt++) {
+			if(attempt > 0) {
+				try {
+					Thread.sleep(retryBackoff << (attempt - 1));
+				} catch(InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return false;
+				}
+			}
+			Connection pipeline = Pipeline.open(connectionPool, put, replicaList, dataTransferPort);
+			if(pipeline == null) {
+				System.out.println("Replicas refused part at " + partOffset + " of " + block.getName() + "...");
+				continue;
+			}
+			try {
+				long resume = Math.min(length, pipeline.getIn().readLong());
+				if(resume > 0) {
+					System.out.println("Resuming part at " + partOffset + " of " + block.getName() + " from byte " + resume);
+				}
+				FileTransfer.sendRange(file, blockOffset + partOffset + resume, length - resume, pipeline.getOut(), pipeline.getChannel());
+				List<String> storedOn = Pipeline.readStored(pipeline.getIn());
+				connectionPool.release(pipeline);
+				stored |= !storedOn.isEmpty();
+				if(storedOn.size() >= replicaList.size()) {
+					return true;
+				}
+				System.out.println("Only stored part at " + partOffset + " of " + block.getName() + " on " + storedOn + ", retrying...");
+			} catch(IOException e) {
+				System.out.println("Failed to send part at " + partOffset + " of " + block.getName() + ", retrying..." + e);
+				connectionPool.invalidate(pipeline);
+			}
+		}
+		// The Master drops the replicas that missed a part when it publishes the upload
+		return stored;
+	}
+
+	/**
+	* Print how many GETs went to replicas, how many of them were hedged and how often the hedge answered first
+	*/
+	public void printReadMetrics() {
+		long reads = readCount.get();
+		long hedges = hedgeCount.get();
+		System.out.println("Replica GETs: " + reads);
+		System.out.println("Hedged: " + hedges + (reads == 0 ? "" : String.format(" (%.1f%%)", 100.0 * hedges / reads)));
+		System.out.println("Hedge answered first: " + hedgeWins.get());
+		System.out.println("p" + hedgePercentile + " response time: " + latencyTracker.percentile(hedgePercentile, 1) + "ms");
+	}
+
+	/**
+	* Copy sdfsName straight out of the local Replicant's storage into localName, skipping the socket round-trip.
+	* Only valid when the Master lists this host as a replica, since replicas receive every committed version.
+	*
+	* @param version: int version to copy, 0 for the latest stored
+	* @return true if the local Replicant had that version and it was copied
+	*/
+	private boolean getFromLocalReplica(String sdfsName, String localName, int version) {
+		try {
+			if(!replicant.copyVersion(sdfsName, version, new File(localName))) {
+				return false;
+			}
+			System.out.println("GOT " + sdfsName + " from local replica: Written to " + localName);
+			return true;
+		} catch(IOException e) {
+			// Deleted or replaced while copying, read it from a replica instead
+			System.out.println("Failed reading local replica..." + e);
+			return false;
+		}
+	}
+
+	/**
+	* Get sdfsName into localName from the replicas in locations. A file of a single block is read from the local
+	* Replicant's copy if this host is one of its replicas, otherwise from the best replica.
+	*/
+	private boolean fetch(String sdfsName, String localName, QueryResponseMessage locations, FileCache.CachedFile cached) {
+		// Our cached copy is current if it is the version the Master committed last
+		int version = locations.getVersion();
+		if(cached != null && version > 0 && cached.getVersion() == version && useCached(cached, sdfsName, localName)) {
+			cached.validated();
+			System.out.println("GOT " + sdfsName + " (cached version " + version + "): Written to " + localName);
+			return true;
+		}
+		if(locations.getBlocksCount() > 1) {
+			return getBlocks(sdfsName, localName, locations);
+		}
+		List<String> replicaList = locations.getReplicasList();
+		if(replicaList.isEmpty()) {
+			return false;
+		}
+		if(replicaList.contains(membershipList.getHostId()) && getFromLocalReplica(sdfsName, localName, locations.getVersion())) {
+			return true;
+		}
+		return getFromReplica(sdfsName, localName, replicaList, version);
+	}
+
+	/**
+	* Get sdfs file sdfsName and store it as localName, going through the FileCache.
+	* Replicas are looked up with the Master, along with the version it committed last, which the read is pinned to.
+	* If this host is one of them the file is read locally, otherwise it is downloaded from the replica the
+	* LatencyTracker expects to answer fastest, hedged if it is slow.
+	* A cached copy of the file is revalidated with the Master by version, or used as is if it was validated within cacheFreshness.
+	*
+	* @param sdfsName: String denoting the name the file exists under in the sdfs
+	* @param localName: String denoting the name the file will exist under on our current host
+	*/
+	private void handleGet(String sdfsName, String localName) {
+		log.debug("Sending GET for " + sdfsName);
+		FileCache.CachedFile cached = fileCache.getFile(sdfsName);
+		if(cached != null && fileCache.isFresh(cached) && useCached(cached, sdfsName, localName)) {
+			System.out.println("GOT " + sdfsName + " from cache: Written to " + localName);
+			return;
 		}
-		shutConnection(socket, in, out);
+
+		QueryResponseMessage locations = lookupLocations(sdfsName);
+		if(locations != null && fetch(sdfsName, localName, locations, cached)) {
+			return;
+		}
+		System.out.println("File not available.");
 	}
 
 	/** DONE
 	* Contact Master to let it know we want to put our local file localName
 	* Receive a list of replicas to send file to from Master.
-	* Send local file to each of the replicas under sdfsName. Send ack back to Master after done.
+	* Send local file down a pipeline through the replicas under sdfsName. Commit with the Master after done.
+	* A block is stored once writeQuorum of its replicas acked it, the rest catch up in the background. The commit tells
+	* the Master which replicas acked, including when the quorum was not reached, so it never waits on a dead PUT.
+	* Files larger than multipartSize are uploaded as a multipart PUT: every block is cut into parts which are uploaded
+	* concurrently and retried on their own, and the new version only becomes visible once the Master publishes it on commit.
 	*
 	* @param sdfsName: string denoting the name the file will exist under in the sdfs
 	* @param localName: string denoting the name the file exists under on our current host
 	*/
 	private void handlePut(String sdfsName, String localName) {
 		log.debug("Sending PUT for " + sdfsName);
+		fileCache.invalidate(sdfsName);
+		File file = new File(localName);
+		if(!file.isFile()) {
+			System.out.println("Local file " + localName + " does not exist...");
+			return;
+		}
+		if(sdfsName.indexOf(Blocks.SEPARATOR) >= 0) {
+			System.out.println("SDFS names may not contain " + Blocks.SEPARATOR + "...");
+			return;
+		}
 		System.out.println("Contacting Master for <PUT " + sdfsName + ">" + master.getId());
-		setUpSocket(master.getId(), masterPort);
-		System.out.println("wow.." + (out == null));
-		var messageBuilder = FSMessages.QueryMessage.newBuilder()
-			.setId(membershipList.getHostId())
-			.setType(FSMessages.QueryMessage.OpType.PUT)
-			.setSdfsName(sdfsName);
-		sendQuery(messageBuilder.build().toByteArray());
-
-		// Handle the reseponse
-		QueryResponseMessage queryResponse = getQueryResponse();
-		if(queryResponse.getStatus() == 200) {
-			// Send file to all the replicas
-			Socket tempSocket = null;
-			DataInputStream tempIn = null;
-			DataOutputStream tempOut = null;
-			ArrayList<String> replicaList = new ArrayList<String>(queryResponse.getReplicasList());
+		// Handle the reseponse, the Master does not wait on us while we upload
+		boolean multipart = file.length() > multipartSize;
+		QueryResponseMessage queryResponse = queryMaster(QueryMessage.newBuilder()
+			.setType(QueryMessage.OpType.PUT)
+			.setSdfsName(sdfsName)
+			.setSize(file.length())
+			.setMultipart(multipart));
+		if(queryResponse != null && queryResponse.getStatus() == 200) {
+			// Stream every block (or every part of every block) once down its own replica pipeline, several at a time
+			List<Callable<Boolean>> puts = new ArrayList<Callable<Boolean>>();
+			Map<String, List<String>> storedOn = new ConcurrentHashMap<String, List<String>>();
+			long blockSize = queryResponse.getBlockSize();
+			for(int i = 0; i < queryResponse.getBlocksCount(); i++) {
+				BlockPlacement block = queryResponse.getBlocks(i);
+				long offset = i * blockSize;
+				if(!multipart) {
+					puts.add(() -> putBlock(file, block, offset, blockSize, queryResponse.getOpId(), queryResponse.getVersion(), storedOn));
+					continue;
+				}
+				long length = Math.min(blockSize, file.length() - offset);
+				for(long part = 0; part < length; part += multipartSize) {
+					long partOffset = part;
+					long partLength = Math.min(multipartSize, length - part);
+					puts.add(() -> putPart(file, block, queryResponse.getOpId(), offset, partOffset, partLength));
+				}
+			}
 			try {
-				byte[] data = getBytesFromFile(localName);
-				var requestBuilder = FSMessages.RequestMessage.newBuilder()
-						.setType(FSMessages.RequestMessage.ReqType.PUT)
-						.setSdfsName(sdfsName);
-				byte[] query = requestBuilder.build().toByteArray();
-
-				// Go through each replica and perform the send
-				for(String replicaId : replicaList) {
-					tempSocket = new Socket(InetAddress.getByName(replicaId.split(":")[0]), dataTransferPort);
-					tempIn = new DataInputStream(new BufferedInputStream(tempSocket.getInputStream()));
-					tempOut = new DataOutputStream(tempSocket.getOutputStream());
-					tempOut.writeInt(query.length);
-					tempOut.write(query);
-					int ack = tempIn.readInt();
-					// Wait for an ACK (1) and then send the file
-					if(ack != 1) { System.out.println("Replica refused the file..."); return; }
-					tempOut.writeInt(data.length);
-					tempOut.write(data);
-					shutConnection(tempSocket, tempIn, tempOut);
+				boolean stored = true;
+				for(Future<Boolean> put : blockExecutor.invokeAll(puts)) {
+					stored &= put.get();
+				}
+				if(!stored) {
+					System.out.println("Failed to store every block of " + sdfsName + "...");
+					if(multipart) {
+						// Have the Master throw away the parts staged on the replicas now
+						abortOperation(sdfsName, queryResponse.getOpId());
+					} else if(!storedOn.isEmpty()) {
+						// Let the Master drop the PUT now, it rejects it as some block is short of its quorum
+						commitPut(sdfsName, queryResponse.getOpId(), storedOn);
+					}
+					return;
 				}
 
-				// Send ack to master
-				out.writeInt(1);
-				System.out.println("Uploaded " + localName + " as " + sdfsName);
+				// Commit the upload with the master
+				if(multipart ? commitOperation(sdfsName, queryResponse.getOpId()) : commitPut(sdfsName, queryResponse.getOpId(), storedOn)) {
+					System.out.println("Uploaded " + localName + " as " + sdfsName);
+				} else {
+					System.out.println("Master rejected the commit for " + sdfsName + ", the upload may have timed out");
+				}
 			} catch(Exception e) {
 				System.out.println("Failed to send file to replicas.." + e);
+				if(multipart) {
+					abortOperation(sdfsName, queryResponse.getOpId());
+				}
 			}
 		} else {
 			System.out.println("Error grabbing replicas to send file to");
 		}
-		shutConnection(socket, in, out);
 	}
 
 	/** DONE
@@ -225,49 +965,40 @@ public class QueryWorker{
 	*/
 	private void handleDelete(String sdfsName) {
 		log.debug("Sending DELETE for" + sdfsName);
+		fileCache.invalidate(sdfsName);
 		// Send request to master
 		System.out.println("Contacting Master for <DELETE " + sdfsName + ">");
-		setUpSocket(master.getId(), masterPort);
-		var messageBuilder = FSMessages.QueryMessage.newBuilder()
-			.setId(membershipList.getHostId())
-			.setType(FSMessages.QueryMessage.OpType.DELETE)
-			.setSdfsName(sdfsName);
-		sendQuery(messageBuilder.build().toByteArray());
+		QueryResponseMessage queryResponse = queryMaster(QueryMessage.OpType.DELETE, sdfsName, 0);
 
 		// Handle the response
-		QueryResponseMessage queryResponse = getQueryResponse();
-		if(queryResponse.getStatus() == 200) {
-			Socket tempSocket = null;
-			DataInputStream tempIn = null;
-			DataOutputStream tempOut = null;
-			ArrayList<String> replicaList = new ArrayList<String>(queryResponse.getReplicasList());
+		if(queryResponse != null && queryResponse.getStatus() == 200) {
+			Connection connection = null;
 			try {
-				var requestBuilder = FSMessages.RequestMessage.newBuilder()
-						.setType(FSMessages.RequestMessage.ReqType.DELETE)
-						.setSdfsName(sdfsName);
-				byte[] query = requestBuilder.build().toByteArray();
-
-				// Go through each replica and perform delete
-				for(String replicaId : replicaList) {
-					tempSocket = new Socket(InetAddress.getByName(replicaId.split(":")[0]), dataTransferPort);
-					tempIn = new DataInputStream(new BufferedInputStream(tempSocket.getInputStream()));
-					tempOut = new DataOutputStream(tempSocket.getOutputStream());
-					tempOut.writeInt(query.length);
-					tempOut.write(query);
-					int ack = tempIn.readInt();
-					if(ack != 1) { System.out.println("Replica refused delete."); return; }
-					shutConnection(tempSocket, tempIn, tempOut);
+				// Go through each replica of each block and perform delete
+				for(BlockPlacement block : queryResponse.getBlocksList()) {
+					for(String replicaId : block.getReplicasList()) {
+						connection = request(replicaId, RequestMessage.newBuilder()
+							.setType(RequestMessage.ReqType.DELETE)
+							.setSdfsName(block.getName()));
+						int ack = connection.getIn().readInt();
+						connectionPool.release(connection);
+						connection = null;
+						if(ack != 1) { System.out.println("Replica refused delete."); return; }
+					}
+				}
+				if(commitOperation(sdfsName, queryResponse.getOpId())) {
+					System.out.println("Succesfully Deleted File!");
+				} else {
+					System.out.println("Master rejected the commit for deleting " + sdfsName);
 				}
-				out.writeInt(1);
-				System.out.println("Succesfully Deleted File!");
 			} catch(Exception e) {
 				System.out.println("Error deleting files..." + e);
+				connectionPool.invalidate(connection);
 			}
 		} 
 		else {
 			System.out.println("Succesfully Deleted File!");
 		}
-		shutConnection(socket, in, out);
 	}
 
 	/** DONE
@@ -276,76 +1007,151 @@ public class QueryWorker{
 	private void handleLS(String sdfsName) {
 		log.debug("Sending LS for " + sdfsName);
 		System.out.println("Contacting Master for <LS " + sdfsName + ">");
-		// Connect to the Master and send request
-		setUpSocket(master.getId(), masterPort);
-		var messageBuilder = FSMessages.QueryMessage.newBuilder()
-			.setId(membershipList.getHostId())
-			.setType(FSMessages.QueryMessage.OpType.LS)
-			.setSdfsName(sdfsName);
-
-		sendQuery(messageBuilder.build().toByteArray());
-
-		// Get Master response, handle, and close the connection
-		QueryResponseMessage queryResponse = getQueryResponse();
-		if(queryResponse.getStatus() == 200) {
+		// Ask the Master and handle its response
+		QueryResponseMessage queryResponse = queryMaster(QueryMessage.OpType.LS, sdfsName, 0);
+		if(queryResponse != null && queryResponse.getStatus() == 200) {
 			System.out.println(sdfsName + " stored at the following replicas: ");
 			for(String replicaId : queryResponse.getReplicasList()) {
 				System.out.println(replicaId);
 			}
+			if(queryResponse.getBlocksCount() > 1) {
+				for(BlockPlacement block : queryResponse.getBlocksList()) {
+					System.out.println("Block " + block.getName() + ": " + block.getReplicasList());
+				}
+			}
 		}
 		else {
 			System.out.println(sdfsName + " not found in the file system.");
 		}
-		shutConnection(socket, in, out);
 	}
 
 	/**
-	* Send request to Master to get the numVersions versions of sdfsname and store it into file localName
+	* Get the latest numVersions versions of a file split into several blocks into localName, newest first.
+	* Every version is assembled block by block, each block read under the version number the Master gave the version.
+	* Versions older than the oldest one the retention policy keeps are skipped.
 	*
-	* @param sdfsName: String denoting the sdfs file we want to retrieve
-	* @param localName: String denoting the local host file we will store results into
-	* @param numVersions: int denoting the number of versions of the sdfs file we will retrieve
+	* @param locations: QueryResponseMessage from the Master holding the replicas of every block the file has had
 	*/
-	private void handleVersion(String sdfsName, String localName, int numVersions) {
-		log.debug("Sending VERSION for " + sdfsName + " and " + numVersions + " versions.");
-		System.out.println("Contacting Master for <VERSION " + sdfsName + ">");
-		// Connect to the Master and send request
-		setUpSocket(master.getId(), masterPort);
-		var messageBuilder = FSMessages.QueryMessage.newBuilder()
-			.setId(membershipList.getHostId())
-			.setType(FSMessages.QueryMessage.OpType.VERSION)
-			.setSdfsName(sdfsName);
-		sendQuery(messageBuilder.build().toByteArray());
-
-		// Get Master response
-		QueryResponseMessage queryResponse = getQueryResponse();
-		if(queryResponse.getStatus() == 200) {
-			shutConnection(socket, in, out);
-			// Choose a replica and contact it to retrieve a file
-			ArrayList<String> replicaList = new ArrayList<String>(queryResponse.getReplicasList());
-			String replicaId = replicaList.get(new Random().nextInt(replicaList.size()));
-			setUpSocket(replicaId, dataTransferPort);
+	private void getVersionBlocks(String sdfsName, String localName, int numVersions, QueryResponseMessage locations) {
+		List<Integer> history = locations.getVersionBlocksList();
+		List<Integer> numbers = locations.getVersionNumbersList();
+		if(history.isEmpty() || numbers.size() != history.size()) {
+			System.out.println("The Master does not know the version history of " + sdfsName + "...");
+			return;
+		}
+		try(VersionWriter writer = new VersionWriter(sdfsName, localName)) {
+			int oldest = locations.hasOldestVersion() ? locations.getOldestVersion() : 0;
+			for(int v = history.size() - 1; v >= Math.max(0, history.size() - numVersions) && numbers.get(v) >= oldest; v--) {
+				int version = numbers.get(v);
+				FileChannel file = writer.begin(version);
+				long written = 0;
+				for(int i = 0; i < history.get(v); i++) {
+					long length = readBlock(locations.getBlocks(i), version, file, writer.position() + written);
+					if(length < 0) {
+						System.out.println("Failed getting version " + version + " of " + sdfsName + "...");
+						return;
+					}
+					written += length;
+				}
+				writer.end(written);
+			}
+			System.out.println("VERSIONED " + sdfsName + ": Written to " + localName);
+		} catch(IOException e) {
+			System.out.println("Failed writing versions of " + sdfsName + "..." + e);
+		}
+	}
+
+	/**
+	* Get the latest numVersions versions of a file of a single block into localName, newest first, from the best replica
+	* holding the version the Master committed last. The replica sends the versions it holds from that one down, and a
+	* replica that does not hold it, lagging behind or never sent it, refuses so the next one is asked.
+	* Numbers of PUTs the Master never committed, and versions older than the oldest one the retention policy keeps, are skipped.
+	*
+	* @param locations: QueryResponseMessage from the Master holding the replicas and version history of the file
+	*/
+	private void getVersions(String sdfsName, String localName, int numVersions, QueryResponseMessage locations) {
+		int version = locations.getVersion();
+		int oldest = locations.hasOldestVersion() ? locations.getOldestVersion() : 0;
+		List<Integer> numbers = locations.getVersionNumbersList();
+		Set<Integer> committed = new HashSet<Integer>();
+		int lowest = version;
+		for(int v = numbers.size() - 1; v >= 0 && committed.size() < numVersions && numbers.get(v) >= oldest; v--) {
+			committed.add(numbers.get(v));
+			lowest = Math.min(lowest, numbers.get(v));
+		}
+		if(version == 0 || committed.isEmpty()) {
+			System.out.println("The Master does not know the version history of " + sdfsName + "...");
+			return;
+		}
+		for(String replicaId : latencyTracker.rank(locations.getReplicasList())) {
+			Connection connection = null;
+			latencyTracker.started(replicaId);
 			try {
-				var requestBuilder = FSMessages.RequestMessage.newBuilder()
-					.setType(FSMessages.RequestMessage.ReqType.GET)
+				// Ask for every number down to the oldest committed version wanted, the uncommitted ones are dropped below
+				connection = request(replicaId, RequestMessage.newBuilder()
+					.setType(RequestMessage.ReqType.GET)
 					.setSdfsName(sdfsName)
-					.setVersions(numVersions);
-				sendQuery(requestBuilder.build().toByteArray());
+					.setVersion(version)
+					.setVersions(version - lowest + 1));
 				// Wait for an ACK (1) and then begin file download
-				int ack = in.readInt();
-				if(ack != 1) { System.out.println("Replica refused file..."); return;}
-				int length = in.readInt();
-				byte[] data = new byte[length];
-				in.readFully(data);
-				writeBytesToFile(data, localName);
+				DataInputStream in = connection.getIn();
+				if(in.readInt() != 1) {
+					System.out.println("Replica " + replicaId + " does not have version " + version + " of " + sdfsName + "...");
+					connectionPool.release(connection);
+					continue;
+				}
+				try(VersionWriter writer = new VersionWriter(sdfsName, localName)) {
+					int count = in.readInt();
+					for(int i = 0; i < count; i++) {
+						int sent = in.readInt();
+						if(committed.contains(sent)) {
+							FileChannel file = writer.begin(sent);
+							writer.end(FileTransfer.receiveRange(in, file, writer.position()));
+						} else {
+							FileTransfer.receive(in, ByteStreams.nullOutputStream());
+						}
+					}
+				}
+				connectionPool.release(connection);
 				System.out.println("VERSIONED " + sdfsName + ": Written to " + localName);
-			} catch(Exception e) {
-				System.out.println("Failed sending file to replica..." + e);
+				return;
+			} catch(IOException e) {
+				System.out.println("Failed getting versions of " + sdfsName + " from " + replicaId + "..." + e);
+				connectionPool.invalidate(connection);
+			} finally {
+				latencyTracker.finished(replicaId);
 			}
+		}
+		System.out.println("No replica could send version " + version + " of " + sdfsName + "...");
+	}
+
+	/**
+	* Send request to Master to get the latest numVersions versions of sdfsname and store them into localName.
+	* The replica streams the versions newest first, each as a transfer of its own, and each is written out as it arrives.
+	* Reads are pinned to the version the Master committed last, as GETs are.
+	*
+	* @param sdfsName: String denoting the sdfs file we want to retrieve
+	* @param localName: String denoting the local host file we will store results into, or a directory to store
+	*	every version in a file of its own
+	* @param numVersions: int denoting the number of versions of the sdfs file we will retrieve, at least 1
+	*/
+	private void handleVersion(String sdfsName, String localName, int numVersions) {
+		log.debug("Sending VERSION for " + sdfsName + " and " + numVersions + " versions.");
+		if(numVersions < 1) {
+			// A request for 0 versions is a plain GET to the replica, so never send one
+			System.out.println("Ask for at least one version of " + sdfsName + "...");
+			return;
+		}
+		System.out.println("Contacting Master for <VERSION " + sdfsName + ">");
+		// Ask the Master for the replicas
+		QueryResponseMessage queryResponse = queryMaster(QueryMessage.OpType.VERSION, sdfsName, 0);
+		if(queryResponse != null && queryResponse.getStatus() == 200 && queryResponse.getBlocksCount() > 1) {
+			getVersionBlocks(sdfsName, localName, numVersions, queryResponse);
+		} else if(queryResponse != null && queryResponse.getStatus() == 200) {
+			getVersions(sdfsName, localName, numVersions, queryResponse);
 		} else {
 			System.out.println("File not available.");
 		}
-		shutConnection(socket, in, out);
 	}
 
 	public void run(FSMessages.QueryMessage.OpType queryType, BufferedReader reader) {
@@ -386,7 +1192,7 @@ public class QueryWorker{
 					// Get sdfs filename, local filename, and versions then execute
 					System.out.println("Input the sdfs filename youu want to retrieve...");
 					sdfsName = reader.readLine();
-					System.out.println("Input the local filename you would like to store it as...");
+					System.out.println("Input the local filename you would like to store it as, or a directory for a file per version...");
 					localName = reader.readLine();
 					System.out.println("Input the number of versions you would like to retrieve...");
 					int versions = Integer.parseInt(reader.readLine());
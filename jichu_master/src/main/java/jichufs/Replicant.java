@@ -13,21 +13,46 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import java.io.*;
-import java.util.HashMap;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
 import java.lang.StringBuilder;
 import java.net.Socket;
 import java.net.ServerSocket;
-import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import static jichufs.FSMessages.BlockPlacement;
+import static jichufs.FSMessages.QueryMessage;
 import static jichufs.FSMessages.RequestMessage;
 /**
 * Always on thread responsible for responding to Query Thread requests from other servers.
 * Handles the following:
-* 	PUT: send ack to Query, receive the data, write it to disk, close the socket
-*	GET: send data over, close the socket
+* 	PUT: send ack to Query, receive the data, write it to disk while relaying it to the next replica, ack, close the socket.
+*		The last replica the write quorum needs acks as soon as it stored the data and copies it down the rest of the
+*		pipeline afterwards, then tells the Master which replicas stored it
+*	GET: send data over (or a range of it), or just an ack if the requester already has the latest version cached
 *	DELETE: delete locally, send ack
 *	REPLICATE: get file and list of replicas. send files to the replicas and ack back to master
+*	PUBLISH: check the parts of a multipart PUT staged for a block all arrived, then turn them into its next version
+*		or throw them away, as the master decides once every block is checked. Ack back to master each step
+*	PRUNE: drop the versions older than the one given, then ack back to master
 */
 @Component
 @Getter
@@ -42,241 +67,867 @@ public class Replicant implements Runnable {
 	private Helper helper;
 	@Autowired
 	private Member master;
+	@Autowired
+	private ConnectionPool connectionPool;
+	@Autowired
+	private BandwidthManager bandwidthManager;
 	private boolean leave;
 
 	// Networking Overhead
 	private ServerSocket serverSocket;
-	private Socket socket;
-	private DataInputStream in;
-	private DataOutputStream out;
+	private ExecutorService workers;
+	private IdleSelector idleConnections;
 	@Value("${dataTransferPort}")
 	int dataTransferPort;
 	@Value("${masterPort}")
 	int masterPort;
 
-	private byte[] request;	// handles storing the incoming request
-	private int length; // length of the incoming request
-	private RequestMessage requestMessage;
-	private HashMap<String, Integer> fileVersionMap; // HashMap storing local sdfs filenames to their current version
+	private AtomicInteger activeRequests; // requests being served right now, reported to other members in SWIM ACKs
+	private AtomicLong partCounter; // used to give concurrent uploads of the same file distinct partial files
+	private LocalStore store; // sdfs files stored here and their current version, kept across restarts
+	private ConcurrentHashMap<String, ConcurrentHashMap<Long, Long>> uploads; // staged multipart files -> offset of every part and the bytes of it stored
+	private ScheduledExecutorService sweeper;
+	private ExecutorService completions; // copies down the rest of a pipeline after the write quorum was acked
+	private long uploadTimeout;
+	private int collectInterval; // seconds between passes of the segment collector, 0 to turn it off
+	private double collectGarbage; // fraction of a segment that must be garbage for the collector to reclaim it
 
-	public Replicant(@Value("${dataTransferPort}") int dataPort) throws Exception{
+	public Replicant(@Value("${dataTransferPort}") int dataPort,
+					 @Value("${replicantThreads:16}") int threads,
+					 @Value("${replicantBacklog:128}") int backlog,
+					 @Value("${connectionIdleTimeout:60}") int idleTimeout,
+					 @Value("${pendingOpTimeout:600}") int uploadTimeout,
+					 @Value("${smallFileSize:262144}") long smallFileSize,
+					 @Value("${segmentSize:268435456}") long segmentSize,
+					 @Value("${chunkSize:1048576}") int chunkSize,
+					 @Value("${collectInterval:300}") int collectInterval,
+					 @Value("${collectGarbage:0.5}") double collectGarbage) throws Exception{
 		System.out.println("Setting up replicant to listen on port " + dataPort);
-		this.serverSocket = new ServerSocket(dataPort, 10);
-		this.fileVersionMap = new HashMap<String, Integer>();
+		// Open through a channel so accepted sockets expose a SocketChannel for zero-copy sends
+		ServerSocketChannel serverChannel = ServerSocketChannel.open();
+		serverChannel.socket().bind(new InetSocketAddress(dataPort), backlog);
+		this.serverSocket = serverChannel.socket();
+		// Bounded pool and queue: once both are full the accept thread serves the request itself, which throttles accepts
+		this.workers = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(backlog));
+		// Kept-alive connections wait here between requests instead of on a worker
+		this.idleConnections = new IdleSelector(workers, this::serve, idleTimeout * 1000L);
+		this.activeRequests = new AtomicInteger();
+		this.partCounter = new AtomicLong();
+		this.store = new LocalStore(new File("tmp"), smallFileSize, segmentSize, chunkSize);
+		this.uploads = new ConcurrentHashMap<String, ConcurrentHashMap<Long, Long>>();
+		this.sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable);
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.completions = Executors.newFixedThreadPool(threads, runnable -> {
+			Thread thread = new Thread(runnable);
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.uploadTimeout = uploadTimeout * 1000L;
+		this.collectInterval = collectInterval;
+		this.collectGarbage = collectGarbage;
+	}
+
+	/**
+	* Once the local copy is stored, wait for the rest of the pipeline and ack upstream with every replica that stored it.
+	* Takes care of releasing or closing downstream.
+	*/
+	private void ackPipeline(Connection connection, String sdfsName, Connection downstream, boolean relayed) throws IOException {
+		List<String> stored = new ArrayList<String>();
+		stored.add(membershipList.getHostId());
+		if(relayed) {
+			try {
+				stored.addAll(Pipeline.readStored(downstream.getIn()));
+				connectionPool.release(downstream);
+				downstream = null;
+			} catch(IOException e) {
+				System.out.println("Lost the rest of the pipeline for " + sdfsName + "..." + e);
+			}
+		}
+		connectionPool.invalidate(downstream);
+		Pipeline.writeStored(connection.getOut(), stored);
+	}
+
+	/**
+	* Whether this replica acks a PUT as soon as it stored it and copies it down the rest of the pipeline afterwards,
+	* being the last replica the write quorum of request needs
+	*/
+	private static boolean completesLater(RequestMessage request) {
+		return request.getQuorum() == 1 && request.getSendToCount() > 0;
+	}
+
+	/**
+	* Get the token bucket relaying a PUT down the pipeline goes through: the background one for copies made by
+	* re-replication, none for client PUTs
+	*/
+	private TokenBucket throttle(RequestMessage request) {
+		return request.getBackground() ? bandwidthManager.background() : null;
+	}
+
+	/**
+	* Get the PUT to send the next replica in the pipeline, which needs one replica less for its quorum
+	*/
+	private static RequestMessage forward(RequestMessage request) {
+		RequestMessage.Builder next = request.toBuilder().clearSendTo();
+		if(request.getQuorum() > 1) {
+			next.setQuorum(request.getQuorum() - 1);
+		}
+		return next.build();
 	}
 
-	private void shutConnection() {
+	/**
+	* Copy version of a PUT this replica acked early down the rest of its pipeline in the background,
+	* then tell the Master which replicas stored it so it lists them again
+	*/
+	private void completeLater(RequestMessage request, int version) {
+		completions.execute(() -> {
+			String sdfsName = request.getSdfsName();
+			List<String> stored = new ArrayList<String>();
+			try {
+				LocalStore.Extent extent = store.find(sdfsName, version);
+				List<String> copied = extent == null ? null : extent.isChunked()
+						? replicateChunks(sdfsName, version, extent, request.getSendToList(), null)
+						: replicateWhole(sdfsName, version, extent, request.getSendToList(), null);
+				if(copied != null) {
+					stored.addAll(copied);
+				}
+			} catch(Exception e) {
+				System.out.println("Failed to copy " + sdfsName + " down the rest of the pipeline..." + e);
+			}
+			reportStored(request, stored);
+		});
+	}
+
+	/**
+	* Tell the Master the replicas after the write quorum that stored the block of the PUT, so it can list them again
+	*/
+	private void reportStored(RequestMessage request, List<String> stored) {
+		Connection connection = null;
 		try {
-			socket.close();
-			in.close();
-			out.close();
+			byte[] query = QueryMessage.newBuilder()
+				.setId(membershipList.getHostId())
+				.setType(QueryMessage.OpType.STORED)
+				.setSdfsName(request.getSdfsName())
+				.setOpId(request.getOpId())
+				.setRequestId(connectionPool.nextRequestId())
+				.addStored(BlockPlacement.newBuilder().setName(request.getSdfsName()).addAllReplicas(stored))
+				.build().toByteArray();
+			connection = connectionPool.request(master.getId(), masterPort, query);
+			connection.getIn().readFully(new byte[connection.getIn().readInt()]);
+			connectionPool.release(connection);
 		} catch(Exception e) {
-			System.out.println("Error in closing socket on replicant..." + e);
+			System.out.println("Failed to tell the Master where " + request.getSdfsName() + " was stored..." + e);
+			connectionPool.invalidate(connection);
 		}
 	}
 
 	/**
-	* Download a file from QueryWorker and store it as sdfsName. Update metadata for it in our fileVersionMap
+	* Download a file from QueryWorker and store it as sdfsName. Record it as a new version in our store
 	* 	If it exists: increment version number and write it to <file>:<newversion>
-	*	Else: put <filename, 1> into fileVersionMap and wriite efile to <file>:1
+	*	Else: store it as version 1 of the file
+	* If sendTo is not empty the file is relayed to the next replica as it arrives, and the final ack
+	* sent back lists every replica from here down the pipeline that stored it.
+	* A copy of an existing version names the version, and is dropped if that version is already stored here.
+	* Once the write quorum of the PUT is reached the rest of the pipeline is not waited on (see completesLater).
 	*
-	* @param sdfsName: String denoting the name the file should be stored under
+	* @param request: RequestMessage of the PUT: the name to store the file under, the version number the Master gave
+	*	the PUT to store it as (0 for the next one), the replicas after this one in the pipeline and how many of them the quorum needs
 	*/
-	private void handlePut(String sdfsName) {	// DONE
+	private void handlePut(Connection connection, RequestMessage request) {	// DONE
+		String sdfsName = request.getSdfsName();
 		log.debug("Handling PUT on" + sdfsName);
+		File partial = new File("tmp/" + sdfsName + "." + partCounter.incrementAndGet() + ".part");
+		boolean later = completesLater(request);
+		Connection downstream = later ? null : Pipeline.open(connectionPool, forward(request), request.getSendToList(), dataTransferPort);
 		try {
-			// Retrieve the file from the QueryWorker
-			out.writeInt(1);
-			int dataLen = in.readInt();
-			byte[] data = new byte[dataLen];
-			in.readFully(data);
-			// Check if file exists under some version, otherwise write it to file as version 1
-			if(fileVersionMap.containsKey(sdfsName)) {
-				fileVersionMap.put(sdfsName, fileVersionMap.get(sdfsName) + 1);
-			} 
-			else {
-				fileVersionMap.put(sdfsName, 1);
+			// Stream the file from upstream to disk, relaying it down the pipeline, before exposing it as a new version
+			connection.getOut().writeInt(1);
+			boolean relayed = FileTransfer.relayFile(connection.getIn(), partial, downstream == null ? null : downstream.getOut(), throttle(request));
+			int version = store.addVersion(sdfsName, partial, request.getVersion());
+			// Wait for the rest of the pipeline before acking upstream
+			Connection pipeline = downstream;
+			downstream = null;
+			ackPipeline(connection, sdfsName, pipeline, relayed);
+			if(later) {
+				completeLater(request, version);
+			}
+		} catch(Exception e) {
+			FileUtils.deleteQuietly(partial);
+			System.out.println("Failed to write file to /tmp..." + e);
+			connection.close();
+		} finally {
+			connectionPool.invalidate(downstream);
+		}
+	}
+
+	/**
+	* Receive a chunked PUT of sdfsName down the pipeline. Before any data arrives, answer upstream with the chunks this
+	* replica or one after it is missing, then store the version from the chunks we have and the ones received.
+	* Of the chunks received only the ones the next replica asked for are relayed to it, in the order it expects them.
+	* Replicas after the write quorum are left out and sent the version once it is stored (see completesLater).
+	*
+	* @param request: RequestMessage of the PUT, listing the hash and size of every chunk
+	*/
+	private void handleChunkedPut(Connection connection, RequestMessage request) {
+		String sdfsName = request.getSdfsName();
+		log.debug("Handling chunked PUT on " + sdfsName);
+		byte[][] hashes = new byte[request.getChunksCount()][];
+		for(int i = 0; i < hashes.length; i++) {
+			hashes[i] = request.getChunks(i).toByteArray();
+		}
+		File partial = new File("tmp/" + sdfsName + "." + partCounter.incrementAndGet() + ".part");
+		Connection downstream = null;
+		// The chunks found here are not asked for, so keep the collector from dropping them until the version is stored
+		store.pin(hashes);
+		try {
+			if(request.getChunkSizesCount() != hashes.length) {
+				connection.getOut().writeInt(0);
+				return;
+			}
+			boolean later = completesLater(request);
+			if(!later) {
+				downstream = Pipeline.open(connectionPool, forward(request), request.getSendToList(), dataTransferPort);
+			}
+			connection.getOut().writeInt(1);
+			// Ask for every chunk missing here or further down the pipeline, a chunk repeated in the file only once
+			TreeSet<Integer> missing = new TreeSet<Integer>();
+			Set<ByteBuffer> asked = new HashSet<ByteBuffer>();
+			for(int i = 0; i < hashes.length; i++) {
+				if(!store.hasChunk(hashes[i]) && asked.add(ByteBuffer.wrap(hashes[i]))) {
+					missing.add(i);
+				}
+			}
+			Set<Integer> wanted = new HashSet<Integer>();
+			if(downstream != null) {
+				try {
+					wanted.addAll(Pipeline.readMissing(downstream.getIn()));
+					missing.addAll(wanted);
+				} catch(IOException e) {
+					System.out.println("Lost the rest of the pipeline for " + sdfsName + "..." + e);
+					connectionPool.invalidate(downstream);
+					downstream = null;
+				}
+			}
+			Pipeline.writeMissing(connection.getOut(), missing);
+			List<Integer> included = new ArrayList<Integer>(missing);
+			long[] parts = new long[included.size()];
+			boolean[] relay = new boolean[included.size()];
+			for(int i = 0; i < included.size(); i++) {
+				parts[i] = request.getChunkSizes(included.get(i));
+				relay[i] = wanted.contains(included.get(i));
+			}
+			boolean relayed = FileTransfer.relayParts(connection.getIn(), partial, downstream == null ? null : downstream.getOut(), parts, relay,
+					throttle(request));
+			int version = store.addChunked(sdfsName, hashes, request.getChunkSizesList(), partial, included, request.getVersion());
+			Connection pipeline = downstream;
+			downstream = null;
+			ackPipeline(connection, sdfsName, pipeline, relayed);
+			if(later) {
+				completeLater(request, version);
 			}
-			String path = "tmp/" + sdfsName + ":" + Integer.toString(fileVersionMap.get(sdfsName));
-			FileUtils.writeByteArrayToFile(new File(path), data);
 		} catch(Exception e) {
+			FileUtils.deleteQuietly(partial);
 			System.out.println("Failed to write file to /tmp..." + e);
+			connection.close();
+		} finally {
+			store.unpin(hashes);
+			connectionPool.invalidate(downstream);
+		}
+	}
+
+	private File stagedFile(String sdfsName, long uploadId) {
+		return new File("tmp/" + sdfsName + "." + uploadId + ".upload");
+	}
+
+	/**
+	* Receive one part of a multipart PUT of sdfsName and write it at offset into the file staged for the upload,
+	* relaying it to the next replica as it arrives. Nothing becomes visible to GETs until the Master publishes the upload.
+	* Whatever arrives of a part is kept even if the connection drops. The ack to the PUT is followed by how many bytes
+	* of the part every replica from here down the pipeline already holds, and the sender resumes the part from there.
+	*
+	* @param uploadId: long id of the upload, the operation id the Master handed out for the PUT
+	* @param offset: long position of the part within the block
+	* @param sendTo: List<String> of the replicas after this one in the pipeline
+	*/
+	private void handlePutPart(Connection connection, String sdfsName, long uploadId, long offset, List<String> sendTo) {
+		log.debug("Handling PUT on part at " + offset + " of " + sdfsName);
+		File staged = stagedFile(sdfsName, uploadId);
+		ConcurrentHashMap<Long, Long> parts = uploads.computeIfAbsent(staged.getPath(), path -> new ConcurrentHashMap<Long, Long>());
+		long resume = parts.getOrDefault(offset, 0L);
+		Connection downstream = Pipeline.open(connectionPool, RequestMessage.newBuilder()
+			.setType(RequestMessage.ReqType.PUT)
+			.setSdfsName(sdfsName)
+			.setUploadId(uploadId)
+			.setOffset(offset)
+			.build(), sendTo, dataTransferPort);
+		if(downstream != null) {
+			try {
+				resume = Math.min(resume, downstream.getIn().readLong());
+			} catch(IOException e) {
+				System.out.println("Lost the rest of the pipeline for " + sdfsName + "..." + e);
+				connectionPool.invalidate(downstream);
+				downstream = null;
+			}
+		}
+		try(FileChannel file = FileChannel.open(staged.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+			connection.getOut().writeInt(1);
+			connection.getOut().writeLong(resume);
+			boolean relayed;
+			try {
+				relayed = FileTransfer.relayRange(connection.getIn(), file, offset + resume, downstream == null ? null : downstream.getOut());
+			} finally {
+				// Only what made it to disk counts, so a retry starts right after it
+				parts.put(offset, file.position() - offset);
+			}
+			Connection pipeline = downstream;
+			downstream = null;
+			ackPipeline(connection, sdfsName, pipeline, relayed);
+		} catch(Exception e) {
+			System.out.println("Failed to write part of " + sdfsName + " to /tmp..." + e);
+			connection.close();
+		} finally {
+			connectionPool.invalidate(downstream);
+		}
+	}
+
+	/**
+	* Publish the upload staged for sdfsName in the step the Master asks for. PREPARE acks 1 if every one of its length
+	* bytes arrived and keeps it staged, COMMIT makes the prepared upload a new version and ABORT throws it away.
+	* The Master only commits once every replica of every block of the PUT prepared, so a PUT is published whole or not at all.
+	*
+	* @param uploadId: long id of the upload
+	* @param version: int version number the Master gave the upload (0 for the next one)
+	* @param length: long size the block should have
+	* @param step: PublishStep the Master is at
+	*/
+	private void handlePublish(Connection connection, String sdfsName, long uploadId, int version, long length, RequestMessage.PublishStep step) {
+		log.debug("Handling PUBLISH " + step + " of upload " + uploadId + " on " + sdfsName);
+		File staged = stagedFile(sdfsName, uploadId);
+		try {
+			switch(step) {
+				case PREPARE:
+					ConcurrentHashMap<Long, Long> parts = uploads.get(staged.getPath());
+					long received = 0;
+					if(parts != null) {
+						for(long part : parts.values()) {
+							received += part;
+						}
+					}
+					if(parts == null || received != length || staged.length() != length) {
+						System.out.println("Missing parts of upload " + uploadId + " of " + sdfsName + ", got " + received + " of " + length + " bytes");
+						connection.getOut().writeInt(0);
+						return;
+					}
+					// Keep it from the sweeper until the Master decides
+					staged.setLastModified(System.currentTimeMillis());
+					connection.getOut().writeInt(1);
+					break;
+				case COMMIT:
+					uploads.remove(staged.getPath());
+					if(!staged.exists() || staged.length() != length) {
+						System.out.println("Upload " + uploadId + " of " + sdfsName + " is gone, cannot publish it");
+						FileUtils.deleteQuietly(staged);
+						connection.getOut().writeInt(0);
+						return;
+					}
+					store.addVersion(sdfsName, staged, version);
+					connection.getOut().writeInt(1);
+					break;
+				default:
+					uploads.remove(staged.getPath());
+					FileUtils.deleteQuietly(staged);
+					connection.getOut().writeInt(1);
+			}
+		} catch(Exception e) {
+			System.out.println("Failed to publish " + sdfsName + "..." + e);
+			connection.close();
 		}
 	}
 
 	/**
-	* Send a file over to the QueryWorker. If numVersions is 0 then send the latest version.
-	* Otherwise this is a VERSION request and we need to send a file containing max(numVersions, MAX_VERSION)
+	* Delete staged uploads that were never published, e.g. because the client gave up on them
+	*/
+	private void sweepUploads() {
+		File[] staged = new File("tmp").listFiles((dir, name) -> name.endsWith(".upload"));
+		if(staged == null) {
+			return;
+		}
+		long cutoff = System.currentTimeMillis() - uploadTimeout;
+		for(File file : staged) {
+			if(file.lastModified() < cutoff) {
+				uploads.remove(file.getPath());
+				FileUtils.deleteQuietly(file);
+			}
+		}
+	}
+
+	/**
+	* Send a file over to the QueryWorker. If numVersions is 0 then send the requested version, or the latest one,
+	* preceded by its version number. Ack with 0 if the requested version is not stored here, so a replica that is not
+	* current never serves a read pinned to the version the Master committed last.
+	* Otherwise this is a VERSION request: ack, then the number of versions sent, then up to numVersions versions still
+	* stored newest first, from the requested version down, each as its version number followed by its contents as a
+	* transfer of its own. Ack with 0 if the requested version is not stored here.
 	*
 	* @param sdfsName: String denoting name of the file to be sent
+	* @param version: int denoting the version to send, or the newest one to send for a VERSION request (0 for the latest)
 	* @param numVersions: int denoting the numbere of versions to send (0 if not a VERSION request)
 	*/
-	private void handleGet(String sdfsName, int numVersions) {
+	private void handleGet(Connection connection, String sdfsName, int version, int numVersions) {
 		log.debug("Handling GET on " + sdfsName);
+		DataOutputStream out = connection.getOut();
 		try {
 			// GET Request
+			Integer latestVer = store.latest(sdfsName);
+			if(latestVer == null) {
+				out.writeInt(0);
+				return;
+			}
 			if(numVersions == 0) {
+				int sendVersion = version == 0 ? latestVer : version;
+				LocalStore.Extent stored = store.find(sdfsName, sendVersion);
+				if(stored == null) {
+					out.writeInt(0);
+					return;
+				}
 				out.writeInt(1);
-				String path = "tmp/" + sdfsName + ":" + Integer.toString(fileVersionMap.get(sdfsName));
-				byte[] data = FileUtils.readFileToByteArray(new File(path));
-				out.writeInt(data.length);
-				out.write(data);
+				out.writeInt(sendVersion);
+				sendStored(stored, 0, stored.getLength(), out, connection.getChannel(), null);
 			}
 			else {
+				// Versions the retention policy dropped, and numbers the Master gave PUTs that never got here, are skipped
+				List<Integer> found = new ArrayList<Integer>();
+				List<LocalStore.Extent> stored = new ArrayList<LocalStore.Extent>();
+				Integer oldest = store.oldest(sdfsName);
+				if(oldest == null) {
+					// Deleted since
+					out.writeInt(0);
+					return;
+				}
+				// Start from the version the Master committed last, refusing if this replica lags behind it
+				int newest = version == 0 ? latestVer : version;
+				if(store.find(sdfsName, newest) == null) {
+					out.writeInt(0);
+					return;
+				}
+				for(int i = newest; i >= oldest && found.size() < numVersions; i --) {
+					LocalStore.Extent extent = store.find(sdfsName, i);
+					if(extent != null) {
+						found.add(i);
+						stored.add(extent);
+					}
+				}
 				out.writeInt(1);
-				StringBuilder builder = new StringBuilder();
-				int latestVer = fileVersionMap.get(sdfsName);
-				String file = "";
-				String path = "tmp/" + sdfsName + ":";
-				numVersions = numVersions < latestVer ? numVersions : latestVer;
-				for(int i = numVersions; i > 0; i --) {
-					// Read file into the String
-					builder.append("v" + Integer.toString(i) + "\n");
-					file = FileUtils.readFileToString(new File(path + Integer.toString(i)), "UTF-8");
-					builder.append(file);
-					builder.append("\n\n");
+				out.writeInt(found.size());
+				// Newest first, each version streamed from disk as a transfer of its own
+				for(int i = 0; i < found.size(); i ++) {
+					out.writeInt(found.get(i));
+					sendStored(stored.get(i), 0, stored.get(i).getLength(), out, connection.getChannel(), null);
 				}
-				byte[] data = builder.toString().getBytes("UTF-8");
-				out.writeInt(data.length);
-				out.write(data);
 			}
 		} catch(Exception e) {
 			System.out.println("Failed to send over " + sdfsName + "..." + e);
+			connection.close();
+		}
+	}
+
+	/**
+	* Number of requests this Replicant is serving, used by other members to pick the least loaded replica
+	*/
+	public int getLoad() {
+		return activeRequests.get();
+	}
+
+	/**
+	* Send the range [offset, offset + length) of a version of sdfsName to the QueryWorker, so it can read one file
+	* from several replicas at once. The ack is followed by the version sent, the size of the whole file and the CRC32
+	* of its contents, which the QueryWorker checks every other replica it reads the version from agrees on.
+	*
+	* @param sdfsName: String denoting name of the file to be sent
+	* @param version: int denoting the version to read from (0 for the latest)
+	* @param offset: long position in the file the range starts at
+	* @param length: long length of the range
+	*/
+	private void handleRangeGet(Connection connection, String sdfsName, int version, long offset, long length) {
+		log.debug("Handling GET on " + sdfsName + " [" + offset + ", " + (offset + length) + ")");
+		DataOutputStream out = connection.getOut();
+		try {
+			Integer latestVer = store.latest(sdfsName);
+			if(latestVer == null || version > latestVer) {
+				out.writeInt(0);
+				return;
+			}
+			int sendVersion = version == 0 ? latestVer : version;
+			LocalStore.Extent stored = store.find(sdfsName, sendVersion);
+			Long checksum = store.checksum(sdfsName, sendVersion);
+			if(stored == null || checksum == null) {
+				out.writeInt(0);
+				return;
+			}
+			out.writeInt(1);
+			out.writeInt(sendVersion);
+			out.writeLong(stored.getLength());
+			out.writeLong(checksum);
+			sendStored(stored, offset, length, out, connection.getChannel(), null);
+		} catch(Exception e) {
+			System.out.println("Failed to send over " + sdfsName + "..." + e);
+			connection.close();
+		}
+	}
+
+	/**
+	* Stream up to length bytes of a stored version starting at offset, as a transfer of its own.
+	* Packed and chunked versions are sent from their segments' open channels.
+	*
+	* @param throttle: TokenBucket limiting the transfer, or null for no limit
+	*/
+	private long sendStored(LocalStore.Extent stored, long offset, long length, DataOutputStream out, SocketChannel channel, TokenBucket throttle) throws IOException {
+		if(!stored.isPacked() && !stored.isChunked()) {
+			return FileTransfer.sendRange(stored.getFile(), offset, length, out, channel, throttle);
 		}
+		List<LocalStore.Extent> pieces = stored.slice(offset, length);
+		FileChannel[] sources = new FileChannel[pieces.size()];
+		long[] positions = new long[pieces.size()];
+		long[] lengths = new long[pieces.size()];
+		for(int i = 0; i < pieces.size(); i++) {
+			sources[i] = pieces.get(i).getChannel();
+			positions[i] = pieces.get(i).getOffset();
+			lengths[i] = pieces.get(i).getLength();
+		}
+		return FileTransfer.sendRanges(sources, positions, lengths, out, channel, throttle);
+	}
+
+	/**
+	* Copy a version of sdfsName stored on this host into target, so the local QueryWorker can read it directly
+	*
+	* @param sdfsName: String denoting the name of the file
+	* @param version: int denoting the version to copy (0 for the latest)
+	* @return false if that version of sdfsName is not stored here
+	*/
+	public boolean copyVersion(String sdfsName, int version, File target) throws IOException {
+		Integer latestVer = store.latest(sdfsName);
+		LocalStore.Extent stored = latestVer == null ? null : store.find(sdfsName, version == 0 ? latestVer : version);
+		if(stored == null) {
+			return false;
+		}
+		store.copy(stored, target);
+		return true;
 	}
 
 	/**
 	* Delete file from our /tmp directory. If it doesnt exist, immediately send ack
-	* Delete every file version by using fileVersionMap and purge entry from the map
+	* Delete every file version and drop it from the store
 	*
 	* @param sdfsName: name of file to be deleted
 	*/
-	private void handleDelete(String sdfsName) { // DONE
+	private void handleDelete(Connection connection, String sdfsName) { // DONE
 		log.debug("Handling DELETE on " + sdfsName);
 		try {
 			// Delete the file, purge metadata, and send an ack back to the QueryWorker
-			if(fileVersionMap.containsKey(sdfsName)) {
-				int numVersions = fileVersionMap.get(sdfsName);
-				String path = "tmp/" + sdfsName + ":";
-				// Delete every version of the file
-				for(int i = 0; i < numVersions; i++) {
-					FileUtils.deleteQuietly(new File(path + Integer.toString(i + 1)));
-				}
-				fileVersionMap.remove(sdfsName);
-			}
-			out.writeInt(1);
+			store.delete(sdfsName);
+			connection.getOut().writeInt(1);
 		} catch(Exception e) {
 			System.out.println("Failed to delete file from /tmp");
+			connection.close();
+		}
+	}
+
+	/**
+	* Drop the versions of sdfsName older than oldest, as the Master's retention policy no longer keeps them.
+	* The latest version is always kept. Ack once the versions are gone, or right away if sdfsName is not stored here.
+	*
+	* @param oldest: int oldest version of sdfsName to keep
+	*/
+	private void handlePrune(Connection connection, String sdfsName, int oldest) {
+		log.debug("Handling PRUNE on " + sdfsName + " below version " + oldest);
+		try {
+			store.prune(sdfsName, oldest);
+			connection.getOut().writeInt(1);
+		} catch(Exception e) {
+			System.out.println("Failed to prune " + sdfsName + "..." + e);
+			connection.close();
+		}
+	}
+
+	/**
+	* Reclaim the space of deleted and pruned versions in the segments, unless clients are being served right now
+	*/
+	private void collectGarbage() {
+		if(!bandwidthManager.isForegroundIdle()) {
+			return;
+		}
+		try {
+			long reclaimed = store.collect(collectGarbage);
+			if(reclaimed > 0) {
+				log.debug("Reclaimed " + reclaimed + " bytes of garbage from the segments");
+			}
+		} catch(Exception e) {
+			System.out.println("Failed to collect garbage in /tmp..." + e);
 		}
 	}
 
 	/**
 	* Send file sdfsName to all the replicas in replicaList, send ack back once complete
-	* Send a file version by version. Note that the way handleGet is implemented, we do not need to specify version name
+	* Send a file version by version down a single pipeline through the replicas, so each version is read and sent from here once.
+	* Every version still stored is sent under its own version number, so replicas number them the way this one does.
+	* A replica that only missed the latest versions is sent just those, from version on.
 	*
 	* @param sdfsName: String denoting the name of the file we want to send
 	* @param replicaList: ArrayList<String> denoting nodes that will become replicas of the file
+	* @param from: int denoting the first version to send (0 for every version stored)
 	*/
-	private void handleReplicate(String sdfsName, ArrayList<String> replicaList) {	// DONE
-		log.debug("Handling REPLICATE on " + sdfsName);
+	private void handleReplicate(Connection connection, String sdfsName, ArrayList<String> replicaList, int from) {	// DONE
+		log.debug("Handling REPLICATE on " + sdfsName + (from > 0 ? " from version " + from : ""));
 		try {
-			Socket tempSocket = null;
-			DataInputStream tempIn = null;
-			DataOutputStream tempOut = null;
-			var messageBuilder = FSMessages.RequestMessage.newBuilder()
-				.setType(FSMessages.RequestMessage.ReqType.PUT)
-				.setSdfsName(sdfsName);
-			byte[] request = messageBuilder.build().toByteArray();
-			int numVersions = fileVersionMap.get(sdfsName);
-			byte[] data;
-			String path = "tmp/" + sdfsName + ":";
-			for(String replicaId : replicaList) {
-				for(int i = 0; i < numVersions; i ++) {
-					tempSocket = new Socket(InetAddress.getByName(replicaId.split(":")[0]), dataTransferPort);
-					tempIn = new DataInputStream(new BufferedInputStream(tempSocket.getInputStream()));
-					tempOut = new DataOutputStream(tempSocket.getOutputStream());
-					tempOut.writeInt(request.length);
-					tempOut.write(request);
-					data = FileUtils.readFileToByteArray(new File(path + Integer.toString(i + 1)));
-					int ack = tempIn.readInt();
-					if(ack != 1){ System.out.println("Replication refusing file..."); return; }
-					tempOut.writeInt(data.length);
-					tempOut.write(data);
-					tempSocket.close();
-					tempIn.close();
-					tempOut.close();
+			Integer latestVer = store.latest(sdfsName);
+			if(latestVer == null) {
+				System.out.println("No local copy of " + sdfsName + " to replicate...");
+				connection.getOut().writeInt(0);
+				return;
+			}
+			Integer oldest = store.oldest(sdfsName);
+			if(oldest == null) {
+				System.out.println("Local copy of " + sdfsName + " was deleted, nothing to replicate...");
+				connection.getOut().writeInt(0);
+				return;
+			}
+			for(int i = Math.max(oldest, from); i <= latestVer; i ++) {
+				LocalStore.Extent version = store.find(sdfsName, i);
+				if(version == null) {
+					// Pruned since, or never stored here
+					continue;
+				}
+				// Re-replication is background traffic, keep it within its bandwidth budget
+				List<String> stored = version.isChunked()
+						? replicateChunks(sdfsName, i, version, replicaList, bandwidthManager.background())
+						: replicateWhole(sdfsName, i, version, replicaList, bandwidthManager.background());
+				if(stored == null) {
+					System.out.println("Replication refusing file...");
+					connection.getOut().writeInt(0);
+					return;
+				}
+				if(stored.size() < replicaList.size()) {
+					System.out.println("Version " + i + " of " + sdfsName + " only replicated to " + stored);
 				}
 			}
-			out.writeInt(1);
+			connection.getOut().writeInt(1);
 		} catch(Exception e) {
 			System.out.println("Failed to replicate file " + sdfsName + "..." + e);
 			e.printStackTrace();
+			connection.close();
+		}
+	}
+
+	/**
+	* Send a version down a pipeline through replicaList
+	*
+	* @param number: int version number of version, which the replicas store it as
+	* @param throttle: TokenBucket limiting the transfer, or null for no limit. A throttled PUT is marked background, so the
+	*	replicas relay it through their own background budgets
+	* @return the replicas that stored it, or null if none accepted it
+	*/
+	private List<String> replicateWhole(String sdfsName, int number, LocalStore.Extent version, List<String> replicaList, TokenBucket throttle) throws IOException {
+		Connection replica = Pipeline.open(connectionPool, RequestMessage.newBuilder()
+			.setType(RequestMessage.ReqType.PUT)
+			.setSdfsName(sdfsName)
+			.setVersion(number)
+			.setBackground(throttle != null)
+			.build(), replicaList, dataTransferPort);
+		if(replica == null) {
+			return null;
+		}
+		try {
+			sendStored(version, 0, version.getLength(), replica.getOut(), replica.getChannel(), throttle);
+			List<String> stored = Pipeline.readStored(replica.getIn());
+			connectionPool.release(replica);
+			return stored;
+		} catch(IOException e) {
+			connectionPool.invalidate(replica);
+			throw e;
+		}
+	}
+
+	/**
+	* Send a chunked version down a pipeline through replicaList, skipping the chunks every replica already has,
+	* e.g. the ones shared with the versions sent before it
+	*
+	* @param number: int version number of version, which the replicas store it as
+	* @param throttle: TokenBucket limiting the transfer, or null for no limit, and marking the PUT background if set
+	* @return the replicas that stored it, or null if none accepted it
+	*/
+	private List<String> replicateChunks(String sdfsName, int number, LocalStore.Extent version, List<String> replicaList, TokenBucket throttle) throws IOException {
+		LocalStore.Extent[] chunks = version.getChunks();
+		FileChannel[] sources = new FileChannel[chunks.length];
+		long[] positions = new long[chunks.length];
+		long[] lengths = new long[chunks.length];
+		for(int i = 0; i < chunks.length; i++) {
+			sources[i] = chunks[i].getChannel();
+			positions[i] = chunks[i].getOffset();
+			lengths[i] = chunks[i].getLength();
 		}
+		RequestMessage.Builder put = RequestMessage.newBuilder()
+			.setType(RequestMessage.ReqType.PUT)
+			.setSdfsName(sdfsName)
+			.setVersion(number)
+			.setBackground(throttle != null);
+		return Pipeline.putChunks(connectionPool, put, replicaList, dataTransferPort, version.getHashes(),
+				sources, positions, lengths, throttle);
 	}
 
 	/**
 	* Send information about our /tmp directory to the Master.
-	* Simply loop through our hashmap keys and send that information to the master.
+	* Simply loop through our hashmap keys and send every name along with its latest version, "<name>:<version>",
+	* so the Master can tell which of our copies are current.
 	*/
-	private void handleInfo() {
+	private void handleInfo(Connection connection) {
 		log.debug("Sending Master INFO...");
 		try {
 			String fileSummary = "";
-			for(String file : fileVersionMap.keySet()) {
-				fileSummary += file + ",";
+			for(String file : store.names()) {
+				Integer latestVer = store.latest(file);
+				if(latestVer != null) {
+					fileSummary += file + ":" + latestVer + ",";
+				}
 			}
 			if(fileSummary.length() != 0) {
 				fileSummary = fileSummary.substring(0, fileSummary.length() - 1);
 			}
 			byte[] data = fileSummary.getBytes("UTF-8");
-			out.writeInt(data.length);
-			out.write(data);
+			connection.getOut().writeInt(data.length);
+			connection.getOut().write(data);
 		} catch(Exception e) {
 			System.out.println("Failed to send file info to master..." + e);
+			connection.close();
 		}
 	}
 
+	/**
+	* Read a single request off of connection and pass control to the matching handler.
+	* Runs on a worker thread so a long transfer does not block requests on other connections.
+	* The connection is then parked until its next request, unless the handler had to close it.
+	*/
+	private void serve(Connection connection) {
+		RequestMessage requestMessage;
+		try {
+			// Get the request type and pass over control
+			DataInputStream in = connection.getIn();
+			byte[] request = new byte[in.readInt()];
+			in.readFully(request);
+			requestMessage = RequestMessage.parseFrom(request);
+		} catch(IOException e) {
+			// The other end is done with the connection
+			connection.close();
+			return;
+		}
+		FSMessages.RequestMessage.ReqType requestType = requestMessage.getType();
+		System.out.println("RECEIVED REQUEST " + requestMessage.getRequestId() + " FOR..." + requestType);
+		activeRequests.incrementAndGet();
+		// PUTs sent by re-replication are background traffic like the REPLICATE that sends them
+		boolean foreground = requestType == RequestMessage.ReqType.GET
+				|| requestType == RequestMessage.ReqType.PUT && !requestMessage.getBackground();
+		if(foreground) {
+			bandwidthManager.foregroundStarted();
+		}
+		try {
+			switch(requestType) {
+				case GET:
+					if(requestMessage.hasLength()) {
+						handleRangeGet(connection, requestMessage.getSdfsName(), requestMessage.getVersion(),
+								requestMessage.getOffset(), requestMessage.getLength());
+					} else {
+						handleGet(connection, requestMessage.getSdfsName(), requestMessage.getVersion(), requestMessage.getVersions());
+					}
+					break;
+				case PUT:
+					if(requestMessage.getChunksCount() > 0) {
+						handleChunkedPut(connection, requestMessage);
+					} else if(requestMessage.hasUploadId()) {
+						handlePutPart(connection, requestMessage.getSdfsName(), requestMessage.getUploadId(),
+								requestMessage.getOffset(), requestMessage.getSendToList());
+					} else {
+						handlePut(connection, requestMessage);
+					}
+					break;
+				case PUBLISH:
+					handlePublish(connection, requestMessage.getSdfsName(), requestMessage.getUploadId(), requestMessage.getVersion(),
+							requestMessage.getLength(), requestMessage.getStep());
+					break;
+				case DELETE:
+					handleDelete(connection, requestMessage.getSdfsName());
+					break;
+				case PRUNE:
+					handlePrune(connection, requestMessage.getSdfsName(), requestMessage.getVersion());
+					break;
+				case REPLICATE:
+					// Grab the list of replicas to send to
+					ArrayList<String> replicaList = new ArrayList<String>(requestMessage.getSendToList());
+					handleReplicate(connection, requestMessage.getSdfsName(), replicaList, requestMessage.getVersion());
+					break;
+				case INFO:
+					handleInfo(connection);
+					break;
+				default: throw new RuntimeException("invalid request type to replicant");
+			}
+		} catch(Exception e) {
+			System.out.println("Error serving replicant request..." + e);
+			connection.close();
+		} finally {
+			activeRequests.decrementAndGet();
+			if(foreground) {
+				bandwidthManager.foregroundFinished();
+			}
+		}
+		idleConnections.park(connection);
+	}
+
 	@Override
 	public void run() {
+		try {
+			// Replicas stored before a restart are reported to the Master instead of copied again
+			System.out.println("Found " + store.open() + " files from before in /tmp");
+		} catch(IOException e) {
+			// Without its index the store cannot take a single version, so do not take requests at all
+			System.out.println("Failed to recover files from /tmp, not serving requests..." + e);
+			try {
+				serverSocket.close();
+			} catch(IOException closing) {
+				System.out.println("Failed closing replicant socket..." + closing);
+			}
+			workers.shutdown();
+			return;
+		}
+		Thread idleThread = new Thread(idleConnections);
+		idleThread.setDaemon(true);
+		idleThread.start();
+		sweeper.scheduleWithFixedDelay(this::sweepUploads, 60, 60, TimeUnit.SECONDS);
+		if(collectInterval > 0) {
+			sweeper.scheduleWithFixedDelay(this::collectGarbage, collectInterval, collectInterval, TimeUnit.SECONDS);
+		}
 		try {
 			while(!leave) {
 				/* Listening on port for requests */
-				socket = serverSocket.accept();
-				in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
-				out = new DataOutputStream(socket.getOutputStream());
-
-				// Get the request type and pass over control
-				length = in.readInt();
-				request = new byte[length];
-				in.readFully(request);
-				requestMessage = RequestMessage.parseFrom(request);
-				FSMessages.RequestMessage.ReqType requestType = requestMessage.getType();
-				System.out.println("RECEIVED REQUEST FOR..." + requestType);
-				switch(requestType) {
-					case GET:
-						handleGet(requestMessage.getSdfsName(), requestMessage.getVersions());
-						break;
-					case PUT:
-						handlePut(requestMessage.getSdfsName());
-						break;
-					case DELETE:
-						handleDelete(requestMessage.getSdfsName());
-						break;
-					case REPLICATE:
-						// Grab the list of replicas to send to
-						ArrayList<String> replicaList = new ArrayList<String>(requestMessage.getSendToList());
-						handleReplicate(requestMessage.getSdfsName(), replicaList);
-						break;
-					case INFO:
-						handleInfo();
-						break;
-					default: throw new RuntimeException("invalid request type to replicant");
+				Socket socket = serverSocket.accept();
+				try {
+					Connection connection = new Connection(socket);
+					try {
+						workers.execute(() -> serve(connection));
+					} catch(RejectedExecutionException e) {
+						// Every worker is busy and the queue is full, serve it here to slow down accepts
+						serve(connection);
+					}
+				} catch(IOException e) {
+					System.out.println("Failed setting up replicant connection..." + e);
+					socket.close();
 				}
-				shutConnection();
 			}
 			serverSocket.close();
 		} catch(Exception e) {
 			System.out.println("Error in persistent replicant thread..." + e);
+		} finally {
+			workers.shutdown();
 		}
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,227 @@
+package jichufs;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+* Background queue of sdfs files (blocks) the Master has to bring back up to full replication.
+* Files with the fewest surviving replicas are copied first, and at most threads copies run at a time, so reacting
+* to a failure never waits on data being copied. A file is queued at most once; scheduling it again while it is
+* being copied runs it once more after the copy finishes. When a copy cannot start because every node that could take
+* part is already busy, the file is set aside and queued again as soon as another copy finishes. A copy that fails is
+* tried again after a delay that doubles with every failure in a row.
+*/
+@Slf4j
+public class ReplicationScheduler {
+
+	private final PriorityBlockingQueue<Task> queue;
+	private final Map<String, Task> queued;
+	private final Map<String, Integer> rerun;
+	private final Map<String, Integer> deferred;
+	private final Set<String> running;
+	private final Map<String, Integer> backingOff; // failed copies waiting for their retry -> replicas left
+	private final Map<String, Integer> failures; // copies failed in a row
+	private final ExecutorService workers;
+	private final ScheduledExecutorService retries;
+	private final Predicate<String> replicate;
+	private final int threads;
+	private final long retryDelay;
+	private long sequence;
+	private long completed; // copies finished so far, to tell whether nodes were freed up while a copy was being planned
+
+	private static class Task implements Comparable<Task> {
+		private final String name;
+		private final int replicas;
+		private final long sequence;
+
+		Task(String name, int replicas, long sequence) {
+			this.name = name;
+			this.replicas = replicas;
+			this.sequence = sequence;
+		}
+
+		@Override
+		public int compareTo(Task other) {
+			if(replicas != other.replicas) {
+				return Integer.compare(replicas, other.replicas);
+			}
+			return Long.compare(sequence, other.sequence);
+		}
+	}
+
+	/**
+	* @param threads: int number of copies allowed to run at once
+	* @param replicate: Predicate<String> copying the named file to new replicas, run on a worker thread.
+	*	Returns false if the copy could not start yet, to try again after another copy finishes, and throws if it failed.
+	*/
+	public ReplicationScheduler(int threads, Predicate<String> replicate) {
+		this(threads, replicate, 1000);
+	}
+
+	/**
+	* @param retryDelay: long milliseconds before a failed copy is first tried again
+	*/
+	public ReplicationScheduler(int threads, Predicate<String> replicate, long retryDelay) {
+		this.queue = new PriorityBlockingQueue<Task>();
+		this.queued = new HashMap<String, Task>();
+		this.rerun = new HashMap<String, Integer>();
+		this.deferred = new HashMap<String, Integer>();
+		this.running = new HashSet<String>();
+		this.backingOff = new HashMap<String, Integer>();
+		this.failures = new HashMap<String, Integer>();
+		this.threads = threads;
+		this.replicate = replicate;
+		this.retryDelay = retryDelay;
+		this.workers = Executors.newFixedThreadPool(threads, runnable -> {
+			Thread thread = new Thread(runnable);
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.retries = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable);
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	* Start copying queued files
+	*/
+	public void start() {
+		for(int i = 0; i < threads; i++) {
+			workers.execute(this::work);
+		}
+	}
+
+	/**
+	* Queue name to be re-replicated, or move it up the queue if it now has fewer replicas than when it was queued
+	*
+	* @param name: String name of the file
+	* @param replicas: int number of replicas of it still alive
+	*/
+	public synchronized void schedule(String name, int replicas) {
+		// Scheduled again, e.g. because another replica failed, so no need to wait out the retry
+		Integer failed = backingOff.remove(name);
+		if(failed != null) {
+			replicas = Math.min(replicas, failed);
+		}
+		if(running.contains(name)) {
+			rerun.merge(name, replicas, Math::min);
+			return;
+		}
+		Integer waiting = deferred.remove(name);
+		if(waiting != null) {
+			replicas = Math.min(replicas, waiting);
+		}
+		Task current = queued.get(name);
+		if(current != null) {
+			if(current.replicas <= replicas) {
+				return;
+			}
+			queue.remove(current);
+		}
+		Task task = new Task(name, replicas, sequence++);
+		queued.put(name, task);
+		queue.add(task);
+	}
+
+	/**
+	* Get the number of files waiting to be copied
+	*/
+	public synchronized int pending() {
+		return queued.size() + rerun.size() + deferred.size() + backingOff.size();
+	}
+
+	/**
+	* Whether name is being copied right now
+	*/
+	public synchronized boolean isRunning(String name) {
+		return running.contains(name);
+	}
+
+	private void work() {
+		while(true) {
+			Task task;
+			try {
+				task = queue.take();
+			} catch(InterruptedException e) {
+				return;
+			}
+			long seen;
+			synchronized(this) {
+				// Moved up the queue after we took it, the task that replaced it runs instead
+				if(!queued.remove(task.name, task)) {
+					continue;
+				}
+				running.add(task.name);
+				seen = completed;
+			}
+			boolean started = true;
+			boolean failed = false;
+			try {
+				started = replicate.test(task.name);
+			} catch(Exception e) {
+				System.out.println("Failed re-replicating " + task.name + "..." + e);
+				failed = true;
+			} finally {
+				Integer again;
+				Map<String, Integer> waiting;
+				long delay = 0;
+				synchronized(this) {
+					running.remove(task.name);
+					again = rerun.remove(task.name);
+					if(!started && again == null) {
+						deferred.put(task.name, task.replicas);
+					}
+					if(failed) {
+						int attempts = failures.merge(task.name, 1, Integer::sum);
+						delay = retryDelay << Math.min(attempts - 1, 6);
+						if(again == null) {
+							backingOff.put(task.name, task.replicas);
+						}
+					} else if(started) {
+						failures.remove(task.name);
+					}
+					if(started) {
+						completed++;
+					}
+					// A copy finished and freed up its nodes, give the files waiting on them another go
+					if(started || completed != seen) {
+						waiting = new HashMap<String, Integer>(deferred);
+						deferred.clear();
+					} else {
+						waiting = new HashMap<String, Integer>();
+					}
+				}
+				if(again != null) {
+					schedule(task.name, again);
+				} else if(failed) {
+					retries.schedule(() -> retry(task.name), delay, TimeUnit.MILLISECONDS);
+				}
+				for(Map.Entry<String, Integer> file : waiting.entrySet()) {
+					schedule(file.getKey(), file.getValue());
+				}
+			}
+		}
+	}
+
+	private void retry(String name) {
+		Integer replicas;
+		synchronized(this) {
+			replicas = backingOff.remove(name);
+		}
+		if(replicas != null) {
+			schedule(name, replicas);
+		}
+	}
+}
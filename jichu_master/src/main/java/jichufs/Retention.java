@@ -0,0 +1,62 @@
+package jichufs;
+
+import java.util.List;
+
+/**
+* Which versions of an sdfs file are kept. A version is kept while it is one of the last keepVersions versions of its
+* file, or while it was committed less than keepMillis ago. Either rule is turned off with 0. The latest version is
+* always kept, and with both rules off so is every other version.
+*/
+public class Retention {
+
+	private final int keepVersions;
+	private final long keepMillis;
+
+	/**
+	* @param keepVersions: int number of latest versions to keep, 0 to not keep versions by count
+	* @param keepMillis: long age in ms up to which versions are kept, 0 to not keep versions by age
+	*/
+	public Retention(int keepVersions, long keepMillis) {
+		this.keepVersions = keepVersions;
+		this.keepMillis = keepMillis;
+	}
+
+	/**
+	* Whether any version is ever dropped
+	*/
+	public boolean isEnabled() {
+		return keepVersions > 0 || keepMillis > 0;
+	}
+
+	/**
+	* Get the oldest version of a file to keep
+	*
+	* @param versions: int number of versions of the file
+	* @param commitTimes: List<Long> time in ms each of the last commitTimes.size() versions was committed at, oldest
+	*	first. Versions before them are taken to be as old as the first of them.
+	* @param now: long current time in ms
+	* @return the position of the oldest version to keep among the versions of the file, oldest first, starting from 1
+	*/
+	public int oldest(int versions, List<Long> commitTimes, long now) {
+		if(!isEnabled() || versions <= 1) {
+			return 1;
+		}
+		int byCount = versions;
+		if(keepVersions > 0) {
+			byCount = Math.max(1, versions - keepVersions + 1);
+		}
+		int byAge = versions;
+		if(keepMillis > 0) {
+			int unknown = versions - commitTimes.size();
+			for(int version = 1; version < versions; version++) {
+				long committed = commitTimes.isEmpty() ? now
+						: commitTimes.get(Math.max(0, version - unknown - 1));
+				if(now - committed < keepMillis) {
+					byAge = version;
+					break;
+				}
+			}
+		}
+		return Math.min(byCount, byAge);
+	}
+}
@@ -28,6 +28,10 @@ public class Server implements Runnable{
     private MembershipList membershipList;
     @Autowired
     private Helper helper;
+    @Autowired
+    private LatencyTracker latencyTracker;
+    @Autowired
+    private Replicant replicant;
     @Value("${serverPort}")
     private int serverPort;
 
@@ -69,6 +73,7 @@ public class Server implements Runnable{
     public void handleAck(Message message){
         //find message in sent pings by id. mark alive and increment timestamp;
         log.debug("Received ack from "+message.getId());
+        latencyTracker.ackReceived(message.getId(), message.getLoad());
         membershipList.incrementLastAlive(message.getId()+"");
         membershipList.update(message);
     }
@@ -78,7 +83,8 @@ public class Server implements Runnable{
     }
 
     /**
-     * Handles PING message received from another node. Responds with an ACK that contains recent updates.
+     * Handles PING message received from another node. Responds with an ACK that contains recent updates
+     * and the number of requests our Replicant is serving.
      * @param pingMessage
      */
     public void handlePing(InetAddress fromAddress, Message pingMessage){
@@ -86,7 +92,8 @@ public class Server implements Runnable{
         Message.Builder messageBuilder = Message.newBuilder()
                                                 .setId(pingMessage.getId())
                                                 .setType(Message.PacketType.ACK)
-                                                .setData(false);
+                                                .setData(false)
+                                                .setLoad(replicant.getLoad());
         messageBuilder = helper.addEventUpdates(messageBuilder);
         Message ackMessage = messageBuilder.build();
         membershipList.update(pingMessage);
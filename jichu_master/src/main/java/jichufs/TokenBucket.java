@@ -0,0 +1,77 @@
+package jichufs;
+
+import java.io.InterruptedIOException;
+
+/**
+* Token bucket limiting a class of transfers to a number of bytes per second.
+* Tokens accumulate at the rate up to burst bytes. A transfer takes the tokens for its bytes up front and, if that
+* leaves the bucket in debt, waits until the debt is paid off, so the average rate holds no matter how large each
+* write is. A rate of 0 or less means unlimited. The rate can be changed at any time.
+*/
+public class TokenBucket {
+
+	private final long burst;
+	private long rate; // bytes per second
+	private double tokens;
+	private long refilledAt;
+
+	public TokenBucket(long rate, long burst) {
+		this.rate = rate;
+		this.burst = burst;
+		this.tokens = burst;
+		this.refilledAt = System.nanoTime();
+	}
+
+	public synchronized long getRate() {
+		return rate;
+	}
+
+	public synchronized void setRate(long rate) {
+		refill(System.nanoTime());
+		this.rate = rate;
+	}
+
+	/**
+	* Wait until bytes may be sent
+	*/
+	public void acquire(long bytes) throws InterruptedIOException {
+		long wait = reserve(bytes, System.nanoTime());
+		if(wait <= 0) {
+			return;
+		}
+		try {
+			Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for bandwidth");
+		}
+	}
+
+	/**
+	* Take the tokens for bytes at time now
+	*
+	* @param bytes: long number of bytes about to be sent
+	* @param now: long System.nanoTime() of the send
+	* @return how many nanoseconds to wait before sending, 0 if the bytes can go right away
+	*/
+	synchronized long reserve(long bytes, long now) {
+		refill(now);
+		if(rate <= 0) {
+			return 0;
+		}
+		tokens -= bytes;
+		if(tokens >= 0) {
+			return 0;
+		}
+		return (long) Math.ceil(-tokens / rate * 1e9);
+	}
+
+	private void refill(long now) {
+		if(rate > 0) {
+			tokens = Math.min(burst, tokens + (now - refilledAt) / 1e9 * rate);
+		} else {
+			tokens = burst;
+		}
+		refilledAt = now;
+	}
+}
@@ -0,0 +1,86 @@
+package jichufs;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+/**
+* Where the versions fetched by a VERSION query are written as they arrive. If the local name is a directory every
+* version goes to a file of its own, "<sdfsName>.v<version>". Otherwise they all go one after another into a single
+* container file, each preceded by a "v<version>" line and followed by a blank line.
+* Contents are written untouched, so binary files survive, and nothing is held in memory.
+*/
+public class VersionWriter implements Closeable {
+
+	private final File target;
+	private final String sdfsName;
+	private final boolean split;
+	private FileChannel channel;
+	private long position; // where the contents of the current version start
+
+	public VersionWriter(String sdfsName, String localName) throws IOException {
+		this.sdfsName = sdfsName;
+		this.target = new File(localName);
+		this.split = target.isDirectory();
+		if(!split) {
+			channel = open(target);
+		}
+	}
+
+	private static FileChannel open(File file) throws IOException {
+		return FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+	}
+
+	/**
+	* Start writing version
+	*
+	* @return the FileChannel to write the contents of version to, starting at position()
+	*/
+	public FileChannel begin(int version) throws IOException {
+		if(split) {
+			channel = open(new File(target, sdfsName.replace('/', '_') + ".v" + version));
+			position = 0;
+		} else {
+			position += write("v" + version + "\n");
+		}
+		return channel;
+	}
+
+	/**
+	* Get the position in the channel the contents of the current version start at
+	*/
+	public long position() {
+		return position;
+	}
+
+	/**
+	* Finish the current version, length bytes of which were written
+	*/
+	public void end(long length) throws IOException {
+		position += length;
+		if(split) {
+			channel.close();
+			channel = null;
+		} else {
+			position += write("\n\n");
+		}
+	}
+
+	private int write(String separator) throws IOException {
+		ByteBuffer bytes = ByteBuffer.wrap(separator.getBytes(StandardCharsets.UTF_8));
+		int written = 0;
+		while(bytes.hasRemaining()) {
+			written += channel.write(bytes, position + written);
+		}
+		return written;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if(channel != null) {
+			channel.close();
+		}
+	}
+}
@@ -0,0 +1,39 @@
+package jichufs;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class BlocksTest {
+
+    @Test
+    public void testNames() {
+        assertEquals("file", Blocks.name("file", 0));
+        assertEquals("file#3", Blocks.name("file", 3));
+        assertEquals("file", Blocks.parent("file#3"));
+        assertEquals("file", Blocks.parent("file"));
+        assertEquals(3, Blocks.index("file#3"));
+        assertEquals(0, Blocks.index("file"));
+    }
+
+    @Test
+    public void testCount() {
+        assertEquals(1, Blocks.count(0, 10));
+        assertEquals(1, Blocks.count(10, 10));
+        assertEquals(2, Blocks.count(11, 10));
+    }
+
+    @Test
+    public void testLatestBlockVersions() {
+        // Versions 2, 5, 6 and 9 of 3, 1, 1 and 2 blocks
+        List<Integer> history = Arrays.asList(3, 1, 1, 2);
+        List<Integer> numbers = Arrays.asList(2, 5, 6, 9);
+        assertEquals(9, Blocks.latest(history, numbers, 0));
+        assertEquals(9, Blocks.latest(history, numbers, 1));
+        assertEquals(2, Blocks.latest(history, numbers, 2));
+        assertEquals(0, Blocks.latest(history, numbers, 3));
+    }
+}
@@ -0,0 +1,73 @@
+package jichufs;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class ChunkerTest {
+
+    private List<Chunker.Chunk> split(byte[] data, int averageSize) throws Exception {
+        File file = File.createTempFile("chunker", ".bin");
+        file.deleteOnExit();
+        Files.write(file.toPath(), data);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return new Chunker(averageSize).split(channel, 0, data.length);
+        }
+    }
+
+    private static Set<ByteBuffer> hashes(List<Chunker.Chunk> chunks) {
+        Set<ByteBuffer> hashes = new HashSet<ByteBuffer>();
+        for (Chunker.Chunk chunk : chunks) {
+            hashes.add(ByteBuffer.wrap(chunk.getHash()));
+        }
+        return hashes;
+    }
+
+    @Test
+    public void testChunksCoverTheDataWithinBounds() throws Exception {
+        byte[] data = new byte[1 << 20];
+        new Random(1).nextBytes(data);
+        List<Chunker.Chunk> chunks = split(data, 8192);
+        long position = 0;
+        for (int i = 0; i < chunks.size(); i++) {
+            Chunker.Chunk chunk = chunks.get(i);
+            assertEquals(position, chunk.getOffset());
+            assertTrue(chunk.getLength() <= 4 * 8192);
+            if (i < chunks.size() - 1) {
+                assertTrue(chunk.getLength() >= 8192 / 4);
+            }
+            position += chunk.getLength();
+        }
+        assertEquals(data.length, position);
+    }
+
+    @Test
+    public void testInsertOnlyChangesNearbyChunks() throws Exception {
+        byte[] data = new byte[1 << 20];
+        new Random(2).nextBytes(data);
+        byte[] inserted = new byte[data.length + 10];
+        System.arraycopy(data, 0, inserted, 0, 300000);
+        System.arraycopy(data, 300000, inserted, 300010, data.length - 300000);
+
+        List<Chunker.Chunk> before = split(data, 8192);
+        Set<ByteBuffer> after = hashes(split(inserted, 8192));
+        int shared = 0;
+        for (Chunker.Chunk chunk : before) {
+            if (after.contains(ByteBuffer.wrap(chunk.getHash()))) {
+                shared++;
+            }
+        }
+        // Fixed size blocks would all shift after the insert, content-defined ones line up again right after it
+        assertTrue(shared + " of " + before.size() + " chunks shared", shared >= before.size() - 3);
+    }
+}
@@ -0,0 +1,216 @@
+package jichufs;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class FileTransferTest {
+
+    private byte[] roundTrip(byte[] data) throws IOException {
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        FileTransfer.send(new ByteArrayInputStream(data), data.length, new DataOutputStream(wire));
+
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        long received = FileTransfer.receive(new DataInputStream(new ByteArrayInputStream(wire.toByteArray())), sink);
+        assertEquals(data.length, received);
+        return sink.toByteArray();
+    }
+
+    @Test
+    public void testEmptyTransfer() throws Exception {
+        assertArrayEquals(new byte[0], roundTrip(new byte[0]));
+    }
+
+    @Test
+    public void testMultiFrameTransfer() throws Exception {
+        byte[] data = new byte[FileTransfer.FRAME_SIZE * 2 + 17];
+        new Random(42).nextBytes(data);
+        assertArrayEquals(data, roundTrip(data));
+    }
+
+    @Test(expected = EOFException.class)
+    public void testTruncatedTransfer() throws Exception {
+        byte[] data = new byte[1000];
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        FileTransfer.send(new ByteArrayInputStream(data), data.length, new DataOutputStream(wire));
+        byte[] truncated = Arrays.copyOf(wire.toByteArray(), wire.size() - 10);
+        FileTransfer.receive(new DataInputStream(new ByteArrayInputStream(truncated)), new ByteArrayOutputStream());
+    }
+
+    @Test
+    public void testRangesReassembleByPosition() throws Exception {
+        byte[] data = new byte[FileTransfer.FRAME_SIZE + 1000];
+        new Random(7).nextBytes(data);
+        File source = File.createTempFile("source", ".bin");
+        File target = File.createTempFile("target", ".bin");
+        try {
+            try (FileOutputStream out = new FileOutputStream(source)) {
+                out.write(data);
+            }
+            long[] offsets = {FileTransfer.FRAME_SIZE, 500, 0};
+            try (FileChannel file = FileChannel.open(target.toPath(), StandardOpenOption.WRITE)) {
+                for (long offset : offsets) {
+                    ByteArrayOutputStream wire = new ByteArrayOutputStream();
+                    FileTransfer.sendRange(source, offset, 500, new DataOutputStream(wire), null);
+                    FileTransfer.receiveRange(new DataInputStream(new ByteArrayInputStream(wire.toByteArray())), file, offset);
+                }
+                // The last range is clipped to the end of the file
+                ByteArrayOutputStream wire = new ByteArrayOutputStream();
+                assertEquals(500, FileTransfer.sendRange(source, FileTransfer.FRAME_SIZE + 500, 10000, new DataOutputStream(wire), null));
+                FileTransfer.receiveRange(new DataInputStream(new ByteArrayInputStream(wire.toByteArray())), file, FileTransfer.FRAME_SIZE + 500);
+            }
+            byte[] expected = data.clone();
+            Arrays.fill(expected, 1000, FileTransfer.FRAME_SIZE, (byte) 0);
+            assertArrayEquals(expected, Files.readAllBytes(target.toPath()));
+        } finally {
+            source.delete();
+            target.delete();
+        }
+    }
+
+    @Test
+    public void testRelayedPartsLandAtTheirOffsets() throws Exception {
+        byte[] data = new byte[3000];
+        new Random(11).nextBytes(data);
+        File staged = File.createTempFile("staged", ".upload");
+        try {
+            try (FileChannel file = FileChannel.open(staged.toPath(), StandardOpenOption.WRITE)) {
+                // Parts arrive out of order, and the second one is sent twice as if it was retried
+                for (int offset : new int[]{2000, 1000, 0, 1000}) {
+                    ByteArrayOutputStream wire = new ByteArrayOutputStream();
+                    FileTransfer.send(new ByteArrayInputStream(data, offset, 1000), 1000, new DataOutputStream(wire));
+                    ByteArrayOutputStream relayed = new ByteArrayOutputStream();
+                    assertTrue(FileTransfer.relayRange(new DataInputStream(new ByteArrayInputStream(wire.toByteArray())),
+                            file, offset, new DataOutputStream(relayed)));
+                    assertArrayEquals(wire.toByteArray(), relayed.toByteArray());
+                    assertEquals(offset + 1000, file.position());
+                }
+            }
+            assertArrayEquals(data, Files.readAllBytes(staged.toPath()));
+        } finally {
+            staged.delete();
+        }
+    }
+
+    @Test
+    public void testDroppedRangeReportsWhatArrived() throws Exception {
+        byte[] data = new byte[FileTransfer.BUFFER_SIZE * 3];
+        new Random(13).nextBytes(data);
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        FileTransfer.send(new ByteArrayInputStream(data), data.length, new DataOutputStream(wire));
+        // Cut the connection part way through the only frame
+        byte[] cut = Arrays.copyOf(wire.toByteArray(), 12 + FileTransfer.BUFFER_SIZE * 2);
+        File target = File.createTempFile("target", ".bin");
+        try (FileChannel file = FileChannel.open(target.toPath(), StandardOpenOption.WRITE)) {
+            AtomicLong received = new AtomicLong();
+            try {
+                FileTransfer.receiveRange(new DataInputStream(new ByteArrayInputStream(cut)), file, 0, received);
+                fail("Expected the transfer to be cut short");
+            } catch (EOFException e) {
+                assertEquals(FileTransfer.BUFFER_SIZE * 2, received.get());
+            }
+            // Resume with the rest of the data
+            wire.reset();
+            FileTransfer.send(new ByteArrayInputStream(data, (int) received.get(), data.length), data.length - received.get(),
+                    new DataOutputStream(wire));
+            FileTransfer.receiveRange(new DataInputStream(new ByteArrayInputStream(wire.toByteArray())), file, received.get());
+            assertArrayEquals(data, Files.readAllBytes(target.toPath()));
+        } finally {
+            target.delete();
+        }
+    }
+
+    @Test
+    public void testChunkedPipelineWithDifferentChunksOnEveryReplica() throws Exception {
+        byte[] data = new byte[16384];
+        new Random(17).nextBytes(data);
+        File dir = Files.createTempDirectory("pipeline").toFile();
+        try {
+            File upload = new File(dir, "upload");
+            Files.write(upload.toPath(), data);
+            List<Chunker.Chunk> chunks;
+            try (FileChannel source = FileChannel.open(upload.toPath(), StandardOpenOption.READ)) {
+                chunks = new Chunker(1024).split(source, 0, data.length);
+            }
+            byte[][] hashes = new byte[chunks.size()][];
+            List<Integer> sizes = new ArrayList<Integer>();
+            for (int i = 0; i < chunks.size(); i++) {
+                hashes[i] = chunks.get(i).getHash();
+                sizes.add(chunks.get(i).getLength());
+            }
+
+            // Every replica holds an older version differing from the new one somewhere else
+            LocalStore[] stores = new LocalStore[3];
+            List<TreeSet<Integer>> missing = new ArrayList<TreeSet<Integer>>();
+            for (int r = 0; r < 3; r++) {
+                stores[r] = new LocalStore(new File(dir, "replica" + r), 0, 1 << 20, 1024);
+                stores[r].open();
+                byte[] old = data.clone();
+                old[2000 + r * 6000] ^= 1;
+                File previous = new File(dir, "previous" + r + ".part");
+                Files.write(previous.toPath(), old);
+                stores[r].addVersion("a", previous);
+                TreeSet<Integer> own = new TreeSet<Integer>();
+                for (int i = 0; i < hashes.length; i++) {
+                    if (!stores[r].hasChunk(hashes[i])) {
+                        own.add(i);
+                    }
+                }
+                assertFalse(own.isEmpty());
+                missing.add(own);
+            }
+            assertNotEquals(missing.get(0), missing.get(1));
+            assertNotEquals(missing.get(1), missing.get(2));
+
+            // Each replica asks upstream for what it and every replica after it lacks
+            List<TreeSet<Integer>> asked = new ArrayList<TreeSet<Integer>>();
+            for (int r = 0; r < 3; r++) {
+                asked.add(new TreeSet<Integer>());
+                for (int after = r; after < 3; after++) {
+                    asked.get(r).addAll(missing.get(after));
+                }
+            }
+
+            ByteArrayOutputStream chunksAsked = new ByteArrayOutputStream();
+            for (int i : asked.get(0)) {
+                chunksAsked.write(data, (int) chunks.get(i).getOffset(), chunks.get(i).getLength());
+            }
+            ByteArrayOutputStream wire = new ByteArrayOutputStream();
+            FileTransfer.send(new ByteArrayInputStream(chunksAsked.toByteArray()), chunksAsked.size(), new DataOutputStream(wire));
+            for (int r = 0; r < 3; r++) {
+                List<Integer> included = new ArrayList<Integer>(asked.get(r));
+                Set<Integer> wanted = r < 2 ? asked.get(r + 1) : new HashSet<Integer>();
+                long[] parts = new long[included.size()];
+                boolean[] relay = new boolean[included.size()];
+                for (int i = 0; i < included.size(); i++) {
+                    parts[i] = sizes.get(included.get(i));
+                    relay[i] = wanted.contains(included.get(i));
+                }
+                ByteArrayOutputStream next = new ByteArrayOutputStream();
+                File partial = new File(dir, "partial" + r + ".part");
+                boolean relayed = FileTransfer.relayParts(new DataInputStream(new ByteArrayInputStream(wire.toByteArray())),
+                        partial, r < 2 ? new DataOutputStream(next) : null, parts, relay, null);
+                assertEquals(r < 2, relayed);
+                assertEquals(2, stores[r].addChunked("a", hashes, sizes, partial, included));
+                assertArrayEquals(data, stores[r].read(stores[r].find("a", 2)));
+                wire = next;
+            }
+        } finally {
+            FileUtils.deleteQuietly(dir);
+        }
+    }
+}
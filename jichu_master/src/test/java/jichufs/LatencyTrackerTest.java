@@ -0,0 +1,65 @@
+package jichufs;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class LatencyTrackerTest {
+
+    @Test
+    public void testMovingAverage() {
+        LatencyTracker tracker = new LatencyTracker(0.5);
+        assertEquals(-1, tracker.getRtt("a"), 0);
+        tracker.record("a", 10);
+        assertEquals(10, tracker.getRtt("a"), 1e-9);
+        tracker.record("a", 20);
+        assertEquals(15, tracker.getRtt("a"), 1e-9);
+    }
+
+    @Test
+    public void testPrefersLowestRtt() {
+        LatencyTracker tracker = new LatencyTracker(0.2);
+        tracker.record("slow", 50);
+        tracker.record("fast", 1);
+        tracker.record("medium", 10);
+        List<String> ranked = tracker.rank(Arrays.asList("slow", "fast", "medium"));
+        assertEquals(Arrays.asList("fast", "medium", "slow"), ranked);
+    }
+
+    @Test
+    public void testLoadOutweighsRtt() {
+        LatencyTracker tracker = new LatencyTracker(0.2);
+        tracker.record("busy", 1);
+        tracker.record("idle", 2);
+        tracker.ackReceived("busy", 4);
+        tracker.started("idle");
+        assertEquals("idle", tracker.rank(Arrays.asList("busy", "idle")).get(0));
+        tracker.finished("idle");
+        tracker.ackReceived("busy", 0);
+        assertEquals("busy", tracker.rank(Arrays.asList("busy", "idle")).get(0));
+    }
+
+    @Test
+    public void testUnknownMemberIsAverage() {
+        LatencyTracker tracker = new LatencyTracker(0.2);
+        tracker.record("fast", 1);
+        tracker.record("slow", 9);
+        List<String> ranked = tracker.rank(Arrays.asList("slow", "unknown", "fast"));
+        assertEquals(Arrays.asList("fast", "unknown", "slow"), ranked);
+    }
+
+    @Test
+    public void testResponsePercentile() {
+        LatencyTracker tracker = new LatencyTracker(0.2);
+        assertEquals(-1, tracker.percentile(95, 1), 0);
+        for (int i = 1; i <= 100; i++) {
+            tracker.recordResponse("a", i);
+        }
+        assertEquals(95, tracker.percentile(95, 10), 1e-9);
+        assertEquals(100, tracker.percentile(100, 10), 1e-9);
+        assertEquals(-1, tracker.percentile(95, 200), 0);
+    }
+}
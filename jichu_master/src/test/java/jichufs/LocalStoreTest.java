@@ -0,0 +1,370 @@
+package jichufs;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.*;
+
+public class LocalStoreTest {
+
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("store").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteQuietly(dir);
+    }
+
+    private File upload(String contents) throws Exception {
+        File file = File.createTempFile("upload", ".part", dir);
+        FileUtils.writeStringToFile(file, contents, "UTF-8");
+        return file;
+    }
+
+    @Test
+    public void testRecoversAfterRestart() throws Exception {
+        LocalStore store = new LocalStore(dir);
+        assertEquals(0, store.open());
+        assertEquals(1, store.addVersion("a", upload("a1")));
+        assertEquals(2, store.addVersion("a", upload("a2")));
+        store.addVersion("b", upload("b1"));
+        store.addVersion("c", upload("c1"));
+        assertEquals(Integer.valueOf(1), store.delete("c"));
+        // Left behind by a transfer cut off by the crash
+        File partial = upload("partial");
+
+        LocalStore recovered = new LocalStore(dir);
+        assertEquals(2, recovered.open());
+        assertEquals(Integer.valueOf(2), recovered.latest("a"));
+        assertEquals("a2", FileUtils.readFileToString(recovered.file("a", 2), "UTF-8"));
+        assertEquals(Integer.valueOf(1), recovered.latest("b"));
+        assertNull(recovered.latest("c"));
+        assertFalse(partial.exists());
+        assertEquals(3, recovered.addVersion("a", upload("a3")));
+    }
+
+    @Test
+    public void testTornRecordIsDropped() throws Exception {
+        LocalStore store = new LocalStore(dir);
+        store.open();
+        store.addVersion("a", upload("a1"));
+        store.addVersion("b", upload("b1"));
+        File manifest = new File(dir, "MANIFEST");
+        try(RandomAccessFile log = new RandomAccessFile(manifest, "rw")) {
+            log.setLength(log.length() - 3);
+        }
+
+        LocalStore recovered = new LocalStore(dir);
+        assertEquals(1, recovered.open());
+        assertEquals(Integer.valueOf(1), recovered.latest("a"));
+        assertNull(recovered.latest("b"));
+    }
+
+    @Test
+    public void testSmallVersionsArePacked() throws Exception {
+        LocalStore store = new LocalStore(dir, 16, 24, 0);
+        store.open();
+        store.addVersion("a", upload("small a1"));
+        store.addVersion("b", upload("small b1"));
+        store.addVersion("a", upload("small a2"));
+        store.addVersion("big", upload("larger than sixteen bytes"));
+        store.addVersion("c", upload("small c1"));
+        store.delete("b");
+
+        LocalStore recovered = new LocalStore(dir, 16, 24, 0);
+        assertEquals(3, recovered.open());
+        LocalStore.Extent a1 = recovered.find("a", 1);
+        assertTrue(a1.isPacked());
+        assertEquals("small a1", new String(recovered.read(a1), "UTF-8"));
+        assertEquals("small a2", new String(recovered.read(recovered.find("a", 2)), "UTF-8"));
+        // The first segment filled up, so c went to the next one
+        assertEquals(new File(dir, "segment.1"), recovered.find("c", 1).getFile());
+        LocalStore.Extent big = recovered.find("big", 1);
+        assertFalse(big.isPacked());
+        assertEquals(new File(dir, "big:1"), big.getFile());
+        assertNull(recovered.find("b", 1));
+        assertFalse(new File(dir, "a:1").exists());
+
+        File copy = new File(dir, "copy");
+        recovered.copy(recovered.find("c", 1), copy);
+        assertEquals("small c1", FileUtils.readFileToString(copy, "UTF-8"));
+    }
+
+    @Test
+    public void testVersionsShareChunks() throws Exception {
+        LocalStore store = new LocalStore(dir, 1024, 1 << 30, 16384);
+        store.open();
+        byte[] data = new byte[1 << 20];
+        new Random(7).nextBytes(data);
+        File first = File.createTempFile("upload", ".part", dir);
+        FileUtils.writeByteArrayToFile(first, data);
+        // Second version with a few bytes changed in the middle
+        byte[] edited = data.clone();
+        edited[500000] ^= 1;
+        edited[500001] ^= 1;
+        File second = File.createTempFile("upload", ".part", dir);
+        FileUtils.writeByteArrayToFile(second, edited);
+
+        store.addVersion("a", first);
+        long stored = new File(dir, "segment.0").length();
+        store.addVersion("a", second);
+        long grown = new File(dir, "segment.0").length() - stored;
+        assertTrue(store.find("a", 2).isChunked());
+        assertTrue("Stored " + grown + " bytes for a two byte edit", grown < data.length / 8);
+
+        LocalStore recovered = new LocalStore(dir, 1024, 1 << 30, 16384);
+        recovered.open();
+        assertArrayEquals(data, recovered.read(recovered.find("a", 1)));
+        assertArrayEquals(edited, recovered.read(recovered.find("a", 2)));
+        // A replica holding version 1 only needs the changed chunks to store version 2
+        LocalStore.Extent version = recovered.find("a", 2);
+        List<Integer> missing = new ArrayList<Integer>();
+        for (int i = 0; i < version.getHashes().length; i++) {
+            if (!store.hasChunk(version.getHashes()[i])) {
+                missing.add(i);
+            }
+        }
+        assertTrue(missing.isEmpty());
+        File received = File.createTempFile("chunks", ".part", dir);
+        assertEquals(1, recovered.addChunked("b", version.getHashes(), sizes(version), received, missing));
+        assertArrayEquals(edited, recovered.read(recovered.find("b", 1)));
+    }
+
+    @Test(expected = IOException.class)
+    public void testCorruptChunkIsRejected() throws Exception {
+        LocalStore store = new LocalStore(dir, 0, 1 << 30, 16384);
+        store.open();
+        File received = upload("not what the hash says");
+        byte[][] hashes = {new byte[Chunker.HASH_SIZE]};
+        store.addChunked("a", hashes, Arrays.asList((int) received.length()), received, Arrays.asList(0));
+    }
+
+    private static List<Integer> sizes(LocalStore.Extent version) {
+        List<Integer> sizes = new ArrayList<Integer>();
+        for (LocalStore.Extent chunk : version.getChunks()) {
+            sizes.add((int) chunk.getLength());
+        }
+        return sizes;
+    }
+
+    @Test
+    public void testAdoptsFilesStoredWithoutManifest() throws Exception {
+        FileUtils.writeStringToFile(new File(dir, "a:1"), "a1", "UTF-8");
+        FileUtils.writeStringToFile(new File(dir, "a:2"), "a2", "UTF-8");
+        FileUtils.writeStringToFile(new File(dir, "b#1:1"), "b1", "UTF-8");
+
+        LocalStore store = new LocalStore(dir);
+        assertEquals(2, store.open());
+        assertEquals(Integer.valueOf(2), store.latest("a"));
+        assertEquals(Integer.valueOf(1), store.latest("b#1"));
+        assertTrue(new File(dir, "MANIFEST").exists());
+    }
+
+    @Test
+    public void testPrunedVersionsStayGone() throws Exception {
+        LocalStore store = new LocalStore(dir, 4, 1 << 20, 0);
+        store.open();
+        store.addVersion("a", upload("a1"));
+        store.addVersion("a", upload("a2"));
+        store.addVersion("a", upload("long a3"));
+        store.addVersion("a", upload("a4"));
+        assertEquals(Integer.valueOf(2), store.prune("a", 3));
+        assertNull(store.find("a", 2));
+        assertEquals(Integer.valueOf(3), store.oldest("a"));
+        // The latest version is never pruned
+        assertEquals(Integer.valueOf(1), store.prune("a", 10));
+        assertFalse(store.file("a", 3).exists());
+        assertNull(store.prune("missing", 2));
+
+        LocalStore recovered = new LocalStore(dir, 4, 1 << 20, 0);
+        recovered.open();
+        assertEquals(Integer.valueOf(4), recovered.oldest("a"));
+        assertNull(recovered.find("a", 1));
+        assertEquals("a4", new String(recovered.read(recovered.find("a", 4)), "UTF-8"));
+        // Copies of versions already stored are dropped, and copies keep their version numbers
+        assertEquals(2, recovered.addVersion("a", upload("a2"), 2));
+        assertEquals(Integer.valueOf(4), recovered.latest("a"));
+        assertEquals(5, recovered.addVersion("b", upload("b5"), 5));
+        assertEquals(Integer.valueOf(5), recovered.oldest("b"));
+    }
+
+    @Test
+    public void testCollectMovesLiveDataOutOfGarbage() throws Exception {
+        LocalStore store = new LocalStore(dir, 16, 24, 0);
+        store.open();
+        store.addVersion("a", upload("small a1"));
+        store.addVersion("b", upload("small b1"));
+        store.addVersion("c", upload("small c1"));
+        store.addVersion("a", upload("small a2"));
+        store.delete("b");
+        store.prune("a", 2);
+        // Only c1 is still used in the first segment
+        assertEquals(0, store.collect(0.9));
+        assertEquals(16, store.collect(0.5));
+        assertFalse(new File(dir, "segment.0").exists());
+        assertEquals("small c1", new String(store.read(store.find("c", 1)), "UTF-8"));
+        store.collect(0.5);
+
+        LocalStore recovered = new LocalStore(dir, 16, 24, 0);
+        assertEquals(2, recovered.open());
+        assertEquals("small c1", new String(recovered.read(recovered.find("c", 1)), "UTF-8"));
+        assertEquals("small a2", new String(recovered.read(recovered.find("a", 2)), "UTF-8"));
+    }
+
+    @Test
+    public void testCollectMovesSharedChunks() throws Exception {
+        LocalStore store = new LocalStore(dir, 0, 4096, 1024);
+        store.open();
+        byte[] data = new byte[4096];
+        new Random(11).nextBytes(data);
+        byte[] edited = data.clone();
+        edited[100] ^= 1;
+        File first = File.createTempFile("upload", ".part", dir);
+        FileUtils.writeByteArrayToFile(first, data);
+        File second = File.createTempFile("upload", ".part", dir);
+        FileUtils.writeByteArrayToFile(second, edited);
+        store.addVersion("a", first);
+        store.addVersion("a", second);
+        store.prune("a", 2);
+
+        // The first segment holds chunks of version 1 only and chunks version 2 shares with it
+        assertTrue(store.collect(0.0) > 0);
+        assertFalse(new File(dir, "segment.0").exists());
+        assertArrayEquals(edited, store.read(store.find("a", 2)));
+
+        LocalStore recovered = new LocalStore(dir, 0, 4096, 1024);
+        recovered.open();
+        assertArrayEquals(edited, recovered.read(recovered.find("a", 2)));
+    }
+
+    @Test
+    public void testChecksumIgnoresHowAVersionIsStored() throws Exception {
+        byte[] data = new byte[4096];
+        new Random(5).nextBytes(data);
+        List<Long> checksums = new ArrayList<Long>();
+        // Kept whole, packed into a segment and split into chunks
+        for(LocalStore store : Arrays.asList(new LocalStore(new File(dir, "whole"), 0, 4096, 0),
+                new LocalStore(new File(dir, "packed"), 8192, 1 << 20, 0), new LocalStore(new File(dir, "chunked"), 0, 4096, 1024))) {
+            store.open();
+            File upload = File.createTempFile("upload", ".part", dir);
+            FileUtils.writeByteArrayToFile(upload, data);
+            store.addVersion("a", upload);
+            checksums.add(store.checksum("a", 1));
+            assertNull(store.checksum("a", 2));
+        }
+        assertEquals(checksums.get(0), checksums.get(1));
+        assertEquals(checksums.get(0), checksums.get(2));
+
+        LocalStore store = new LocalStore(new File(dir, "whole"), 0, 4096, 0);
+        store.open();
+        data[0] ^= 1;
+        File upload = File.createTempFile("upload", ".part", dir);
+        FileUtils.writeByteArrayToFile(upload, data);
+        store.addVersion("a", upload);
+        assertNotEquals(checksums.get(0), store.checksum("a", 2));
+        store.prune("a", 2);
+        assertNull(store.checksum("a", 1));
+    }
+
+    @Test
+    public void testAppendsAfterReopenGoAtTheEnd() throws Exception {
+        LocalStore store = new LocalStore(dir, 16, 1 << 20, 0);
+        store.open();
+        store.addVersion("a", upload("AAAAAAAA"));
+        store.addVersion("b", upload("BBBBBBBB"));
+
+        LocalStore reopened = new LocalStore(dir, 16, 1 << 20, 0);
+        reopened.open();
+        reopened.addVersion("c", upload("CCCCCCCC"));
+        assertEquals("AAAAAAAA", new String(reopened.read(reopened.find("a", 1)), "UTF-8"));
+        assertEquals("BBBBBBBB", new String(reopened.read(reopened.find("b", 1)), "UTF-8"));
+        assertEquals("CCCCCCCC", new String(reopened.read(reopened.find("c", 1)), "UTF-8"));
+    }
+
+    @Test
+    public void testPinnedChunksSurviveCollection() throws Exception {
+        LocalStore store = new LocalStore(dir, 0, 16384, 256);
+        store.open();
+        Random random = new Random(23);
+        byte[] old = new byte[16384];
+        random.nextBytes(old);
+        byte[] other = new byte[16384];
+        random.nextBytes(other);
+        File first = File.createTempFile("upload", ".part", dir);
+        FileUtils.writeByteArrayToFile(first, old);
+        store.addVersion("a", first);
+        File second = File.createTempFile("upload", ".part", dir);
+        FileUtils.writeByteArrayToFile(second, other);
+        store.addVersion("b", second);
+        store.delete("a");
+
+        // A PUT of the start of the old contents finds most of its chunks here and only asks for the rest
+        byte[] half = Arrays.copyOf(old, 12288);
+        List<Chunker.Chunk> chunks;
+        File again = File.createTempFile("upload", ".bin", dir);
+        FileUtils.writeByteArrayToFile(again, half);
+        try (FileChannel source = FileChannel.open(again.toPath())) {
+            chunks = new Chunker(256).split(source, 0, half.length);
+        }
+        byte[][] hashes = new byte[chunks.size()][];
+        List<Integer> sizes = new ArrayList<Integer>();
+        for (int i = 0; i < chunks.size(); i++) {
+            hashes[i] = chunks.get(i).getHash();
+            sizes.add(chunks.get(i).getLength());
+        }
+        store.pin(hashes);
+        List<Integer> missing = new ArrayList<Integer>();
+        File received = File.createTempFile("upload", ".part", dir);
+        for (int i = 0; i < hashes.length; i++) {
+            if (!store.hasChunk(hashes[i])) {
+                missing.add(i);
+                FileUtils.writeByteArrayToFile(received, Arrays.copyOfRange(half, (int) chunks.get(i).getOffset(),
+                        (int) chunks.get(i).getOffset() + chunks.get(i).getLength()), true);
+            }
+        }
+        assertTrue(missing.size() < hashes.length);
+        // The rest of the old version is garbage, the chunks found are not
+        assertTrue(store.collect(0.0) > 0);
+        store.addChunked("a", hashes, sizes, received, missing);
+        store.unpin(hashes);
+        assertArrayEquals(half, store.read(store.find("a", store.latest("a"))));
+    }
+
+    @Test
+    public void testChecksumsAreLoggedWithVersions() throws Exception {
+        LocalStore store = new LocalStore(dir, 4, 1 << 20, 0);
+        store.open();
+        store.addVersion("a", upload("a1"));
+        store.addVersion("a", upload("a2 stored in a file"));
+        CRC32 packed = new CRC32();
+        packed.update("a1".getBytes("UTF-8"));
+        CRC32 own = new CRC32();
+        own.update("a2 stored in a file".getBytes("UTF-8"));
+        assertEquals(Long.valueOf(packed.getValue()), store.checksum("a", 1));
+        assertEquals(Long.valueOf(own.getValue()), store.checksum("a", 2));
+        // Recovered from the manifest, not worked out again from what is on disk now
+        FileUtils.writeStringToFile(store.file("a", 2), "a2 changed behind it", "UTF-8");
+
+        LocalStore recovered = new LocalStore(dir, 4, 1 << 20, 0);
+        recovered.open();
+        assertEquals(Long.valueOf(packed.getValue()), recovered.checksum("a", 1));
+        assertEquals(Long.valueOf(own.getValue()), recovered.checksum("a", 2));
+    }
+}
@@ -27,4 +27,17 @@ public class MembershipListTest extends TestCase {
             System.out.println(m.getId());
         }
     }
+
+    public void testEventsBeforeMasterIsKnown(){
+        MembershipList ml = new MembershipList();
+        ml.setHostId("5");
+        FSMessages.Message.Builder message = FSMessages.Message.newBuilder()
+                .setId("1").setType(FSMessages.Message.PacketType.DATA).setData(true);
+        message.addNodeEvents(FSMessages.Message.NodeEvent.newBuilder().setEvent(FSMessages.Message.Event.JOIN).setId("1"));
+        message.addNodeEvents(FSMessages.Message.NodeEvent.newBuilder().setEvent(FSMessages.Message.Event.JOIN).setId("2"));
+        message.addNodeEvents(FSMessages.Message.NodeEvent.newBuilder().setEvent(FSMessages.Message.Event.FAIL).setId("2"));
+        ml.update(message.build());
+        assertTrue(ml.getMembersMap().containsKey("1"));
+        assertFalse(ml.getMembersMap().containsKey("2"));
+    }
 }
@@ -0,0 +1,127 @@
+package jichufs;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class ReplicationSchedulerTest {
+
+    @Test
+    public void testFewestReplicasFirst() throws Exception {
+        List<String> copied = Collections.synchronizedList(new ArrayList<String>());
+        CountDownLatch done = new CountDownLatch(5);
+        ReplicationScheduler scheduler = new ReplicationScheduler(1, name -> {
+            copied.add(name);
+            done.countDown();
+            return true;
+        });
+        scheduler.schedule("three", 3);
+        scheduler.schedule("one", 1);
+        scheduler.schedule("two", 2);
+        scheduler.schedule("also-one", 1);
+        // Queued twice, kept once at its lowest replica count
+        scheduler.schedule("three", 3);
+        scheduler.schedule("moved-up", 3);
+        scheduler.schedule("moved-up", 1);
+        assertEquals(5, scheduler.pending());
+
+        scheduler.start();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("one", "also-one", "moved-up", "two", "three"), copied);
+        assertEquals(0, scheduler.pending());
+    }
+
+    @Test
+    public void testRescheduledWhileCopyingRunsAgain() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch twice = new CountDownLatch(2);
+        ReplicationScheduler scheduler = new ReplicationScheduler(2, name -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            twice.countDown();
+            return true;
+        });
+        scheduler.start();
+        scheduler.schedule("file", 2);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        // Another replica failed while the first copy is running, it must not run concurrently but afterwards
+        scheduler.schedule("file", 1);
+        assertEquals(1, scheduler.pending());
+        release.countDown();
+        assertTrue(twice.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testFailedCopyIsRetried() throws Exception {
+        AtomicInteger attempts = new AtomicInteger();
+        CountDownLatch copied = new CountDownLatch(1);
+        ReplicationScheduler scheduler = new ReplicationScheduler(1, name -> {
+            if (attempts.incrementAndGet() < 3) {
+                throw new IllegalStateException("every source failed");
+            }
+            copied.countDown();
+            return true;
+        }, 10);
+        scheduler.start();
+        scheduler.schedule("file", 1);
+        assertTrue(copied.await(5, TimeUnit.SECONDS));
+        assertEquals(3, attempts.get());
+        assertEquals(0, scheduler.pending());
+    }
+
+    @Test
+    public void testDeferredUntilAnotherCopyFinishes() throws Exception {
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch deferred = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch copied = new CountDownLatch(1);
+        AtomicBoolean busy = new AtomicBoolean(true);
+        ReplicationScheduler scheduler = new ReplicationScheduler(2, name -> {
+            if (name.equals("running")) {
+                running.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                busy.set(false);
+                return true;
+            }
+            // The nodes "waiting" needs are taken by the copy of "running"
+            if (busy.get()) {
+                deferred.countDown();
+                return false;
+            }
+            copied.countDown();
+            return true;
+        });
+        scheduler.start();
+        scheduler.schedule("running", 1);
+        assertTrue(running.await(5, TimeUnit.SECONDS));
+        scheduler.schedule("waiting", 2);
+        assertTrue(deferred.await(5, TimeUnit.SECONDS));
+        // Set aside once the attempt returns
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (scheduler.pending() != 1 && System.nanoTime() < deadline) {
+            Thread.yield();
+        }
+        assertEquals(1, copied.getCount());
+        assertEquals(1, scheduler.pending());
+        release.countDown();
+        assertTrue(copied.await(5, TimeUnit.SECONDS));
+    }
+}
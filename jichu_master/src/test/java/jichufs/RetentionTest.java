@@ -0,0 +1,43 @@
+package jichufs;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class RetentionTest {
+
+    @Test
+    public void testKeepsEverythingWhenOff() {
+        Retention retention = new Retention(0, 0);
+        assertFalse(retention.isEnabled());
+        assertEquals(1, retention.oldest(10, Collections.<Long>emptyList(), 1000));
+    }
+
+    @Test
+    public void testKeepsLastVersions() {
+        Retention retention = new Retention(3, 0);
+        assertEquals(1, retention.oldest(2, Collections.<Long>emptyList(), 1000));
+        assertEquals(8, retention.oldest(10, Collections.<Long>emptyList(), 1000));
+    }
+
+    @Test
+    public void testKeepsRecentVersions() {
+        Retention retention = new Retention(0, 100);
+        // Versions 2 and 3 are the only ones committed less than 100ms ago
+        assertEquals(2, retention.oldest(3, Arrays.asList(800L, 950L, 990L), 1000));
+        // The latest version is kept however old it is
+        assertEquals(3, retention.oldest(3, Arrays.asList(1L, 2L, 3L), 1000));
+        // Versions committed before the times known are as old as the first of them
+        assertEquals(1, retention.oldest(3, Arrays.asList(950L, 990L), 1000));
+    }
+
+    @Test
+    public void testVersionIsKeptByEitherRule() {
+        Retention retention = new Retention(2, 100);
+        assertEquals(2, retention.oldest(4, Arrays.asList(10L, 950L, 960L, 970L), 1000));
+        assertEquals(3, retention.oldest(4, Arrays.asList(10L, 20L, 30L, 40L), 1000));
+    }
+}
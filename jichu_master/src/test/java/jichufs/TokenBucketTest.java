@@ -0,0 +1,35 @@
+package jichufs;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TokenBucketTest {
+
+    private static final long SECOND = 1000000000L;
+
+    @Test
+    public void testBurstThenRate() {
+        TokenBucket bucket = new TokenBucket(1000, 500);
+        long now = System.nanoTime();
+        // The burst goes right away, the next 500 bytes have to wait half a second
+        assertEquals(0, bucket.reserve(500, now));
+        assertEquals(SECOND / 2, bucket.reserve(500, now), 1000);
+        // Once the debt is paid off the bucket refills at the rate, up to the burst
+        assertEquals(0, bucket.reserve(250, now + SECOND + SECOND / 4));
+        assertEquals(0, bucket.reserve(250, now + 10 * SECOND));
+        assertEquals(0, bucket.reserve(250, now + 10 * SECOND));
+        assertTrue(bucket.reserve(250, now + 10 * SECOND) > 0);
+    }
+
+    @Test
+    public void testUnlimited() {
+        TokenBucket bucket = new TokenBucket(0, 500);
+        long now = System.nanoTime();
+        assertEquals(0, bucket.reserve(1L << 40, now));
+        bucket.setRate(1000);
+        // Switching to a limit starts from a full burst, not from what was sent while unlimited
+        assertEquals(0, bucket.reserve(500, System.nanoTime()));
+        assertTrue(bucket.reserve(500, System.nanoTime()) > 0);
+    }
+}
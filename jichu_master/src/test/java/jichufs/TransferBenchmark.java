@@ -0,0 +1,101 @@
+package jichufs;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.util.Random;
+
+/**
+ * Compares the Replicant send paths over loopback: the original whole-file byte[] copy,
+ * the framed buffered copy and the framed zero-copy transferTo path.
+ * Reports throughput and bytes allocated by the sending thread per transfer.
+ *
+ * Not a unit test; run manually after `mvn test-compile` with
+ * java -cp target/classes:target/test-classes jichufs.TransferBenchmark [sizeInMB] [iterations]
+ */
+public class TransferBenchmark {
+
+    private interface Sender {
+        void send(File file, SocketChannel channel, DataOutputStream out) throws IOException;
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static Thread drain(ServerSocketChannel server) {
+        Thread drainer = new Thread(() -> {
+            try (SocketChannel channel = server.accept()) {
+                ByteBuffer buffer = ByteBuffer.allocateDirect(FileTransfer.BUFFER_SIZE);
+                while (channel.read(buffer) >= 0) {
+                    buffer.clear();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        drainer.start();
+        return drainer;
+    }
+
+    private static void run(String name, Sender sender, File file, ServerSocketChannel server, int iterations) throws Exception {
+        long totalNanos = 0;
+        long totalAllocated = 0;
+        for (int i = 0; i < iterations; i++) {
+            Thread drainer = drain(server);
+            long start = System.nanoTime();
+            long allocatedBefore = allocatedBytes();
+            try (SocketChannel channel = SocketChannel.open(server.getLocalAddress())) {
+                DataOutputStream out = new DataOutputStream(channel.socket().getOutputStream());
+                sender.send(file, channel, out);
+            }
+            totalAllocated += allocatedBytes() - allocatedBefore;
+            drainer.join();
+            totalNanos += System.nanoTime() - start;
+        }
+        double seconds = totalNanos / 1e9;
+        double megabytes = (double) file.length() * iterations / (1 << 20);
+        System.out.printf("%-12s %10.1f MB/s %14d bytes allocated per transfer%n",
+                name, megabytes / seconds, totalAllocated / iterations);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int sizeInMB = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        File file = File.createTempFile("transfer-benchmark", ".bin");
+        file.deleteOnExit();
+        byte[] block = new byte[1 << 20];
+        new Random(7).nextBytes(block);
+        try (OutputStream out = new FileOutputStream(file)) {
+            for (int i = 0; i < sizeInMB; i++) {
+                out.write(block);
+            }
+        }
+
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress("127.0.0.1", 0));
+            Sender legacy = (f, channel, out) -> {
+                byte[] data = Files.readAllBytes(f.toPath());
+                out.writeInt(data.length);
+                out.write(data);
+            };
+            Sender buffered = (f, channel, out) -> FileTransfer.sendFile(f, out);
+            Sender zeroCopy = (f, channel, out) -> FileTransfer.sendFile(f, out, channel);
+
+            // Warm up each path before measuring
+            run("warmup", zeroCopy, file, server, 1);
+            run("warmup", buffered, file, server, 1);
+            if (file.length() < Integer.MAX_VALUE) {
+                run("byte[]", legacy, file, server, iterations);
+            }
+            run("buffered", buffered, file, server, iterations);
+            run("transferTo", zeroCopy, file, server, iterations);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package jichufs;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+public class VersionWriterTest {
+
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("versions").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteQuietly(dir);
+    }
+
+    private static void write(VersionWriter writer, int version, byte[] contents) throws Exception {
+        FileChannel channel = writer.begin(version);
+        channel.write(ByteBuffer.wrap(contents), writer.position());
+        writer.end(contents.length);
+    }
+
+    @Test
+    public void testContainerKeepsBinaryContents() throws Exception {
+        File container = new File(dir, "out");
+        byte[] binary = {0, (byte) 0xff, (byte) 0xc3, 10, 0};
+        try (VersionWriter writer = new VersionWriter("file", container.getPath())) {
+            write(writer, 2, binary);
+            write(writer, 1, "text".getBytes("UTF-8"));
+        }
+        byte[] expected = new byte[3 + binary.length + 2 + 3 + 4 + 2];
+        ByteBuffer.wrap(expected).put("v2\n".getBytes("UTF-8")).put(binary).put("\n\nv1\ntext\n\n".getBytes("UTF-8"));
+        assertArrayEquals(expected, FileUtils.readFileToByteArray(container));
+    }
+
+    @Test
+    public void testDirectoryGetsAFilePerVersion() throws Exception {
+        try (VersionWriter writer = new VersionWriter("file", dir.getPath())) {
+            write(writer, 3, "three".getBytes("UTF-8"));
+            write(writer, 2, "two".getBytes("UTF-8"));
+        }
+        assertEquals("three", FileUtils.readFileToString(new File(dir, "file.v3"), "UTF-8"));
+        assertEquals("two", FileUtils.readFileToString(new File(dir, "file.v2"), "UTF-8"));
+    }
+}